@@ -0,0 +1,241 @@
+package uk.ac.bris.cs.databases.cwk3.bench;
+
+import java.io.File;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+import uk.ac.bris.cs.databases.api.Result;
+import uk.ac.bris.cs.databases.cwk3.API;
+import uk.ac.bris.cs.databases.cwk3.db.ConnectionManager;
+
+/**
+ * Throughput and latency percentiles of every implemented APIProvider call,
+ * on generated databases of several sizes (the posts parameter), with one
+ * caller and, in Concurrent, with eight. Run it before and after a storage
+ * change and compare the rows.
+ *
+ * Each trial works on a fresh copy of the Datasets database of its size,
+ * so the write cases never change the next trial's data. Reads target the
+ * busiest topic, the most liked topic and the busiest forum, where the
+ * costs are highest. Every call's Result is returned, so JMH consumes it,
+ * and a call that does not succeed fails the benchmark rather than being
+ * timed as a quick failure. getAdvancedPersonView and getAdvancedForum are
+ * not implemented and are left out.
+ *
+ * Throughput is in calls per millisecond; the sample mode gives the latency
+ * percentiles. See bench/README.txt for how to build and run it.
+ * @author csxdb
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class ApiBenchmark {
+
+    /** The same calls with eight callers at once. */
+    @Threads(8)
+    public static class Concurrent extends ApiBenchmark {}
+
+    @Param({ "10000", "100000" })
+    public long posts;
+
+    /* Where the generated databases are kept; "" for the temporary directory. */
+    @Param("")
+    public String datasets;
+
+    private File copy;
+    private ConnectionManager db;
+    private API api;
+    private Datasets.Targets t;
+    private int lastPage;
+
+    /** Per-thread state: which caller this is, and its own random numbers. */
+    @State(Scope.Thread)
+    public static class Caller {
+        private static final AtomicInteger CALLERS = new AtomicInteger();
+
+        int id;
+        int thread;
+        SplittableRandom random;
+        long n;
+
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams p) {
+            id = CALLERS.incrementAndGet();
+            thread = p.getThreadIndex();
+            random = new SplittableRandom(31 + thread);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        File dir = new File(datasets.isEmpty() ? System.getProperty("java.io.tmpdir") : datasets);
+        copy = Datasets.copy(dir, posts, "apibench");
+        String url = "jdbc:sqlite:" + copy.getPath();
+        t = Datasets.targets(url);
+        lastPage = (int) ((t.hotTopicPosts + 9) / 10);
+        db = new ConnectionManager(url, 8, 30000, 0, 64);
+        api = new API(db);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.close();
+        Datasets.delete(copy);
+    }
+
+    /* Reads */
+
+    @Benchmark
+    public Result getUsers() {
+        return ok(api.getUsers());
+    }
+
+    @Benchmark
+    public Result getPersonView(Caller c) {
+        return ok(api.getPersonView(person(c)));
+    }
+
+    @Benchmark
+    public Result getSimpleForums() {
+        return ok(api.getSimpleForums());
+    }
+
+    @Benchmark
+    public Result getForums() {
+        return ok(api.getForums());
+    }
+
+    @Benchmark
+    public Result getAdvancedForums() {
+        return ok(api.getAdvancedForums());
+    }
+
+    @Benchmark
+    public Result getForumHot() {
+        return ok(api.getForum(t.hotForum));
+    }
+
+    @Benchmark
+    public Result countPostsInTopic() {
+        return ok(api.countPostsInTopic(t.hotTopic));
+    }
+
+    @Benchmark
+    public Result getLikersHot() {
+        return ok(api.getLikers(t.likedTopic));
+    }
+
+    @Benchmark
+    public Result getSimpleTopicHot() {
+        return ok(api.getSimpleTopic(t.hotTopic));
+    }
+
+    @Benchmark
+    public Result getLatestPostHot() {
+        return ok(api.getLatestPost(t.hotTopic));
+    }
+
+    @Benchmark
+    public Result getTopicHotAll() {
+        return ok(api.getTopic(t.hotTopic, 0));
+    }
+
+    @Benchmark
+    public Result getTopicHotFirst() {
+        return ok(api.getTopic(t.hotTopic, 1));
+    }
+
+    @Benchmark
+    public Result getTopicHotLast() {
+        return ok(api.getTopic(t.hotTopic, lastPage));
+    }
+
+    @Benchmark
+    public Result getTopicRandomFirst(Caller c) {
+        return ok(api.getTopic(topic(c), 1));
+    }
+
+    @Benchmark
+    public Result getTopicPageHot() {
+        return ok(api.getTopicPage(t.hotTopic, null, 10));
+    }
+
+    /* Writes; each toggle is undone by the caller's next call */
+
+    @Benchmark
+    public Result createPost(Caller c) {
+        return ok(api.createPost(topic(c), person(c), "bench post"));
+    }
+
+    @Benchmark
+    public Result createTopic(Caller c) {
+        return ok(api.createTopic(t.hotForum, person(c), "bench topic", "bench post"));
+    }
+
+    @Benchmark
+    public Result createForum(Caller c) {
+        return ok(api.createForum("bench " + c.id + "/" + c.n++));
+    }
+
+    @Benchmark
+    public Result addNewPerson(Caller c) {
+        return ok(api.addNewPerson("Bench", "b" + c.id + "/" + c.n++, null));
+    }
+
+    @Benchmark
+    public Result likeTopic(Caller c) {
+        return ok(api.likeTopic(toggler(c), t.hotTopic, c.n++ % 2 == 0));
+    }
+
+    @Benchmark
+    public Result favouriteTopic(Caller c) {
+        return ok(api.favouriteTopic(toggler(c), t.hotTopic, c.n++ % 2 == 0));
+    }
+
+    @Benchmark
+    public Result likePost(Caller c) {
+        return ok(api.likePost(toggler(c), t.hotTopic, 1, c.n++ % 2 == 0));
+    }
+
+    /* Usernames are u1..uN in the generated data. */
+    private String person(Caller c) {
+        return "u" + (1 + c.random.nextLong(t.people));
+    }
+
+    private long topic(Caller c) {
+        return 1 + c.random.nextLong(t.topics);
+    }
+
+    /* The same person for a like and the unlike after it, different people
+     * on different threads.
+     */
+    private String toggler(Caller c) {
+        return "u" + (1 + (c.thread * 7919L + c.n / 2) % t.people);
+    }
+
+    private static Result ok(Result r) {
+        if (!r.isSuccess()) {
+            throw new IllegalStateException(r.getMessage());
+        }
+        return r;
+    }
+}
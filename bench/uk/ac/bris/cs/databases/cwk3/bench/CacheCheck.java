@@ -0,0 +1,120 @@
+package uk.ac.bris.cs.databases.cwk3.bench;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import uk.ac.bris.cs.databases.api.APIProvider;
+import uk.ac.bris.cs.databases.api.ForumSummaryView;
+import uk.ac.bris.cs.databases.api.ForumView;
+import uk.ac.bris.cs.databases.api.PersonView;
+import uk.ac.bris.cs.databases.api.Result;
+import uk.ac.bris.cs.databases.cwk3.API;
+import uk.ac.bris.cs.databases.cwk3.cache.CachingAPI;
+import uk.ac.bris.cs.databases.cwk3.db.ConnectionManager;
+
+/**
+ * Checks that CachingAPI never serves data older than the last write made
+ * through it.
+ *
+ * On a copy of a generated database (from Datasets), it makes each kind of
+ * write through a CachingAPI, having first read everything the cache holds
+ * so that it is all cached, including reads of the topic, forum and person
+ * the writes are about to create. After each write every read is made
+ * through the cache and straight from the database, and any difference is
+ * reported.
+ *
+ * Prints each difference and exits with status 1 if there are any.
+ * Usage: CacheCheck [posts, default 1e4] [dataset directory].
+ * @author csxdb
+ */
+public class CacheCheck {
+
+    public static void main(String[] args) throws Exception {
+        long posts = (long) Double.parseDouble(args.length > 0 ? args[0] : "1e4");
+        File dir = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+
+        File copy = Datasets.copy(dir, posts, "cachecheck");
+        int failed = 0;
+        try {
+            String url = "jdbc:sqlite:" + copy.getPath();
+            Datasets.Targets t = Datasets.targets(url);
+            try (ConnectionManager db = new ConnectionManager(url, 2, 30000, 0, 64)) {
+                API api = new API(db);
+                CachingAPI cached = new CachingAPI(api, 16L << 20);
+                long topic = t.topics + 1;
+                long forum = 1;
+                for (ForumSummaryView f : api.getForums().getValue()) {
+                    forum = Math.max(forum, f.getId() + 1);
+                }
+                Map<String, Function<APIProvider, Object>> reads = reads(t, topic, forum);
+
+                Map<String, Supplier<Result>> writes = new LinkedHashMap<>();
+                writes.put("createTopic", () -> cached.createTopic(t.hotForum, "u1",
+                                                                   "Cache check", "A first post."));
+                writes.put("createPost", () -> cached.createPost(topic, "u2", "Another post."));
+                writes.put("likeTopic", () -> cached.likeTopic("u3", topic, true));
+                writes.put("unlikeTopic", () -> cached.likeTopic("u3", topic, false));
+                writes.put("addNewPerson", () -> cached.addNewPerson("Cache Check",
+                                                                     "cachecheck", null));
+                writes.put("createForum", () -> cached.createForum("Cache check forum"));
+
+                for (Map.Entry<String, Supplier<Result>> w : writes.entrySet()) {
+                    for (Function<APIProvider, Object> read : reads.values()) {
+                        read.apply(cached);
+                    }
+                    Result r = w.getValue().get();
+                    if (!r.isSuccess()) {
+                        System.out.println("[CacheCheck] " + w.getKey() + " failed: "
+                                           + r.getMessage());
+                        failed++;
+                        continue;
+                    }
+                    for (Map.Entry<String, Function<APIProvider, Object>> read : reads.entrySet()) {
+                        Object fromCache = read.getValue().apply(cached);
+                        Object fromDb = read.getValue().apply(api);
+                        boolean ok = fromCache.equals(fromDb);
+                        System.out.printf("%-6s after %s, %s: %s%s%n", ok ? "ok" : "STALE",
+                                          w.getKey(), read.getKey(), fromCache,
+                                          ok ? "" : ", database has " + fromDb);
+                        if (!ok) { failed++; }
+                    }
+                }
+            }
+            System.out.println(failed + " problems");
+        } finally {
+            Datasets.delete(copy);
+        }
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    /* Every cached read, as a value that can be compared; topic and forum
+     * are the ids the writes will create. */
+    private static Map<String, Function<APIProvider, Object>> reads(Datasets.Targets t,
+                                                                    long topic, long forum) {
+        Map<String, Function<APIProvider, Object>> reads = new LinkedHashMap<>();
+        reads.put("getUsers", a -> value(a.getUsers(), m -> m.size()));
+        reads.put("getPersonView(new)", a -> value(a.getPersonView("cachecheck"),
+                                                   PersonView::getUsername));
+        reads.put("getSimpleForums", a -> value(a.getSimpleForums(), List::size));
+        reads.put("getForums", a -> value(a.getForums(), List::size));
+        reads.put("getForum(hot)", a -> value(a.getForum(t.hotForum), CacheCheck::topics));
+        reads.put("getForum(new)", a -> value(a.getForum(forum), CacheCheck::topics));
+        reads.put("countPostsInTopic(hot)", a -> value(a.countPostsInTopic(t.hotTopic), n -> n));
+        reads.put("countPostsInTopic(new)", a -> value(a.countPostsInTopic(topic), n -> n));
+        reads.put("getLikers(new)", a -> value(a.getLikers(topic), List::size));
+        return reads;
+    }
+
+    private static Object topics(ForumView f) {
+        return f.getTopics().size() + " topics";
+    }
+
+    private static <T> Object value(Result<T> r, Function<T, Object> f) {
+        return r.isSuccess() ? f.apply(r.getValue()) : "failure";
+    }
+}
@@ -0,0 +1,111 @@
+package uk.ac.bris.cs.databases.cwk3.bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import uk.ac.bris.cs.databases.cwk3.load.DatasetGenerator;
+
+/**
+ * The generated databases that benchmarks and checks run on: one per size,
+ * made by DatasetGenerator (seed 1) on first use and kept in a directory,
+ * so every run of every tool sees the same data. Runs work on a copy, so
+ * that their writes never change the next run's data.
+ *
+ * DatasetGenerator creates the schema from database/setup.sql, so run from
+ * the top of the repository.
+ * @author csxdb
+ */
+public final class Datasets {
+
+    private static final long SEED = 1;
+
+    /** What benchmarks and checks aim at in one database. */
+    public static final class Targets {
+        public long people;
+        public long topics;
+        /* The topic with the most posts, and how many. */
+        public long hotTopic;
+        public long hotTopicPosts;
+        /* The topic with the most likes. */
+        public long likedTopic;
+        /* The forum with the most topics. */
+        public long hotForum;
+    }
+
+    private Datasets() {}
+
+    /**
+     * @return the database of this many posts in dir, generated if it is
+     * not there yet; dir is created if need be.
+     */
+    public static File dataset(File dir, long posts) throws Exception {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalStateException("cannot create " + dir);
+        }
+        File f = new File(dir, "apibench-" + posts + "-" + SEED + ".sqlite3");
+        if (!f.exists()) {
+            File tmp = new File(dir, f.getName() + ".tmp");
+            tmp.delete();
+            System.out.println("generating " + f);
+            new DatasetGenerator(posts, SEED).load(tmp.getPath());
+            if (!tmp.renameTo(f)) {
+                throw new IllegalStateException("cannot rename " + tmp + " to " + f);
+            }
+        }
+        return f;
+    }
+
+    /**
+     * @return a fresh copy of the database of this many posts, named for
+     * the tool using it; remove it with delete().
+     */
+    public static File copy(File dir, long posts, String tool) throws Exception {
+        File base = dataset(dir, posts);
+        File copy = new File(dir, tool + "-" + posts + "-run.sqlite3");
+        Files.copy(base.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return copy;
+    }
+
+    /**
+     * Remove a copy, with its WAL files.
+     */
+    public static void delete(File copy) {
+        copy.delete();
+        new File(copy.getPath() + "-wal").delete();
+        new File(copy.getPath() + "-shm").delete();
+    }
+
+    /**
+     * @param url - the JDBC url of a generated database.
+     */
+    public static Targets targets(String url) throws SQLException {
+        Targets t = new Targets();
+        try (Connection c = DriverManager.getConnection(url);
+             Statement s = c.createStatement()) {
+            t.people = single(s, "SELECT MAX(id) FROM Person");
+            t.topics = single(s, "SELECT MAX(id) FROM Topic");
+            try (ResultSet r = s.executeQuery("SELECT topic, COUNT(*) AS n FROM Post "
+                                              + "GROUP BY topic ORDER BY n DESC LIMIT 1")) {
+                r.next();
+                t.hotTopic = r.getLong(1);
+                t.hotTopicPosts = r.getLong(2);
+            }
+            t.likedTopic = single(s, "SELECT topic FROM LikeTopic GROUP BY topic "
+                                     + "ORDER BY COUNT(*) DESC LIMIT 1");
+            t.hotForum = single(s, "SELECT forum FROM Topic GROUP BY forum "
+                                   + "ORDER BY COUNT(*) DESC LIMIT 1");
+        }
+        return t;
+    }
+
+    private static long single(Statement s, String sql) throws SQLException {
+        try (ResultSet r = s.executeQuery(sql)) {
+            return r.next() ? r.getLong(1) : 0;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package uk.ac.bris.cs.databases.cwk3.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import uk.ac.bris.cs.databases.api.APIProvider;
+import uk.ac.bris.cs.databases.api.Result;
+import uk.ac.bris.cs.databases.api.TopicPageView;
+import uk.ac.bris.cs.databases.cwk3.API;
+import uk.ac.bris.cs.databases.cwk3.ToggleQueue;
+import uk.ac.bris.cs.databases.cwk3.db.ConnectionManager;
+import uk.ac.bris.cs.databases.cwk3.db.SlowQueryLog;
+import uk.ac.bris.cs.databases.cwk3.search.ForumSearch;
+import uk.ac.bris.cs.databases.cwk3.search.SearchEngine;
+
+/**
+ * Checks the query plan of every statement the API runs, so that a schema
+ * or query change cannot quietly turn one into a full table scan.
+ *
+ * It makes every implemented APIProvider call once, on a copy of a
+ * generated database (from Datasets, as ApiBenchmark uses), with a
+ * SlowQueryLog whose threshold is 0 so that each statement is recorded with
+ * its EXPLAIN QUERY PLAN for the parameters it actually ran with. Then it
+ * makes the calls that differ with a ToggleQueue and a ForumSearch again,
+ * with both, as the server can be set up to run.
+ *
+ * A plan that has a SCAN of Post, Topic or one of the like tables fails,
+ * unless the statement is on the ALLOWED list below with the reason it may
+ * scan; an allowance that no longer matches anything is reported too, so
+ * the list does not outlive the queries on it. A statement whose plan
+ * cannot be had fails as well.
+ *
+ * Prints each statement with its plan and exits with status 1 if any
+ * fail. Usage: PlanCheck [posts, default 1e5] [dataset directory].
+ * @author csxdb
+ */
+public class PlanCheck {
+
+    /* Tables that grow with use; a scan of one costs time in proportion to
+     * the whole forum. */
+    private static final Set<String> CHECKED = new HashSet<>(Arrays.asList(
+        "Post", "Topic", "LikeTopic", "LikePost", "FavTopic"));
+
+    /* Older SQLite writes "SCAN TABLE Post"; an aliased table is named by
+     * its alias, "SCAN p". */
+    private static final Pattern SCAN = Pattern.compile("^\\s*SCAN (?:TABLE )?(\\w+)");
+
+    /* A table in a FROM or JOIN, with its alias if it has one. */
+    private static final Pattern TABLE = Pattern.compile(
+        "\\b(?:FROM|JOIN)\\s+(\\w+)(?:\\s+(?:AS\\s+)?(\\w+))?",
+        Pattern.CASE_INSENSITIVE);
+
+    /* Words that can follow a table name and are not an alias. */
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+        "WHERE", "ON", "USING", "JOIN", "INNER", "LEFT", "CROSS", "NATURAL",
+        "GROUP", "ORDER", "LIMIT", "UNION", "INDEXED", "NOT", "WINDOW", "HAVING",
+        "SET", "VALUES"));
+
+    /* Searches for the commonest words in DatasetGenerator's text, so that
+     * they find posts and topics. */
+    private static final String POST_QUERY = "da ta";
+    private static final String TOPIC_QUERY = "da";
+
+    /** A statement that may scan a table, and why. */
+    private static final class Allowed {
+        final String table;
+        final String sql;
+        final String reason;
+        boolean used;
+
+        /**
+         * @param sql - a fragment of the statement's text that singles it
+         * out.
+         */
+        Allowed(String table, String sql, String reason) {
+            this.table = table;
+            this.sql = sql;
+            this.reason = reason;
+        }
+    }
+
+    /* Nothing needs to scan at the moment. An entry looks like
+     *   new Allowed("Topic", "FROM Topic WHERE forum", "why it may scan")
+     */
+    private static final List<Allowed> ALLOWED = Arrays.asList();
+
+    public static void main(String[] args) throws Exception {
+        long posts = (long) Double.parseDouble(args.length > 0 ? args[0] : "1e5");
+        File dir = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+
+        File copy = Datasets.copy(dir, posts, "plancheck");
+        File index = new File(dir, "plancheck-" + posts + "-search");
+        int failed = 0;
+        try {
+            String url = "jdbc:sqlite:" + copy.getPath();
+            Datasets.Targets t = Datasets.targets(url);
+            SlowQueryLog log = new SlowQueryLog(0, Integer.MAX_VALUE, null);
+            Set<String> statements = new HashSet<>();
+            Set<String> seen = new HashSet<>();
+            try (ConnectionManager db = new ConnectionManager(url, 1, 30000, 0, 64, 1, 0, log)) {
+                failed += run(calls(new API(db), t), log, log.getSlow(), statements, seen);
+
+                // Again with write-behind toggles and in-process search, which
+                // run statements of their own. The queue only flushes when a
+                // call says so, so that its writes are checked under that call;
+                // the indexer starts at once and is checked under the first.
+                delete(index);
+                long since = log.getSlow();
+                try (ToggleQueue toggles = new ToggleQueue(db, 3600000, Integer.MAX_VALUE);
+                     ForumSearch search = new ForumSearch(db, index, 50000)) {
+                    failed += run(queuedCalls(new API(db, toggles, search), toggles, search, t),
+                                  log, since, statements, seen);
+                }
+            }
+            for (Allowed a : ALLOWED) {
+                if (!a.used) {
+                    System.out.println("STALE     allowance for a scan of " + a.table
+                                       + " matched nothing: " + a.sql);
+                    failed++;
+                }
+            }
+            System.out.println(statements.size() + " statements, " + failed + " problems");
+        } finally {
+            Datasets.delete(copy);
+            delete(index);
+        }
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    /* Make each call and check the plans of the statements run since the
+     * log's count was since, each statement once per plan. A statement run
+     * on another thread, the writer's or the search indexer's, is shown with
+     * the thread's name. Returns how many problems there were. */
+    private static int run(Map<String, Supplier<Result>> calls, SlowQueryLog log,
+                           long since, Set<String> statements, Set<String> seen) {
+        int failed = 0;
+        String self = Thread.currentThread().getName();
+        long before = since;
+        for (Map.Entry<String, Supplier<Result>> c : calls.entrySet()) {
+            Result r = c.getValue().get();
+            if (!r.isSuccess()) {
+                System.out.println("[PlanCheck] " + c.getKey() + " failed: "
+                                   + r.getMessage());
+                failed++;
+            }
+            long after = log.getSlow();
+            int n = (int) Math.min(after - before, SlowQueryLog.KEEP);
+            before = after;
+            List<SlowQueryLog.Entry> recent = log.getRecent().subList(0, n);
+            for (int i = recent.size() - 1; i >= 0; i--) {
+                SlowQueryLog.Entry e = recent.get(i);
+                statements.add(e.getSql());
+                if (!seen.add(e.getSql() + "\n" + e.getPlan())) { continue; }
+                String call = e.getThread().equals(self) ? c.getKey()
+                            : c.getKey() + " [" + e.getThread() + "]";
+                if (!check(call, e)) { failed++; }
+            }
+        }
+        return failed;
+    }
+
+    /* One of each call, on the targets where a bad plan would show. */
+    private static Map<String, Supplier<Result>> calls(APIProvider api,
+                                                       Datasets.Targets t) {
+        String person = "u1";
+        Map<String, Supplier<Result>> calls = new LinkedHashMap<>();
+        calls.put("getUsers", () -> api.getUsers());
+        calls.put("getPersonView", () -> api.getPersonView(person));
+        calls.put("getSimpleForums", () -> api.getSimpleForums());
+        calls.put("getForums", () -> api.getForums());
+        calls.put("getAdvancedForums", () -> api.getAdvancedForums());
+        calls.put("getForum", () -> api.getForum(t.hotForum));
+        calls.put("countPostsInTopic", () -> api.countPostsInTopic(t.hotTopic));
+        calls.put("getLikers", () -> api.getLikers(t.likedTopic));
+        calls.put("getSimpleTopic", () -> api.getSimpleTopic(t.hotTopic));
+        calls.put("getLatestPost", () -> api.getLatestPost(t.hotTopic));
+        calls.put("getTopic", () -> api.getTopic(t.hotTopic, 2));
+        calls.put("getTopic(all)", () -> api.getTopic(t.hotTopic, 0));
+        calls.put("getTopicPage", () -> api.getTopicPage(t.hotTopic, null, 10));
+        calls.put("getTopicPage(after)", () -> page(api, t, false));
+        calls.put("getTopicPage(before)", () -> page(api, t, true));
+        calls.put("searchPosts", () -> api.searchPosts(POST_QUERY, 1));
+        calls.put("searchTopics", () -> api.searchTopics(TOPIC_QUERY, 1));
+        calls.put("createForum", () -> api.createForum("Plan check forum"));
+        calls.put("addNewPerson", () -> api.addNewPerson("Plan Check", "plancheck", null));
+        calls.put("createTopic", () -> api.createTopic(t.hotForum, person,
+                                                       "Plan check", "A first post."));
+        calls.put("createPost", () -> api.createPost(t.hotTopic, person, "Another post."));
+        calls.put("likeTopic", () -> api.likeTopic(person, t.hotTopic, true));
+        calls.put("unlikeTopic", () -> api.likeTopic(person, t.hotTopic, false));
+        calls.put("favouriteTopic", () -> api.favouriteTopic(person, t.hotTopic, true));
+        calls.put("unfavouriteTopic", () -> api.favouriteTopic(person, t.hotTopic, false));
+        calls.put("likePost", () -> api.likePost(person, t.hotTopic, 1, true));
+        calls.put("unlikePost", () -> api.likePost(person, t.hotTopic, 1, false));
+        return calls;
+    }
+
+    /* The calls that run differently with a ToggleQueue and a ForumSearch:
+     * indexing, queueing toggles, reading likers with some queued, flushing
+     * them, and reading search hits by key. The person added by calls()
+     * likes nothing yet, so each toggle is a change and is written. */
+    private static Map<String, Supplier<Result>> queuedCalls(APIProvider api,
+                                                             ToggleQueue toggles,
+                                                             ForumSearch search,
+                                                             Datasets.Targets t) {
+        String person = "plancheck";
+        Map<String, Supplier<Result>> calls = new LinkedHashMap<>();
+        calls.put("index", () -> indexed(search));
+        calls.put("likeTopic(queued)", () -> api.likeTopic(person, t.likedTopic, true));
+        calls.put("favouriteTopic(queued)", () -> api.favouriteTopic(person, t.hotTopic, true));
+        calls.put("likePost(queued)", () -> api.likePost(person, t.hotTopic, 1, true));
+        calls.put("getLikers(queued)", () -> api.getLikers(t.likedTopic));
+        calls.put("flush", () -> flush(toggles));
+        calls.put("unlikeTopic(queued)", () -> api.likeTopic(person, t.likedTopic, false));
+        calls.put("unfavouriteTopic(queued)",
+                  () -> api.favouriteTopic(person, t.hotTopic, false));
+        calls.put("unlikePost(queued)", () -> api.likePost(person, t.hotTopic, 1, false));
+        calls.put("flush(undo)", () -> flush(toggles));
+        calls.put("searchPosts(in process)", () -> api.searchPosts(POST_QUERY, 1));
+        calls.put("searchTopics(in process)", () -> api.searchTopics(TOPIC_QUERY, 1));
+        return calls;
+    }
+
+    /* The second page of the hot topic by its cursor, or with before set
+     * the first again by the second's; the probes for a page the other
+     * way run only with a cursor. */
+    private static Result page(APIProvider api, Datasets.Targets t, boolean before) {
+        Result<TopicPageView> first = api.getTopicPage(t.hotTopic, null, 10);
+        if (!first.isSuccess()) { return first; }
+        if (first.getValue().getNextCursor() == null) {
+            return Result.failure("The hot topic has only one page");
+        }
+        Result<TopicPageView> second = api.getTopicPage(t.hotTopic,
+                                                        first.getValue().getNextCursor(), 10);
+        if (!before || !second.isSuccess()) { return second; }
+        return api.getTopicPage(t.hotTopic, second.getValue().getPreviousCursor(), 10);
+    }
+
+    private static Result flush(ToggleQueue toggles) {
+        toggles.flush();
+        return toggles.getDepth() == 0 ? Result.success()
+                                       : Result.failure("Toggles left after a flush");
+    }
+
+    /* Wait for the indexer to have found something to search for, giving
+     * up after a minute. */
+    private static Result indexed(ForumSearch search) {
+        for (int i = 0; i < 600; i++) {
+            List<SearchEngine.Hit> posts = search.posts(POST_QUERY, 1);
+            List<SearchEngine.Hit> topics = search.topics(TOPIC_QUERY, 1);
+            if (posts != null && !posts.isEmpty() && topics != null && !topics.isEmpty()) {
+                return Result.success();
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return Result.failure("The search index found nothing");
+    }
+
+    /* Remove a search index directory and what is in it. */
+    private static void delete(File dir) throws IOException {
+        if (!dir.exists()) { return; }
+        try (Stream<Path> files = Files.walk(dir.toPath())) {
+            for (Path f : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(f);
+            }
+        }
+    }
+
+    /* @return false if the statement scans a checked table it may not. */
+    private static boolean check(String call, SlowQueryLog.Entry e) {
+        List<String> scans = new ArrayList<>();
+        List<String> allowed = new ArrayList<>();
+        Map<String, String> aliases = aliases(e.getSql());
+        boolean planned = !e.getPlan().trim().startsWith("(no plan");
+        for (String line : e.getPlan().split("\n")) {
+            Matcher m = SCAN.matcher(line);
+            if (!m.find()) { continue; }
+            String table = aliases.getOrDefault(m.group(1), m.group(1));
+            if (!CHECKED.contains(table)) { continue; }
+            Allowed a = allowance(table, e.getSql());
+            if (a == null) {
+                scans.add(table);
+            } else {
+                a.used = true;
+                allowed.add(table + " (" + a.reason + ")");
+            }
+        }
+        String status = !planned ? "NO PLAN" : !scans.isEmpty() ? "SCAN"
+                      : !allowed.isEmpty() ? "ALLOWED" : "ok";
+        System.out.printf("%-9s %s: %s%n%s%n", status, call, e.getSql(), e.getPlan());
+        for (String s : allowed) {
+            System.out.println("          allowed scan of " + s);
+        }
+        System.out.println();
+        return planned && scans.isEmpty();
+    }
+
+    /* @return each alias in the statement, and the table it stands for. */
+    private static Map<String, String> aliases(String sql) {
+        Map<String, String> aliases = new HashMap<>();
+        Matcher m = TABLE.matcher(sql);
+        while (m.find()) {
+            if (m.group(2) != null && !KEYWORDS.contains(m.group(2).toUpperCase())) {
+                aliases.put(m.group(2), m.group(1));
+            }
+        }
+        return aliases;
+    }
+
+    private static Allowed allowance(String table, String sql) {
+        for (Allowed a : ALLOWED) {
+            if (a.table.equals(table) && sql.contains(a.sql)) {
+                return a;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,208 @@
+package uk.ac.bris.cs.databases.cwk3.bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import uk.ac.bris.cs.databases.api.APIProvider;
+import uk.ac.bris.cs.databases.api.AdvancedForumSummaryView;
+import uk.ac.bris.cs.databases.api.AdvancedForumView;
+import uk.ac.bris.cs.databases.api.AdvancedPersonView;
+import uk.ac.bris.cs.databases.api.ForumSummaryView;
+import uk.ac.bris.cs.databases.api.ForumView;
+import uk.ac.bris.cs.databases.api.PersonView;
+import uk.ac.bris.cs.databases.api.PostView;
+import uk.ac.bris.cs.databases.api.Result;
+import uk.ac.bris.cs.databases.api.SimpleForumSummaryView;
+import uk.ac.bris.cs.databases.api.SimplePostView;
+import uk.ac.bris.cs.databases.api.SimpleTopicSummaryView;
+import uk.ac.bris.cs.databases.api.SimpleTopicView;
+import uk.ac.bris.cs.databases.api.TopicPageView;
+import uk.ac.bris.cs.databases.api.TopicSummaryView;
+import uk.ac.bris.cs.databases.api.TopicView;
+
+/**
+ * An APIProvider that answers from views built once up front, so the web
+ * tier can be measured without a database. Topic i (from 1) has
+ * topicSizes[i - 1] posts and every page of it returns all of them; there
+ * is one forum per FORUMS, each with TOPICS_PER_FORUM topics. Writes succeed
+ * without doing anything.
+ * @author csxdb
+ */
+public final class StubAPI implements APIProvider {
+
+    public static final int FORUMS = 20;
+    public static final int TOPICS_PER_FORUM = 50;
+
+    private final int people;
+    private final List<List<PostView>> topics = new ArrayList<>();
+    private final Map<String, String> users = new LinkedHashMap<>();
+    private final List<PersonView> likers = new ArrayList<>();
+    private final List<SimpleForumSummaryView> simpleForums = new ArrayList<>();
+    private final List<ForumSummaryView> forums = new ArrayList<>();
+    private final List<SimpleTopicSummaryView> forumTopics = new ArrayList<>();
+
+    public StubAPI(int people, int... topicSizes) {
+        this.people = people;
+        for (int p = 1; p <= people; p++) {
+            users.put("u" + p, "Person " + p);
+            likers.add(new PersonView("Person " + p, "u" + p, ""));
+        }
+        for (int t = 0; t < topicSizes.length; t++) {
+            List<PostView> posts = new ArrayList<>(topicSizes[t]);
+            for (int i = 1; i <= topicSizes[t]; i++) {
+                int author = 1 + i % people;
+                posts.add(new PostView(1, t + 1, i, "Person " + author, "u" + author,
+                    "Post " + i + " of topic " + (t + 1)
+                    + ", about as long as a typical reply on the forum.",
+                    1420070400 + i * 60, i % 7));
+            }
+            topics.add(Collections.unmodifiableList(posts));
+        }
+        for (int f = 1; f <= FORUMS; f++) {
+            simpleForums.add(new SimpleForumSummaryView(f, "Forum " + f));
+            forums.add(new ForumSummaryView(f, "Forum " + f,
+                new SimpleTopicSummaryView(1, f, "Latest topic in forum " + f)));
+        }
+        for (int t = 1; t <= TOPICS_PER_FORUM; t++) {
+            forumTopics.add(new SimpleTopicSummaryView(t, 1, "Topic " + t));
+        }
+    }
+
+    private List<PostView> posts(long topicId) {
+        return topicId >= 1 && topicId <= topics.size() ? topics.get((int) topicId - 1) : null;
+    }
+
+    @Override
+    public Result<Map<String, String>> getUsers() {
+        return Result.success(users);
+    }
+
+    @Override
+    public Result<PersonView> getPersonView(String username) {
+        return Result.success(likers.get(0));
+    }
+
+    @Override
+    public Result<List<SimpleForumSummaryView>> getSimpleForums() {
+        return Result.success(simpleForums);
+    }
+
+    @Override
+    public Result<Integer> countPostsInTopic(long topicId) {
+        List<PostView> posts = posts(topicId);
+        return posts == null ? Result.failure("No such topic") : Result.success(posts.size());
+    }
+
+    @Override
+    public Result<List<PersonView>> getLikers(long topicId) {
+        return Result.success(likers.subList(0, Math.min(people, 10)));
+    }
+
+    @Override
+    public Result<SimpleTopicView> getSimpleTopic(long topicId) {
+        List<PostView> posts = posts(topicId);
+        if (posts == null) { return Result.failure("No such topic"); }
+        List<SimplePostView> simple = new ArrayList<>(posts.size());
+        for (PostView p : posts) {
+            simple.add(new SimplePostView(p.getPostNumber(), p.getAuthorName(),
+                                          p.getText(), p.getPostedAt()));
+        }
+        return Result.success(new SimpleTopicView(topicId, "Topic " + topicId, simple));
+    }
+
+    @Override
+    public Result<PostView> getLatestPost(long topicId) {
+        List<PostView> posts = posts(topicId);
+        return posts == null ? Result.failure("No such topic")
+                             : Result.success(posts.get(posts.size() - 1));
+    }
+
+    @Override
+    public Result<List<ForumSummaryView>> getForums() {
+        return Result.success(forums);
+    }
+
+    @Override
+    public Result createForum(String title) {
+        return Result.success();
+    }
+
+    @Override
+    public Result createPost(long topicId, String username, String text) {
+        return Result.success();
+    }
+
+    @Override
+    public Result addNewPerson(String name, String username, String studentId) {
+        return Result.success();
+    }
+
+    @Override
+    public Result<ForumView> getForum(long id) {
+        return Result.success(new ForumView(id, "Forum " + id, forumTopics));
+    }
+
+    @Override
+    public Result<TopicView> getTopic(long topicId, int page) {
+        List<PostView> posts = posts(topicId);
+        return posts == null ? Result.failure("No such topic")
+            : Result.success(new TopicView(1, topicId, "Forum 1", "Topic " + topicId,
+                                           posts, page));
+    }
+
+    @Override
+    public Result<TopicPageView> getTopicPage(long topicId, String cursor, int limit) {
+        List<PostView> posts = posts(topicId);
+        return posts == null ? Result.failure("No such topic")
+            : Result.success(new TopicPageView(1, topicId, "Forum 1", "Topic " + topicId,
+                                               posts, "YTEw", null));
+    }
+
+    @Override
+    public Result likeTopic(String username, long topicId, boolean like) {
+        return Result.success();
+    }
+
+    @Override
+    public Result favouriteTopic(String username, long topicId, boolean fav) {
+        return Result.success();
+    }
+
+    @Override
+    public Result createTopic(long forumId, String username, String title, String text) {
+        return Result.success();
+    }
+
+    @Override
+    public Result<List<AdvancedForumSummaryView>> getAdvancedForums() {
+        return Result.failure("Not in the stub");
+    }
+
+    @Override
+    public Result<AdvancedPersonView> getAdvancedPersonView(String username) {
+        return Result.failure("Not in the stub");
+    }
+
+    @Override
+    public Result<AdvancedForumView> getAdvancedForum(long id) {
+        return Result.failure("Not in the stub");
+    }
+
+    @Override
+    public Result likePost(String username, long topicId, int post, boolean like) {
+        return Result.success();
+    }
+
+    @Override
+    public Result<List<PostView>> searchPosts(String query, int page) {
+        List<PostView> posts = topics.get(0);
+        return Result.success(posts.subList(0, Math.min(10, posts.size())));
+    }
+
+    @Override
+    public Result<List<TopicSummaryView>> searchTopics(String query, int page) {
+        return Result.success(Collections.emptyList());
+    }
+}
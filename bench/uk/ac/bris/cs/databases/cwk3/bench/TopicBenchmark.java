@@ -0,0 +1,169 @@
+package uk.ac.bris.cs.databases.cwk3.bench;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Random;
+import uk.ac.bris.cs.databases.api.Result;
+import uk.ac.bris.cs.databases.api.TopicPageView;
+import uk.ac.bris.cs.databases.api.TopicView;
+import uk.ac.bris.cs.databases.cwk3.API;
+import uk.ac.bris.cs.databases.cwk3.db.ConnectionManager;
+import uk.ac.bris.cs.databases.cwk3.db.migrate.Migrations;
+
+/**
+ * Measures how getTopic scales with topic size: the number of statements run
+ * per call and the latency, for topics of 10 up to 10000 posts. Both should
+ * stay flat for a single page and grow only with the rows returned for a
+ * whole topic. Cursor paging through getTopicPage is measured page by page
+ * to the end of each topic.
+ *
+ * Usage: TopicBenchmark [database file] (default: a temporary file).
+ * @author csxdb
+ */
+public class TopicBenchmark {
+
+    private static final int[] SIZES = { 10, 100, 1000, 10000 };
+    private static final int PEOPLE = 50;
+    private static final int WARMUP = 20;
+    private static final int RUNS = 50;
+
+    public static void main(String[] args) throws Exception {
+        File f = args.length > 0 ? new File(args[0])
+                                 : File.createTempFile("topicbench", ".sqlite3");
+        f.delete();
+        String url = "jdbc:sqlite:" + f.getPath();
+
+        try (Connection c = DriverManager.getConnection(url)) {
+            Migrations.create(c, new File("database/setup.sql"));
+            Migrations.migrate(c);
+            populate(c);
+        }
+
+        try (ConnectionManager db = new ConnectionManager(url, 1, 10000, 0, 64)) {
+            API api = new API(db);
+            System.out.println("posts  page  stmts/call    mean ms     p50 ms     max ms");
+            for (int i = 0; i < SIZES.length; i++) {
+                long topicId = i + 1;
+                run(api, db, SIZES[i], topicId, 1);
+                run(api, db, SIZES[i], topicId, 0);
+            }
+            System.out.println();
+            System.out.println("posts  cursor pages  stmts/page  mean ms/page  last page ms");
+            for (int i = 0; i < SIZES.length; i++) {
+                walk(api, db, SIZES[i], i + 1);
+            }
+        }
+        if (args.length == 0) {
+            f.delete();
+        }
+    }
+
+    private static void run(API api, ConnectionManager db, int size,
+                            long topicId, int page) {
+        for (int i = 0; i < WARMUP; i++) {
+            check(api.getTopic(topicId, page));
+        }
+        long before = statements(db);
+        long[] times = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            check(api.getTopic(topicId, page));
+            times[i] = System.nanoTime() - start;
+        }
+        double perCall = (statements(db) - before) / (double) RUNS;
+        Arrays.sort(times);
+        long sum = 0;
+        for (long t : times) { sum += t; }
+        System.out.printf("%5d  %4d  %10.1f  %9.3f  %9.3f  %9.3f%n",
+            size, page, perCall, sum / (double) RUNS / 1e6,
+            times[RUNS / 2] / 1e6, times[RUNS - 1] / 1e6);
+    }
+
+    /* Follows next cursors from the first page to the last: every page
+     * should cost the same, however deep into the topic it is.
+     */
+    private static void walk(API api, ConnectionManager db, int size, long topicId) {
+        long before = statements(db);
+        long start = System.nanoTime();
+        long last = 0;
+        int pages = 0;
+        String cursor = null;
+        do {
+            long t = System.nanoTime();
+            Result<TopicPageView> r = api.getTopicPage(topicId, cursor, 10);
+            last = System.nanoTime() - t;
+            if (!r.isSuccess()) {
+                throw new RuntimeException("getTopicPage failed: " + r.getMessage());
+            }
+            cursor = r.getValue().getNextCursor();
+            pages++;
+        } while (cursor != null);
+        long total = System.nanoTime() - start;
+        System.out.printf("%5d  %12d  %10.1f  %12.3f  %12.3f%n",
+            size, pages, (statements(db) - before) / (double) pages,
+            total / (double) pages / 1e6, last / 1e6);
+    }
+
+    /* Every statement executed goes through the statement cache. */
+    private static long statements(ConnectionManager db) {
+        return db.getStatementCacheHits() + db.getStatementCacheMisses();
+    }
+
+    private static void check(Result<TopicView> r) {
+        if (!r.isSuccess()) {
+            throw new RuntimeException("getTopic failed: " + r.getMessage());
+        }
+    }
+
+    /* One forum, one topic per size, each post liked by up to 3 people. */
+    private static void populate(Connection c) throws SQLException {
+        Random random = new Random(42);
+        c.setAutoCommit(false);
+        try (PreparedStatement person = c.prepareStatement(
+                 "INSERT INTO Person (id, name, username, stuId) VALUES (?, ?, ?, NULL)");
+             PreparedStatement topic = c.prepareStatement(
+                 "INSERT INTO Topic (id, title, forum, creator, created) VALUES (?, ?, 1, 1, 0)");
+             PreparedStatement post = c.prepareStatement(
+                 "INSERT INTO Post (id, topic, author, content, created) VALUES (?, ?, ?, ?, ?)");
+             PreparedStatement like = c.prepareStatement(
+                 "INSERT OR IGNORE INTO LikePost (topic, post, person) VALUES (?, ?, ?)");
+             Statement s = c.createStatement()) {
+            s.execute("INSERT INTO Forum (id, title) VALUES (1, 'bench')");
+            for (int i = 1; i <= PEOPLE; i++) {
+                person.setInt(1, i);
+                person.setString(2, "Person " + i);
+                person.setString(3, "user" + i);
+                person.executeUpdate();
+            }
+            for (int t = 0; t < SIZES.length; t++) {
+                long topicId = t + 1;
+                topic.setLong(1, topicId);
+                topic.setString(2, "Topic of " + SIZES[t]);
+                topic.executeUpdate();
+                for (int p = 1; p <= SIZES[t]; p++) {
+                    post.setInt(1, p);
+                    post.setLong(2, topicId);
+                    post.setInt(3, 1 + random.nextInt(PEOPLE));
+                    post.setString(4, "Post " + p + " of topic " + topicId);
+                    post.setInt(5, p);
+                    post.addBatch();
+                    int likes = random.nextInt(4);
+                    for (int k = 0; k < likes; k++) {
+                        like.setLong(1, topicId);
+                        like.setInt(2, p);
+                        like.setInt(3, 1 + random.nextInt(PEOPLE));
+                        like.addBatch();
+                    }
+                }
+                post.executeBatch();
+                like.executeBatch();
+            }
+            c.commit();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package uk.ac.bris.cs.databases.cwk3.bench;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import uk.ac.bris.cs.databases.api.Result;
+import uk.ac.bris.cs.databases.cwk3.API;
+import uk.ac.bris.cs.databases.cwk3.db.ConnectionManager;
+import uk.ac.bris.cs.databases.cwk3.db.migrate.Migrations;
+
+/**
+ * Measures createPost throughput with concurrent callers, committing every
+ * post on its own (batch size 1) against group commit with a few batch
+ * settings. Every run uses a fresh database file in the same directory, so
+ * the runs pay for the same disk.
+ *
+ * Usage: WriteBenchmark [threads] [posts per thread] [directory].
+ * @author csxdb
+ */
+public class WriteBenchmark {
+
+    /* { batch size, batch window in microseconds } */
+    private static final long[][] SETTINGS = {
+        { 1, 0 }, { 16, 0 }, { 64, 0 }, { 64, 200 }, { 256, 1000 }
+    };
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int posts = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        File dir = args.length > 2 ? new File(args[2])
+                                   : new File(System.getProperty("java.io.tmpdir"));
+
+        System.out.println(threads + " threads x " + posts + " posts");
+        System.out.println("batch  window us    posts/s   commits  largest  failed");
+        for (long[] s : SETTINGS) {
+            File f = File.createTempFile("writebench", ".sqlite3", dir);
+            String url = "jdbc:sqlite:" + f.getPath();
+            try {
+                setUp(url, threads);
+                run(url, threads, posts, (int) s[0], s[1]);
+            } finally {
+                f.delete();
+                new File(f.getPath() + "-wal").delete();
+                new File(f.getPath() + "-shm").delete();
+            }
+        }
+    }
+
+    private static void run(String url, int threads, int posts, int batch,
+                            long window) throws Exception {
+        try (ConnectionManager db = new ConnectionManager(url, 1, 10000, 0, 64,
+                                                          batch, window)) {
+            API api = new API(db);
+            CountDownLatch go = new CountDownLatch(1);
+            AtomicLong failed = new AtomicLong();
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                long topic = t + 1;
+                Thread w = new Thread(() -> {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < posts; i++) {
+                        Result r = api.createPost(topic, "bench", "post " + i);
+                        if (!r.isSuccess()) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                });
+                w.start();
+                workers.add(w);
+            }
+            long start = System.nanoTime();
+            go.countDown();
+            for (Thread w : workers) {
+                w.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%5d  %9d  %9.0f  %8d  %7d  %6d%n", batch, window,
+                threads * posts / seconds, db.getWriteBatches(),
+                db.getLargestWriteBatch(), failed.get());
+        }
+    }
+
+    /* One person, one forum, one topic per thread so callers do not just
+     * queue up behind each other's post numbers.
+     */
+    private static void setUp(String url, int topics) throws Exception {
+        try (Connection c = DriverManager.getConnection(url)) {
+            Migrations.create(c, new File("database/setup.sql"));
+            Migrations.migrate(c);
+            try (Statement s = c.createStatement()) {
+                s.execute("INSERT INTO Person (id, name, username) VALUES (1, 'Bench', 'bench')");
+                s.execute("INSERT INTO Forum (id, title) VALUES (1, 'bench')");
+                s.execute("INSERT INTO ForumSummary (forum, title) VALUES (1, 'bench')");
+                for (int t = 1; t <= topics; t++) {
+                    s.execute("INSERT INTO Topic (id, title, forum, creator, created) "
+                              + "VALUES (" + t + ", 'Topic " + t + "', 1, 1, 0)");
+                }
+            }
+        }
+    }
+}
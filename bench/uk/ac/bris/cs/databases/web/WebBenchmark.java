@@ -0,0 +1,303 @@
+package uk.ac.bris.cs.databases.web;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.RouterNanoHTTPD;
+import freemarker.template.Configuration;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.bris.cs.databases.api.PostView;
+import uk.ac.bris.cs.databases.api.TopicPageView;
+import uk.ac.bris.cs.databases.cwk3.AsyncAPI;
+import uk.ac.bris.cs.databases.cwk3.bench.StubAPI;
+
+/**
+ * Measures the web tier on its own, stage by stage, against a StubAPI so the
+ * database is out of the picture:
+ *
+ *  - Routing.route: the router matching a request and running a handler
+ *    that does nothing (the last route added, so every pattern is tried);
+ *  - Routing.parseQuery: splitting a query string;
+ *  - render: FreeMarker templates into a String;
+ *  - encode: newFixedLengthResponse turning that String into bytes, and
+ *    reading them out as the server would;
+ *  - gzip: Compression on the same bytes;
+ *  - request, requestGzip: the whole of Server.serve for the same page,
+ *    from a client that does not and one that does take gzip. Pages are
+ *    streamed (see StreamingResponse), so this is rendering and sending
+ *    together.
+ *
+ * The page parameter picks topics of 10, 100 and 10000 posts, a forum, the
+ * people list and the main page, for every stage but Routing's. The class
+ * is in the web package, though in the bench source tree rather than the
+ * server's, to reach the handlers' package private parts.
+ *
+ * Run with -prof gc for the bytes allocated per call (gc.alloc.rate.norm).
+ * Allocation on other threads is not counted; that is the AsyncAPI calls in
+ * the /topic requests, which cost little with the stub. The handlers'
+ * console logging goes to a null stream while measuring.
+ * @author csxdb
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebBenchmark {
+
+    private static final int[] TOPIC_SIZES = { 10, 100, 10000 };
+    private static final int PEOPLE = 1000;
+
+    private static final ThreadLocal<byte[]> BUFFER =
+        ThreadLocal.withInitial(() -> new byte[16384]);
+
+    @Param({ "topic10", "topic100", "topic10000", "forum", "people", "forums" })
+    public String page;
+
+    @Param("1")
+    public int gzipLevel;
+
+    private StubAPI api;
+    private Server server;
+    private Compression gzip;
+    private TopicHandler handler;
+
+    /* For the page: its template and data, the URI that serves it, the
+     * rendered HTML and the same as bytes. */
+    private String template;
+    private Object data;
+    private String uri;
+    private String html;
+    private byte[] raw;
+
+    /** The cheapest possible handler, to time the router alone. */
+    public static class NoopHandler extends AbstractHandler {
+        @Override
+        public View render(RouterNanoHTTPD.UriResource uriResource,
+                           Map<String, String> params,
+                           NanoHTTPD.IHTTPSession session) {
+            return new View(200, "ok");
+        }
+    }
+
+    /** A GET request that never touched a socket. */
+    private static final class Request implements NanoHTTPD.IHTTPSession {
+        private final String uri;
+        private final String query;
+        private final Map<String, String> headers = new HashMap<>();
+
+        Request(String uri, String query) {
+            this.uri = uri;
+            this.query = query;
+        }
+
+        Request gzip() {
+            headers.put("accept-encoding", "gzip, deflate");
+            return this;
+        }
+
+        @Override public void execute() {}
+        @Override public NanoHTTPD.CookieHandler getCookies() { return null; }
+        @Override public Map<String, String> getHeaders() { return headers; }
+        @Override public InputStream getInputStream() { return null; }
+        @Override public NanoHTTPD.Method getMethod() { return NanoHTTPD.Method.GET; }
+        @Override public Map<String, String> getParms() { return new HashMap<>(); }
+        @Override public String getQueryParameterString() { return query; }
+        @Override public String getUri() { return uri; }
+        @Override public void parseBody(Map<String, String> files) {}
+        @Override public String getRemoteIpAddress() { return "127.0.0.1"; }
+        @Override public String getRemoteHostName() { return "localhost"; }
+    }
+
+    /**
+     * The router and query parsing, which are the same for every page.
+     */
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    public static class Routing {
+        private final Stage stage = new Stage();
+        private TopicHandler handler;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            stage.setUp(1);
+            handler = new TopicHandler();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            stage.tearDown();
+        }
+
+        @Benchmark
+        public long route() throws IOException {
+            return drain(stage.server.serve(new Request("/bench/noop", null)));
+        }
+
+        @Benchmark
+        public Map<String, String> parseQuery() {
+            return handler.parseQuery("cursor=YTEyMw&limit=10&sort=new");
+        }
+    }
+
+    /* The server set up as Server.main does, over a StubAPI. */
+    private static final class Stage {
+        StubAPI api;
+        AsyncAPI async;
+        Server server;
+        Compression gzip;
+        PrintStream out;
+
+        void setUp(int gzipLevel) throws Exception {
+            api = new StubAPI(PEOPLE, TOPIC_SIZES);
+            ApplicationContext c = ApplicationContext.getInstance();
+            c.setApi(api);
+            async = new AsyncAPI(api, 8, 8);
+            c.setAsyncApi(async);
+            Configuration cfg = new Configuration(Configuration.DEFAULT_INCOMPATIBLE_IMPROVEMENTS);
+            cfg.setDirectoryForTemplateLoading(new File("resources/templates"));
+            cfg.setDefaultEncoding("UTF-8");
+            c.setTemplateConfiguration(cfg);
+            gzip = new Compression(1024, gzipLevel, 8);
+            c.setCompression(gzip);
+            Assets assets = Server.assets(gzip);
+            assets.share(cfg);
+            c.setAssets(assets);
+
+            server = new Server();
+            server.addRoute("/bench/noop", NoopHandler.class);
+
+            out = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+
+        void tearDown() {
+            System.setOut(out);
+            async.close();
+        }
+    }
+
+    private final Stage stage = new Stage();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        stage.setUp(gzipLevel);
+        api = stage.api;
+        server = stage.server;
+        gzip = stage.gzip;
+        handler = new TopicHandler();
+
+        if (page.startsWith("topic")) {
+            int size = Integer.parseInt(page.substring("topic".length()));
+            long id = 0;
+            for (int i = 0; i < TOPIC_SIZES.length; i++) {
+                if (TOPIC_SIZES[i] == size) { id = i + 1; }
+            }
+            TopicPageView view = api.getTopicPage(id, null, 10).getValue();
+            List<PostView> posts = view.getPosts();
+            template = "TopicView.ftl";
+            data = new TopicHandler.TopicPage(view, posts.size(), api.getLikers(id).getValue());
+            uri = "/topic/" + id;
+        } else if (page.equals("forum")) {
+            template = "ForumView.ftl";
+            data = api.getForum(1).getValue();
+            uri = "/forum/1";
+        } else if (page.equals("people")) {
+            PeopleHandler people = new PeopleHandler();
+            List<PeopleHandler.KV> kvs = new ArrayList<>();
+            for (Map.Entry<String, String> u : api.getUsers().getValue().entrySet()) {
+                kvs.add(people.new KV(u.getKey(), u.getValue()));
+            }
+            template = "PeopleView.ftl";
+            data = handler.wrap(kvs);
+            uri = "/people";
+        } else {
+            template = "ForumsView.ftl";
+            data = handler.wrap(api.getForums().getValue());
+            uri = "/forums";
+        }
+        html = handler.renderView(template, data).getContents();
+        raw = new Compression.Body(html, false).getRaw();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        stage.tearDown();
+    }
+
+    @Benchmark
+    public View render() {
+        return handler.renderView(template, data);
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        return drain(NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.OK,
+                                                      "text/html", html));
+    }
+
+    @Benchmark
+    public byte[] gzip() {
+        return gzip.gzip(new Compression.Body(raw, false));
+    }
+
+    @Benchmark
+    public long request() throws IOException {
+        return drain(server.serve(new Request(uri, null)));
+    }
+
+    @Benchmark
+    public long requestGzip() throws IOException {
+        return drain(server.serve(new Request(uri, null).gzip()));
+    }
+
+    /* What the server does with a response body, minus the socket. */
+    private static long drain(NanoHTTPD.Response r) throws IOException {
+        if (r instanceof StreamingResponse) {
+            Counter c = new Counter();
+            ((StreamingResponse) r).sendTo(c);
+            return c.bytes;
+        }
+        byte[] buffer = BUFFER.get();
+        long total = 0;
+        try (InputStream in = r.getData()) {
+            for (int n = in.read(buffer); n > 0; n = in.read(buffer)) {
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    /* Counts what a streamed page sends, status line and headers too. */
+    private static final class Counter extends OutputStream {
+        long bytes;
+
+        @Override public void write(int b) { bytes++; }
+        @Override public void write(byte[] b, int off, int len) { bytes += len; }
+    }
+}
@@ -0,0 +1,52 @@
+<#include "header.html">
+
+<h1>Search</h1>
+
+<div class="section">
+<form action="/search" method="get">
+<input type="text" name="q" value="${query?html}"/>
+<input type="submit" value="Search"/>
+</form>
+</div>
+
+<#if query != "">
+<#if topics?has_content>
+<h2>Topics</h2>
+<#list topics as t>
+<div class="section">
+<p><b><a href="/topic/${t.topicId?c}">${t.title?html}</a></b>
+by <a href="/person/${t.creatorUserName}">${t.creatorName?html}</a>,
+${t.postCount} posts, ${t.likes} likes</p>
+</div>
+</#list>
+</#if>
+
+<h2>Posts</h2>
+<#list posts as p>
+<div class="section">
+<p><a href="/topic/${p.topicId?c}">Topic ${p.topicId?c}</a>, post #${p.postNumber}
+by: <a href="/person/${p.authorUserName}">${p.authorName?html} [${p.authorUserName}]</a>
+    at ${(p.postedAt*1000)?number_to_datetime}</p>
+<pre>
+${p.text?html}
+</pre>
+</div>
+<#else>
+<div class="section">
+<p>No<#if page gt 1> more</#if> posts found.</p>
+</div>
+</#list>
+
+<div class="section alt">
+<p>
+<#if page gt 1>
+<a href="/search?q=${query?url('UTF-8')}&amp;page=${page - 1}">Previous page</a>
+</#if>
+<#if hasMore>
+<a href="/search?q=${query?url('UTF-8')}&amp;page=${page + 1}">Next page</a>
+</#if>
+</p>
+</div>
+</#if>
+
+<#include "footer.html">
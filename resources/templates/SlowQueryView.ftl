@@ -0,0 +1,25 @@
+<#include "header.html">
+
+<h1>Slow queries</h1>
+
+<div class="section alt">
+<p>${slow?c} statements took ${thresholdMillis?c}ms or more<#if skipped gt 0>;
+${skipped?c} were over the rate limit and only counted</#if>.
+The newest ${entries?size} are below.</p>
+</div>
+
+<#list entries as e>
+<div class="section">
+<p><b>${e.millis?string("0.0")}ms</b>, ${e.rows?c} rows,
+at ${e.at?number_to_datetime} on ${e.thread?html}</p>
+<pre>
+${e.sql?html}
+</pre>
+<p>Parameters: <#if e.params == "">none<#else>${e.params?html}</#if></p>
+<pre>
+${e.plan?html}
+</pre>
+</div>
+</#list>
+
+<#include "footer.html">
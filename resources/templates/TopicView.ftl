@@ -4,9 +4,7 @@
 
 <div class="section">
 <p>In forum: <a href="/forum/${forumId}">${forumName}</a></p>
-<#if (page > 0)>
-<p>Page ${page}</p>
-</#if>
+<p>${postCount} posts, liked by ${likers?size}</p>
 </div>
 
 <#list posts as p>
@@ -22,6 +20,12 @@ ${p.text}
 
 <div class="section alt">
 <p>
+<#if previousCursor??>
+<a href="/topic/${topicId}?cursor=${previousCursor}">Previous page</a>
+</#if>
+<#if nextCursor??>
+<a href="/topic/${topicId}?cursor=${nextCursor}">Next page</a>
+</#if>
 <a href="/newpost/${topicId}">Reply</a>
 </p>
 </div>
@@ -131,6 +131,19 @@ public interface APIProvider {
      */
     public Result<TopicView> getTopic(long topicId, int page);
     
+    /**
+     * Get a page of a topic's posts by cursor. Each call costs time in
+     * proportion to the page size, however long the topic is.
+     * @param topicId - the topic to get.
+     * @param cursor - null for the first page, otherwise the next or previous
+     * cursor of a page returned earlier for this topic.
+     * @param limit - the maximum number of posts on the page, 1 to 1000.
+     * @return The page if the topic exists and has posts in the requested
+     * direction, otherwise failure (or fatal on database errors).
+     */
+    public Result<TopicPageView> getTopicPage(long topicId, String cursor,
+                                              int limit);
+    
     /**
      * Like or unlike a topic. A topic is either liked or not, when calling this
      * twice in a row with the same parameters, the second call is a no-op (this
@@ -209,4 +222,29 @@ public interface APIProvider {
     public Result likePost(String username,
                            long topicId, int post,
                            boolean like);
+
+    /**
+     * Search posts by their text, best match first. Only the newest
+     * matches are ranked (see SearchIndex.CANDIDATES), so a common word
+     * finds recent posts rather than every post there is.
+     * @param query - the words to look for; a post must contain all of them.
+     * "A phrase" in double quotes must appear as it is, word* matches any
+     * word starting with word.
+     * @param page - 1 for the best 10 hits, 2 for the next 10 and so on.
+     * @return the hits on this page, an empty list if there are none;
+     * failure if the query has no words or the page is below 1, fatal on
+     * database errors.
+     */
+    public Result<List<PostView>> searchPosts(String query, int page);
+
+    /**
+     * Search topics by their title. Same query syntax and paging as
+     * searchPosts.
+     * @param query - the words to look for in titles.
+     * @param page - 1 for the best 10 hits, 2 for the next 10 and so on.
+     * @return the hits on this page, an empty list if there are none;
+     * failure if the query has no words or the page is below 1, fatal on
+     * database errors.
+     */
+    public Result<List<TopicSummaryView>> searchTopics(String query, int page);
 }
@@ -0,0 +1,131 @@
+package uk.ac.bris.cs.databases.api;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The asynchronous counterpart of APIProvider: every method starts the same
+ * operation and returns at once, completing the future with the Result that
+ * APIProvider would have returned. Futures never complete exceptionally with
+ * database errors (those are fatal results), only with programming errors
+ * such as a null parameter.
+ * @author csxdb
+ */
+public interface AsyncAPIProvider {
+
+    /**
+     * @see APIProvider#getUsers
+     */
+    public CompletableFuture<Result<Map<String, String>>> getUsers();
+
+    /**
+     * @see APIProvider#getPersonView
+     */
+    public CompletableFuture<Result<PersonView>> getPersonView(String username);
+
+    /**
+     * @see APIProvider#getSimpleForums
+     */
+    public CompletableFuture<Result<List<SimpleForumSummaryView>>> getSimpleForums();
+
+    /**
+     * @see APIProvider#countPostsInTopic
+     */
+    public CompletableFuture<Result<Integer>> countPostsInTopic(long topicId);
+
+    /**
+     * @see APIProvider#getLikers
+     */
+    public CompletableFuture<Result<List<PersonView>>> getLikers(long topicId);
+
+    /**
+     * @see APIProvider#getSimpleTopic
+     */
+    public CompletableFuture<Result<SimpleTopicView>> getSimpleTopic(long topicId);
+
+    /**
+     * @see APIProvider#getLatestPost
+     */
+    public CompletableFuture<Result<PostView>> getLatestPost(long topicId);
+
+    /**
+     * @see APIProvider#getForums
+     */
+    public CompletableFuture<Result<List<ForumSummaryView>>> getForums();
+
+    /**
+     * @see APIProvider#createForum
+     */
+    public CompletableFuture<Result> createForum(String title);
+
+    /**
+     * @see APIProvider#createPost
+     */
+    public CompletableFuture<Result> createPost(long topicId, String username, String text);
+
+    /**
+     * @see APIProvider#addNewPerson
+     */
+    public CompletableFuture<Result> addNewPerson(String name, String username, String studentId);
+
+    /**
+     * @see APIProvider#getForum
+     */
+    public CompletableFuture<Result<ForumView>> getForum(long id);
+
+    /**
+     * @see APIProvider#getTopic
+     */
+    public CompletableFuture<Result<TopicView>> getTopic(long topicId, int page);
+
+    /**
+     * @see APIProvider#getTopicPage
+     */
+    public CompletableFuture<Result<TopicPageView>> getTopicPage(long topicId, String cursor, int limit);
+
+    /**
+     * @see APIProvider#likeTopic
+     */
+    public CompletableFuture<Result> likeTopic(String username, long topicId, boolean like);
+
+    /**
+     * @see APIProvider#favouriteTopic
+     */
+    public CompletableFuture<Result> favouriteTopic(String username, long topicId, boolean fav);
+
+    /**
+     * @see APIProvider#createTopic
+     */
+    public CompletableFuture<Result> createTopic(long forumId, String username, String title, String text);
+
+    /**
+     * @see APIProvider#getAdvancedForums
+     */
+    public CompletableFuture<Result<List<AdvancedForumSummaryView>>> getAdvancedForums();
+
+    /**
+     * @see APIProvider#getAdvancedPersonView
+     */
+    public CompletableFuture<Result<AdvancedPersonView>> getAdvancedPersonView(String username);
+
+    /**
+     * @see APIProvider#getAdvancedForum
+     */
+    public CompletableFuture<Result<AdvancedForumView>> getAdvancedForum(long id);
+
+    /**
+     * @see APIProvider#likePost
+     */
+    public CompletableFuture<Result> likePost(String username, long topicId, int post, boolean like);
+
+    /**
+     * @see APIProvider#searchPosts
+     */
+    public CompletableFuture<Result<List<PostView>>> searchPosts(String query, int page);
+
+    /**
+     * @see APIProvider#searchTopics
+     */
+    public CompletableFuture<Result<List<TopicSummaryView>>> searchTopics(String query, int page);
+}
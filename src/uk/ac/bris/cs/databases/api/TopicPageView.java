@@ -0,0 +1,94 @@
+package uk.ac.bris.cs.databases.api;
+
+import java.util.List;
+import uk.ac.bris.cs.databases.util.Params;
+
+/**
+ * One page of a topic's posts, fetched by cursor rather than page number.
+ * @author csxdb
+ */
+public class TopicPageView {
+    
+    /* forumId and topicId identify this topic. */
+    private final long forumId;
+    private final long topicId;
+    
+    /* The name of the forum containing this topic. */
+    private final String forumName;
+    
+    /* The title of this topic. */
+    private final String title;
+    
+    /* The posts on this page, in the order that they were created. */
+    private final List<PostView> posts;
+    
+    /* Opaque tokens for the pages after and before this one,
+     * or NULL if there are no posts in that direction.
+     */
+    private final String nextCursor;
+    private final String previousCursor;
+
+    public TopicPageView(long forumId, long topicId, String forumName,
+            String title, List<PostView> posts, String nextCursor,
+            String previousCursor) {
+        
+        Params.cannotBeEmpty(forumName);
+        Params.cannotBeEmpty(title);
+        Params.cannotBeEmpty(posts);
+        
+        this.forumId = forumId;
+        this.topicId = topicId;
+        this.forumName = forumName;
+        this.title = title;
+        this.posts = posts;
+        this.nextCursor = nextCursor;
+        this.previousCursor = previousCursor;
+    }
+
+    public List<PostView> getPosts() {
+        return posts;
+    }
+    
+    /**
+     * @return the forumId
+     */
+    public long getForumId() {
+        return forumId;
+    }
+
+    /**
+     * @return the topicId
+     */
+    public long getTopicId() {
+        return topicId;
+    }
+
+    /**
+     * @return the forumName
+     */
+    public String getForumName() {
+        return forumName;
+    }
+
+    /**
+     * @return the title
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return the nextCursor
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * @return the previousCursor
+     */
+    public String getPreviousCursor() {
+        return previousCursor;
+    }
+    
+}
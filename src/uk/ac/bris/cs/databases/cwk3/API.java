@@ -1,6 +1,5 @@
 package uk.ac.bris.cs.databases.cwk3;
 
-import java.sql.Connection;
 import java.util.*;
 import uk.ac.bris.cs.databases.api.APIProvider;
 import uk.ac.bris.cs.databases.api.AdvancedForumSummaryView;
@@ -14,24 +13,125 @@ import uk.ac.bris.cs.databases.api.PersonView;
 import uk.ac.bris.cs.databases.api.SimpleForumSummaryView;
 import uk.ac.bris.cs.databases.api.SimpleTopicView;
 import uk.ac.bris.cs.databases.api.TopicView;
+import uk.ac.bris.cs.databases.api.TopicSummaryView;
+import uk.ac.bris.cs.databases.api.TopicPageView;
 
 import uk.ac.bris.cs.databases.api.SimplePostView;
 import uk.ac.bris.cs.databases.api.SimpleTopicSummaryView;
-import java.sql.DriverManager;
+import uk.ac.bris.cs.databases.cwk3.db.ConnectionManager;
+import uk.ac.bris.cs.databases.cwk3.db.ForumSummary;
+import uk.ac.bris.cs.databases.cwk3.db.Lease;
+import uk.ac.bris.cs.databases.cwk3.db.SearchIndex;
+import uk.ac.bris.cs.databases.cwk3.search.ForumSearch;
+import uk.ac.bris.cs.databases.cwk3.search.SearchEngine;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
 /**
- *
+ * All statements go through Lease.prepare, which caches them per connection,
+ * so the SQL passed to it must be constant text. Cached statements are never
+ * closed here - only their result sets are.
  * @author csxdb
  */
 public class API implements APIProvider {
 
-    private final Connection c;
+    /* Reads go to the read pool, mutations to the single writer. */
+    private final ConnectionManager db;
 
-    public API(Connection c) {
-        this.c = c;
+    /* The largest page getTopicPage will return. */
+    private static final int MAX_PAGE = 1000;
+
+    /* Keyset pages: the bounded subquery picks the post ids straight off
+     * the (topic, id) index, and only those rows are joined and grouped.
+     */
+    private static final String PAGE_SELECT =
+        "SELECT Post.id AS id, name, username, content, Post.created AS created, " +
+        "COUNT(LikePost.person) AS likes " +
+        "FROM (SELECT topic, id FROM Post WHERE topic = ? AND id %s ? ORDER BY id %s LIMIT ?) AS Page " +
+        "INNER JOIN Post ON (Post.topic = Page.topic AND Post.id = Page.id) " +
+        "INNER JOIN Person ON (Post.author = Person.id) " +
+        "LEFT JOIN LikePost ON (LikePost.topic = Post.topic AND LikePost.post = Post.id) " +
+        "GROUP BY Post.id ORDER BY Post.id %s";
+    private static final String PAGE_AFTER =
+        String.format(PAGE_SELECT, ">", "ASC", "ASC");
+    private static final String PAGE_BEFORE =
+        String.format(PAGE_SELECT, "<", "DESC", "DESC");
+    private static final String HAS_BEFORE =
+        "SELECT 1 FROM Post WHERE topic = ? AND id < ? LIMIT 1";
+    private static final String HAS_AFTER =
+        "SELECT 1 FROM Post WHERE topic = ? AND id > ? LIMIT 1";
+
+    /* Hits per page of searchPosts and searchTopics. */
+    private static final int SEARCH_PAGE = 10;
+
+    /* Search: the page of hits comes first (CROSS JOIN keeps it there) and
+     * only those rows are joined. PostSearch rowids are topic << 32 | id.
+     * With in-process search the same columns are read by key instead.
+     */
+    private static final String SEARCH_POST_COLUMNS =
+        "SELECT Topic.forum AS forum, Post.topic AS topic, Post.id AS id, name, username, " +
+        "content, Post.created AS created, " +
+        "(SELECT COUNT(*) FROM LikePost WHERE LikePost.topic = Post.topic " +
+        "AND LikePost.post = Post.id) AS likes ";
+    private static final String SEARCH_POST_JOINS =
+        "INNER JOIN Topic ON (Post.topic = Topic.id) " +
+        "INNER JOIN Person ON (Post.author = Person.id) ";
+    private static final String SEARCH_POSTS =
+        SEARCH_POST_COLUMNS +
+        "FROM (" + SearchIndex.hits("PostSearch") + ") AS Hit " +
+        "CROSS JOIN Post ON (Post.topic = Hit.hit >> 32 AND Post.id = (Hit.hit & 4294967295)) " +
+        SEARCH_POST_JOINS +
+        "ORDER BY Hit.score";
+    private static final String SEARCH_POST_BY_KEY =
+        SEARCH_POST_COLUMNS + "FROM Post " + SEARCH_POST_JOINS +
+        "WHERE Post.topic = ? AND Post.id = ?";
+    /* Post ids are dense, so the last post's id is the post count. */
+    private static final String SEARCH_TOPIC_COLUMNS =
+        "SELECT Topic.id AS id, Topic.forum AS forum, Topic.title AS title, " +
+        "Topic.created AS created, C.name AS creatorName, C.username AS creatorUsername, " +
+        "Last.id AS postCount, Last.created AS lastPostTime, A.name AS lastPostName, " +
+        "(SELECT COUNT(*) FROM LikeTopic WHERE LikeTopic.topic = Topic.id) AS likes ";
+    private static final String SEARCH_TOPIC_JOINS =
+        "INNER JOIN Person AS C ON (Topic.creator = C.id) " +
+        "INNER JOIN Post AS Last ON (Last.topic = Topic.id " +
+        "AND Last.id = (SELECT MAX(id) FROM Post WHERE topic = Topic.id)) " +
+        "INNER JOIN Person AS A ON (Last.author = A.id) ";
+    private static final String SEARCH_TOPICS =
+        SEARCH_TOPIC_COLUMNS +
+        "FROM (" + SearchIndex.hits("TopicSearch") + ") AS Hit " +
+        "CROSS JOIN Topic ON (Topic.id = Hit.hit) " +
+        SEARCH_TOPIC_JOINS +
+        "ORDER BY Hit.score";
+    private static final String SEARCH_TOPIC_BY_KEY =
+        SEARCH_TOPIC_COLUMNS + "FROM Topic " + SEARCH_TOPIC_JOINS +
+        "WHERE Topic.id = ?";
+
+    /* Queued like/favourite toggles; null unless write-behind is on. */
+    private final ToggleQueue toggles;
+
+    /* In-process search; null to search with the FTS5 tables. */
+    private final ForumSearch search;
+
+    public API(ConnectionManager db) {
+        this(db, null);
+    }
+
+    public API(ConnectionManager db, ToggleQueue toggles) {
+        this(db, toggles, null);
+    }
+
+    /**
+     * @param db - the database.
+     * @param toggles - if not null, likes and favourites are queued here and
+     * written behind instead of committed one by one.
+     * @param search - if not null, searches are ranked by this instead of
+     * by the FTS5 tables; only the hits are read from the database.
+     */
+    public API(ConnectionManager db, ToggleQueue toggles, ForumSearch search) {
+        this.db = db;
+        this.toggles = toggles;
+        this.search = search;
     }
 
     /**
@@ -42,14 +142,16 @@ public class API implements APIProvider {
 
     @Override
     public Result<Map<String, String>> getUsers() {
-      if (c == null) { throw new IllegalStateException(); }
+      if (db == null) { throw new IllegalStateException(); }
       Map<String, String> map = new HashMap<String, String>();
 
-      try (PreparedStatement p = c.prepareStatement(
-      "SELECT username, name FROM Person")) {
-         ResultSet r = p.executeQuery();
-         while (r.next()) {
-            map.put(r.getString("username"), r.getString("name"));
+      try (Lease l = db.read()) {
+         PreparedStatement p = l.prepare(
+         "SELECT username, name FROM Person");
+         try (ResultSet r = p.executeQuery()) {
+            while (r.next()) {
+               map.put(r.getString("username"), r.getString("name"));
+            }
          }
          return Result.success(map);
       } catch (SQLException e) {
@@ -64,20 +166,22 @@ public class API implements APIProvider {
 
     @Override
     public Result<PersonView> getPersonView(String username) {
-      if (c == null) { throw new IllegalStateException(); }
+      if (db == null) { throw new IllegalStateException(); }
       if (username == null || username.equals("")) {
          return Result.failure("Need a valid username");
       }
 
-      try (PreparedStatement p = c.prepareStatement(
-      "SELECT name, username, stuID FROM Person WHERE username = ?")) {
+      try (Lease l = db.read()) {
+         PreparedStatement p = l.prepare(
+         "SELECT name, username, stuID FROM Person WHERE username = ?");
          p.setString(1, username);
-         ResultSet r = p.executeQuery();
-         if (r.next()) {
-            PersonView pv = new PersonView(r.getString("name"), r.getString("username"), r.getString("stuID"));
-            return Result.success(pv);
-         } else {
-            return Result.failure("No user with this username");
+         try (ResultSet r = p.executeQuery()) {
+            if (r.next()) {
+               PersonView pv = new PersonView(r.getString("name"), r.getString("username"), stuId(r));
+               return Result.success(pv);
+            } else {
+               return Result.failure("No user with this username");
+            }
          }
       } catch (SQLException e) {
          return Result.fatal("Something bad happend: " + e);
@@ -92,18 +196,20 @@ public class API implements APIProvider {
 
     @Override
     public Result<List<SimpleForumSummaryView>> getSimpleForums() {
-      if (c == null) { throw new IllegalStateException(); }
+      if (db == null) { throw new IllegalStateException(); }
       List<SimpleForumSummaryView> list = new LinkedList<>();
       // Why not ArrayList? Because LinkedList is more faster for insert objects.
       // ArrayList is more faster for traverse, but we won't traverse in this case.
 
-      try (PreparedStatement p = c.prepareStatement(
-      "SELECT id, title FROM Forum ORDER BY title ASC")) {
-         ResultSet r = p.executeQuery();
-         while (r.next()) {
-            SimpleForumSummaryView sfsv = new SimpleForumSummaryView (r.getLong("id"), r.getString("title"));
-            // int -> long, implicit conversion
-            list.add(sfsv);
+      try (Lease l = db.read()) {
+         PreparedStatement p = l.prepare(
+         "SELECT id, title FROM Forum ORDER BY title ASC");
+         try (ResultSet r = p.executeQuery()) {
+            while (r.next()) {
+               SimpleForumSummaryView sfsv = new SimpleForumSummaryView (r.getLong("id"), r.getString("title"));
+               // int -> long, implicit conversion
+               list.add(sfsv);
+            }
          }
          return Result.success(list);
       } catch (SQLException e) {
@@ -118,18 +224,20 @@ public class API implements APIProvider {
 
     @Override
     public Result<Integer> countPostsInTopic(long topicId) {
-      if (c == null) { throw new IllegalStateException(); }
+      if (db == null) { throw new IllegalStateException(); }
 
-      try (PreparedStatement p = c.prepareStatement(
-      "SELECT COUNT(id) AS count FROM Post WHERE topic = ?")) {
+      try (Lease l = db.read()) {
+         PreparedStatement p = l.prepare(
+         "SELECT COUNT(id) AS count FROM Post WHERE topic = ?");
          p.setLong(1, topicId);
          // long -> int, constraint conversion "int(topicID)"
-         ResultSet r = p.executeQuery();
-         if (r.next()) {
-            int count = r.getInt("count");
-            return Result.success(count);
-         } else {
-            return Result.failure("No topic with this id");
+         try (ResultSet r = p.executeQuery()) {
+            if (r.next()) {
+               int count = r.getInt("count");
+               return Result.success(count);
+            } else {
+               return Result.failure("No topic with this id");
+            }
          }
       } catch (SQLException e) {
          return Result.fatal("Something bad happened: " + e);
@@ -144,29 +252,45 @@ public class API implements APIProvider {
 
     @Override
     public Result<List<PersonView>> getLikers(long topicId) {
-      if (c == null) { throw new IllegalStateException(); }
-      List<PersonView> list = new LinkedList<>();
+      if (db == null) { throw new IllegalStateException(); }
+      List<PersonView> list = new ArrayList<>();
 
-      try (PreparedStatement p1 = c.prepareStatement(
-      "SELECT * FROM Topic WHERE id = ?")) {
-         p1.setLong(1, topicId);
-         ResultSet r1 = p1.executeQuery();
-         if (r1.next()) {
-            try (PreparedStatement p2 = c.prepareStatement(
-            "SELECT name, username, stuID FROM Person INNER JOIN LikeTopic ON (id = person) " +
-            "WHERE topic = ? ORDER BY name ASC")) {
-               p2.setLong(1, topicId);
-               ResultSet r2 = p2.executeQuery();
-               while (r2.next()) {
-                  PersonView pv = new PersonView(r2.getString("name"), r2.getString("username"), r2.getString("stuID"));
-                  list.add(pv);
+      try (Lease l = db.read()) {
+         ToggleQueue.Overlay o = overlay();
+         if (!topicExists(l, topicId)) {
+            return Result.failure("No Topic with this id");
+         }
+         Map<Long, Boolean> queued = o.topicLikers(topicId);
+         PreparedStatement p = l.prepare(
+         "SELECT Person.id AS id, name, username, stuID FROM LikeTopic INNER JOIN Person ON (Person.id = LikeTopic.person) " +
+         "WHERE LikeTopic.topic = ? ORDER BY name ASC");
+         p.setLong(1, topicId);
+         try (ResultSet r = p.executeQuery()) {
+            while (r.next()) {
+               Boolean on = queued.remove(r.getLong("id"));
+               if (on != null && !on) {
+                  continue; // unliked, not yet written
+               }
+               PersonView pv = new PersonView(r.getString("name"), r.getString("username"), stuId(r));
+               list.add(pv);
+            }
+         }
+         queued.values().removeIf(on -> !on);
+         if (!queued.isEmpty()) {
+            // liked, not yet written
+            PreparedStatement p2 = l.prepare(
+            "SELECT name, username, stuID FROM Person WHERE id = ?");
+            for (long person : queued.keySet()) {
+               p2.setLong(1, person);
+               try (ResultSet r = p2.executeQuery()) {
+                  if (r.next()) {
+                     list.add(new PersonView(r.getString("name"), r.getString("username"), stuId(r)));
+                  }
                }
-               return Result.success(list);
-            } catch (SQLException e) {
-               return Result.fatal("Something bad happened: " + e);
             }
+            list.sort(Comparator.comparing(PersonView::getName));
          }
-         else return Result.failure("No Topic with this id");
+         return Result.success(list);
       } catch (SQLException e) {
          return Result.fatal("Something bad happened: " + e);
       }
@@ -182,29 +306,31 @@ public class API implements APIProvider {
 
     @Override
     public Result<SimpleTopicView> getSimpleTopic(long topicId) {
-      if (c == null) { throw new IllegalStateException(); }
+      if (db == null) { throw new IllegalStateException(); }
       List<SimplePostView> list = new LinkedList<>();
 
-      try (PreparedStatement p1 = c.prepareStatement(
-      "SELECT title FROM Topic WHERE id = ?")) {
+      try (Lease l = db.read()) {
+         PreparedStatement p1 = l.prepare(
+         "SELECT title FROM Topic WHERE id = ?");
          p1.setLong(1, topicId);
-         ResultSet r1 = p1.executeQuery();
-         if (r1.next()) {
-            try (PreparedStatement p2 = c.prepareStatement(
-            "SELECT id, author, content, created FROM Post WHERE topic = ?")) {
-               p2.setLong(1, topicId);
-               ResultSet r2 = p2.executeQuery();
-               while (r2.next()) {
-                  SimplePostView spv = new SimplePostView(r2.getInt("id"), r2.getString("author"), r2.getString("content"), r2.getInt("created"));
-                  list.add(spv);
-               }
-               SimpleTopicView stv = new SimpleTopicView(topicId, r1.getString("title"), list);
-               return Result.success(stv);
-            } catch (SQLException e) {
-               return Result.fatal("Something bad happened: " + e);
+         String title;
+         try (ResultSet r1 = p1.executeQuery()) {
+            if (!r1.next()) {
+               return Result.failure("No Topic with this id");
             }
+            title = r1.getString("title");
          }
-         else return Result.failure("No Topic with this id");
+         PreparedStatement p2 = l.prepare(
+         "SELECT id, author, content, created FROM Post WHERE topic = ?");
+         p2.setLong(1, topicId);
+         try (ResultSet r2 = p2.executeQuery()) {
+            while (r2.next()) {
+               SimplePostView spv = new SimplePostView(r2.getInt("id"), r2.getString("author"), r2.getString("content"), r2.getInt("created"));
+               list.add(spv);
+            }
+         }
+         SimpleTopicView stv = new SimpleTopicView(topicId, title, list);
+         return Result.success(stv);
       } catch (SQLException e) {
          return Result.fatal("Something bad happened: " + e);
       }
@@ -218,36 +344,37 @@ public class API implements APIProvider {
 
     @Override
     public Result<PostView> getLatestPost(long topicId) {
-      if (c == null) { throw new IllegalStateException(); }
+      if (db == null) { throw new IllegalStateException(); }
 
-      try (PreparedStatement p1 = c.prepareStatement(
-      "SELECT * FROM Topic WHERE id = ?")) {
-         p1.setLong(1, topicId);
-         ResultSet r1 = p1.executeQuery();
-         if (r1.next()) {
-            try (PreparedStatement p2 = c.prepareStatement(
-            "SELECT forum, topic, Post.id, name, username, content, created" +
-            "FROM Post INNER JOIN Topic ON (Post.topic = Topic.id)" +
-            "INNER JOIN Person ON (Post.author = Person.id)" +
-            "WHERE topic = ? ORDER BY create DESC LIMIT 0,1")) {
-               p2.setLong(1, topicId);
-               ResultSet r2 = p2.executeQuery();
-               if (r2.next()) {
-                  PostView pv = new PostView(r2.getLong("forum"), r2.getLong("topic"),
-                  r2.getInt("Post.id"), r2.getString("name"), r2.getString("username"),
-                  r2.getString("content"), r2.getInt("created"), likes(r2.getInt("Post.id")));
-                  return Result.success(pv);
-               }
-               else {
-                  return Result.failure("No Post in this topic");
-               }
-            } catch (SQLException e) {
-               return Result.fatal("Something bad happened: " + e);
-            }
-         }
-         else {
+      try (Lease l = db.read()) {
+         ToggleQueue.Overlay o = overlay();
+         if (!topicExists(l, topicId)) {
             return Result.failure("No Topic with this id");
          }
+         // The latest post is the highest numbered one; its like count comes
+         // from the same statement.
+         PreparedStatement p = l.prepare(
+         "SELECT Topic.forum AS forum, Post.topic AS topic, Post.id AS id, name, username, " +
+         "content, Post.created AS created, COUNT(LikePost.person) AS likes " +
+         "FROM Post INNER JOIN Topic ON (Post.topic = Topic.id) " +
+         "INNER JOIN Person ON (Post.author = Person.id) " +
+         "LEFT JOIN LikePost ON (LikePost.topic = Post.topic AND LikePost.post = Post.id) " +
+         "WHERE Post.topic = ? AND Post.id = (SELECT MAX(id) FROM Post WHERE topic = ?) " +
+         "GROUP BY Post.id");
+         p.setLong(1, topicId);
+         p.setLong(2, topicId);
+         try (ResultSet r = p.executeQuery()) {
+            if (r.next()) {
+               PostView pv = new PostView(r.getLong("forum"), r.getLong("topic"),
+               r.getInt("id"), r.getString("name"), r.getString("username"),
+               r.getString("content"), r.getInt("created"),
+               r.getInt("likes") + o.postLikes(topicId).getOrDefault(r.getInt("id"), 0));
+               return Result.success(pv);
+            }
+            else {
+               return Result.failure("No Post in this topic");
+            }
+         }
       } catch (SQLException e) {
          return Result.fatal("Something bad happened: " + e);
       }
@@ -262,18 +389,22 @@ public class API implements APIProvider {
 
     @Override
     public Result<List<ForumSummaryView>> getForums() {
-      if (c == null) { throw new IllegalStateException(); }
+      if (db == null) { throw new IllegalStateException(); }
       List<ForumSummaryView> list = new LinkedList<>();
 
-      try (PreparedStatement p = c.prepareStatement(
-      "SELECT Forum.id, Forum.title, Topic.id, Topic.title" +
-      "FROM Forum INNER JOIN Topic ON (Topic.forum = Forum.id)" +
-      "GROUP BY Forum.id HAVING create = max(create) ORDER BY Forum.title ASC")) {
-         ResultSet r = p.executeQuery();
-         while (r.next()) {
-            SimpleTopicSummaryView stsv = new SimpleTopicSummaryView(r.getLong("Topic.id"), r.getLong("Forum.id"), r.getString("Forum.title"));
-            ForumSummaryView fsv = new ForumSummaryView(r.getLong("Forum.id"), r.getString("Forum.title"), stsv);
-            list.add(fsv);
+      try (Lease l = db.read()) {
+         // One row per forum, kept up to date by the writes (see ForumSummary).
+         PreparedStatement p = l.prepare(
+         "SELECT forum, title, topic, topicTitle FROM ForumSummary ORDER BY title ASC");
+         try (ResultSet r = p.executeQuery()) {
+            while (r.next()) {
+               long forumId = r.getLong("forum");
+               long topicId = r.getLong("topic");
+               SimpleTopicSummaryView stsv = r.wasNull() ? null
+                  : new SimpleTopicSummaryView(topicId, forumId, r.getString("topicTitle"));
+               ForumSummaryView fsv = new ForumSummaryView(forumId, r.getString("title"), stsv);
+               list.add(fsv);
+            }
          }
          return Result.success(list);
       } catch (SQLException e) {
@@ -292,30 +423,25 @@ public class API implements APIProvider {
       if (title == null || title.equals("")) {
         return Result.failure("Need a valid title");
       }
-      final String SQL1 = "SELECT * FROM forum WHERE title = ?";
-      try (PreparedStatement p = c.prepareStatement(SQL1)) {
-           p.setString(1, title);
-           ResultSet r = p.executeQuery();
-           if (r.next()) {
-                   return Result.failure("title is duplicated");
-           }
-      } catch (SQLException e) {
-           return Result.fatal("Something bad happened: " + e);
-      }
-      final String SQL2 = "INSERT INTO forum (title) VALUES (?)";
-      try (PreparedStatement p = c.prepareStatement(SQL2)) {
-           p.setString(1, title);
-           int iResult=p.executeUpdate();
-           if(iResult==0){
-              return Result.failure("insert  is failied ");
-           }
-           else
-              return Result.success();
-
-      } catch (SQLException e) {
-           return Result.fatal("Something bad happened: " + e);
-      }
-
+      return db.write(l -> {
+         final String SQL1 = "SELECT * FROM forum WHERE title = ?";
+         PreparedStatement p1 = l.prepare(SQL1);
+         p1.setString(1, title);
+         try (ResultSet r = p1.executeQuery()) {
+              if (r.next()) {
+                      return Result.failure("title is duplicated");
+              }
+         }
+         final String SQL2 = "INSERT INTO forum (title) VALUES (?)";
+         PreparedStatement p2 = l.prepare(SQL2);
+         p2.setString(1, title);
+         int iResult=p2.executeUpdate();
+         if(iResult==0){
+            return Result.failure("insert  is failied ");
+         }
+         l.prepare(ForumSummary.ON_FORUM).executeUpdate();
+         return Result.success();
+      });
     }
     /**
      * Create a new forum.
@@ -330,44 +456,36 @@ public class API implements APIProvider {
       if (text == null || text.equals("")) {
       return Result.failure("Need a valid text");
      }
-     final String SQL1 = "SELECT * FROM topic WHERE topicId = ?";
-     try (PreparedStatement p = c.prepareStatement(SQL1)) {
-           p.setInt(1, (int)topicId);
-           ResultSet r = p.executeQuery();
-           if (!r.next()) {
-              return Result.failure("Topic ID does not exist!");
-           }
-     } catch (SQLException e) {
-           return Result.fatal("Something bad happened: " + e);
-     }
-     final String SQL2 = "SELECT * FROM person WHERE username = ?";
-     try (PreparedStatement p = c.prepareStatement(SQL2)) {
-           p.setString(1, username);
-           ResultSet r = p.executeQuery();
-           if (!r.next()) {
-              return Result.failure("username does not exist!");
-           }
-     } catch (SQLException e) {
-           return Result.fatal("Something bad happened: " + e);
-     }
-     final String SQL3 = "INSERT INTO post( topic,author,posttext,created) VALUSE ( ?,?,?,?)";
-     try (PreparedStatement p = c.prepareStatement(SQL3)) {
-           p.setInt(1, (int)topicId);
-           p.setString(2,username);
-           p.setString(3,text);
-           java.util.Date date=new java.util.Date();
-           p.setInt(4,(int)date.getTime());
-
-           int iResult = p.executeUpdate();
-           if (iResult==0) {
-              return Result.failure("Can not insert a post!");
-           }
-           else {
-              return Result.success();
-           }
-     } catch (SQLException e) {
-           return Result.fatal("Something bad happened: " + e);
+     Result written = db.write(l -> {
+        if (!topicExists(l, topicId)) {
+           return Result.failure("Topic ID does not exist!");
+        }
+        if (!personExists(l, username)) {
+           return Result.failure("username does not exist!");
+        }
+        // Post ids are numbered from 1 within each topic.
+        final String SQL3 = "INSERT INTO Post (id, topic, author, content, created) " +
+        "SELECT COALESCE(MAX(Post.id), 0) + 1, ?, Person.id, ?, ? " +
+        "FROM Person LEFT JOIN Post ON (Post.topic = ?) WHERE Person.username = ?";
+        PreparedStatement p = l.prepare(SQL3);
+        p.setLong(1, topicId);
+        p.setString(2, text);
+        p.setLong(3, System.currentTimeMillis() / 1000);
+        p.setLong(4, topicId);
+        p.setString(5, username);
+
+        int iResult = p.executeUpdate();
+        if (iResult==0) {
+           return Result.failure("Can not insert a post!");
+        }
+        l.prepare(SearchIndex.ON_POST).executeUpdate();
+        updateSummary(l, topicId);
+        return Result.success();
+     });
+     if (search != null && written.isSuccess()) {
+        search.changed();
      }
+     return written;
     }
     /**
      * Create a post in an existing topic.
@@ -390,50 +508,22 @@ public class API implements APIProvider {
          if (studentId != null && studentId.equals("")) {
               return Result.failure("Need a valid studentID");
          }
-         final String SQL1 = "SELECT * FROM person WHERE username = ?";
-         try (PreparedStatement p = c.prepareStatement(SQL1)) {
-              p.setString(1, username);
-              ResultSet r = p.executeQuery();
-              if (r.next()) {
-                 return Result.failure("username duplicates!");
-              }
-         } catch (SQLException e) {
-              return Result.fatal("Something bad happened: " + e);
-         }
-
-
-         if(studentId==null) {
-              final String SQL3 = "INSERT INTO person ( name,username) VALUSE ( ?,?)";
-              try (PreparedStatement p = c.prepareStatement(SQL3)) {
-                 p.setString(1, name);
-                 p.setString(2, username);
-                 int iResult = p.executeUpdate();
-                 if (iResult == 0) {
-                      return Result.failure("Can not insert a person!");
-                 } else {
-                      return Result.success();
-                 }
-              } catch (SQLException e) {
-                 return Result.fatal("Something bad happened: " + e);
-              }
-         }
-         else
-         {
-              final String SQL3 = "INSERT INTO person ( name,username,stuID) VALUSE ( ?,?,?)";
-              try (PreparedStatement p = c.prepareStatement(SQL3)) {
-                 p.setString(1, name);
-                 p.setString(2, username);
-                 p.setString(3, studentId);
-                 int iResult = p.executeUpdate();
-                 if (iResult == 0) {
-                      return Result.failure("Can not insert a person!");
-                 } else {
-                      return Result.success();
-                 }
-              } catch (SQLException e) {
-                 return Result.fatal("Something bad happened: " + e);
-              }
-         }
+         return db.write(l -> {
+            if (personExists(l, username)) {
+               return Result.failure("username duplicates!");
+            }
+            final String SQL3 = "INSERT INTO person ( name,username,stuID) VALUES ( ?,?,?)";
+            PreparedStatement p = l.prepare(SQL3);
+            p.setString(1, name);
+            p.setString(2, username);
+            p.setString(3, studentId);
+            int iResult = p.executeUpdate();
+            if (iResult == 0) {
+                 return Result.failure("Can not insert a person!");
+            } else {
+                 return Result.success();
+            }
+         });
     }
     /**
      * Create a new person.
@@ -449,29 +539,31 @@ public class API implements APIProvider {
 
     @Override
     public Result<ForumView> getForum(long id) {
-      if (c == null) { throw new IllegalStateException(); }
+      if (db == null) { throw new IllegalStateException(); }
       List<SimpleTopicSummaryView> list = new LinkedList<>();
 
-      try (PreparedStatement p1 = c.prepareStatement(
-      "SELECT title FROM Forum WHERE id = ?")) {
+      try (Lease l = db.read()) {
+         PreparedStatement p1 = l.prepare(
+         "SELECT title FROM Forum WHERE id = ?");
          p1.setLong(1, id);
-         ResultSet r1 = p1.executeQuery();
-         if (r1.next()) {
-            try (PreparedStatement p2 = c.prepareStatement(
-            "SELECT id, forum, title FROM Topic WHERE forum = ?")) {
-               p2.setLong(1, id);
-               ResultSet r2 = p2.executeQuery();
-               while (r2.next()) {
-                  SimpleTopicSummaryView stsv = new SimpleTopicSummaryView(r2.getLong("id"), r2.getLong("forum"), r2.getString("title"));
-                  list.add(stsv);
-               }
-               ForumView fv = new ForumView(id, r1.getString("title"), list);
-               return Result.success(fv);
-            } catch (SQLException e) {
-               return Result.fatal("Something bad happened: " + e);
+         String title;
+         try (ResultSet r1 = p1.executeQuery()) {
+            if (!r1.next()) {
+               return Result.failure("No Forum with this id");
+            }
+            title = r1.getString("title");
+         }
+         PreparedStatement p2 = l.prepare(
+         "SELECT id, forum, title FROM Topic WHERE forum = ?");
+         p2.setLong(1, id);
+         try (ResultSet r2 = p2.executeQuery()) {
+            while (r2.next()) {
+               SimpleTopicSummaryView stsv = new SimpleTopicSummaryView(r2.getLong("id"), r2.getLong("forum"), r2.getString("title"));
+               list.add(stsv);
             }
          }
-         else return Result.failure("No Forum with this id");
+         ForumView fv = new ForumView(id, title, list);
+         return Result.success(fv);
       } catch (SQLException e) {
          return Result.fatal("Something bad happened: " + e);
       }
@@ -484,41 +576,57 @@ public class API implements APIProvider {
 
     @Override
     public Result<TopicView> getTopic(long topicId, int page) {
-      if (c == null) { throw new IllegalStateException(); }
+      if (db == null) { throw new IllegalStateException(); }
       List<PostView> list = new LinkedList<>();
 
-      try (PreparedStatement p1 = c.prepareStatement(
-      "SELECT Forum.id, Fourm.title, Topic.title" +
-      "FROM Forum INNER JOIN Topic ON (Topic.forum = Forum.id) WHERE Topic.id = ?")) {
+      try (Lease l = db.read()) {
+         ToggleQueue.Overlay o = overlay();
+         PreparedStatement p1 = l.prepare(
+         "SELECT Forum.id AS forumId, Forum.title AS forumTitle, Topic.title AS topicTitle " +
+         "FROM Forum INNER JOIN Topic ON (Topic.forum = Forum.id) WHERE Topic.id = ?");
          p1.setLong(1, topicId);
-         ResultSet r1 = p1.executeQuery();
-         if (r1.next()) {
-            try (PreparedStatement p2 = c.prepareStatement(
-            "SELECT Post.id, name, username, content, created" +
-            "FROM Post INNER JOIN Penson ON (author = Person.id)" +
-            "WHERE topic = ? AND Post.id > ? AND Post.id < ? ORDER BY Post.id ASC")) {
-               p2.setLong(1,topicId);
-               p2.setLong(2,10*(page-1)+1);
-               if (page != 0) p2.setLong(3,10*page);
-               else p2.setLong(3,100000);
-               // In our case, we regards that 100000 is the max posts in a topic
-               ResultSet r2 = p2.executeQuery();
-               while (r2.next()) {
-                     PostView pv = new PostView(r1.getLong("Forum.id"), topicId,
-                     r2.getInt("Post.id"), r2.getString("name"), r2.getString("username"),
-                     r2.getString("content"), r2.getInt("created"), likes(r2.getInt("Post.id")));
-                     list.add(pv);
-               }
-               if (list.size() > 0) {
-                  TopicView tv = new TopicView(r1.getLong("Forum.id"), topicId, r1.getString("Forum.title"), r1.getString("Topic.title"), list, page);
-                  return Result.success(tv);
-               }
-               else return Result.failure("No Post in appointed range");
-            } catch (SQLException e) {
-               return Result.fatal("Something bad happened: " + e);
+         long forumId;
+         String forumTitle, topicTitle;
+         try (ResultSet r1 = p1.executeQuery()) {
+            if (!r1.next()) {
+               return Result.failure("No Topic with this id");
             }
+            forumId = r1.getLong("forumId");
+            forumTitle = r1.getString("forumTitle");
+            topicTitle = r1.getString("topicTitle");
+         }
+         // Posts and their like counts in one grouped pass, rather than one
+         // count query per post.
+         PreparedStatement p2 = l.prepare(
+         "SELECT Post.id AS id, name, username, content, Post.created AS created, " +
+         "COUNT(LikePost.person) AS likes " +
+         "FROM Post INNER JOIN Person ON (Post.author = Person.id) " +
+         "LEFT JOIN LikePost ON (LikePost.topic = Post.topic AND LikePost.post = Post.id) " +
+         "WHERE Post.topic = ? AND Post.id BETWEEN ? AND ? " +
+         "GROUP BY Post.id ORDER BY Post.id ASC");
+         p2.setLong(1,topicId);
+         if (page != 0) {
+            p2.setLong(2,10*(page-1)+1);
+            p2.setLong(3,10*page);
+         } else {
+            p2.setLong(2,1);
+            p2.setLong(3,Integer.MAX_VALUE);
+         }
+         Map<Integer, Integer> queued = o.postLikes(topicId);
+         try (ResultSet r2 = p2.executeQuery()) {
+            while (r2.next()) {
+                  PostView pv = new PostView(forumId, topicId,
+                  r2.getInt("id"), r2.getString("name"), r2.getString("username"),
+                  r2.getString("content"), r2.getInt("created"),
+                  r2.getInt("likes") + queued.getOrDefault(r2.getInt("id"), 0));
+                  list.add(pv);
+            }
+         }
+         if (list.size() > 0) {
+            TopicView tv = new TopicView(forumId, topicId, forumTitle, topicTitle, list, page);
+            return Result.success(tv);
          }
-         else return Result.failure("No Topic with this id");
+         else return Result.failure("No Post in appointed range");
       } catch (SQLException e) {
          return Result.fatal("Something bad happened: " + e);
       }
@@ -534,45 +642,124 @@ public class API implements APIProvider {
      */
 
     @Override
-    public Result likeTopic(String username, long topicId, boolean like) {
+    public Result<TopicPageView> getTopicPage(long topicId, String cursor,
+                                              int limit) {
+      if (db == null) { throw new IllegalStateException(); }
+      if (limit < 1 || limit > MAX_PAGE) {
+         return Result.failure("Page size must be between 1 and " + MAX_PAGE);
+      }
+      PostCursor c = cursor == null ? new PostCursor(true, 0)
+                                    : PostCursor.decode(cursor);
       if (c == null) {
+         return Result.failure("Invalid cursor");
+      }
+
+      try (Lease l = db.read()) {
+         ToggleQueue.Overlay o = overlay();
+         PreparedStatement p1 = l.prepare(
+         "SELECT Forum.id AS forumId, Forum.title AS forumTitle, Topic.title AS topicTitle " +
+         "FROM Forum INNER JOIN Topic ON (Topic.forum = Forum.id) WHERE Topic.id = ?");
+         p1.setLong(1, topicId);
+         long forumId;
+         String forumTitle, topicTitle;
+         try (ResultSet r1 = p1.executeQuery()) {
+            if (!r1.next()) {
+               return Result.failure("No Topic with this id");
+            }
+            forumId = r1.getLong("forumId");
+            forumTitle = r1.getString("forumTitle");
+            topicTitle = r1.getString("topicTitle");
+         }
+         // Seek to the anchor on the (topic, id) index and read at most one
+         // row more than the page, so the cost does not depend on how deep
+         // into the topic the page is. The extra row tells us whether there
+         // is another page in the same direction.
+         PreparedStatement p2 = l.prepare(c.after ? PAGE_AFTER : PAGE_BEFORE);
+         p2.setLong(1, topicId);
+         p2.setInt(2, c.anchor);
+         p2.setInt(3, limit + 1);
+         List<PostView> list = new ArrayList<>(limit + 1);
+         Map<Integer, Integer> queued = o.postLikes(topicId);
+         try (ResultSet r2 = p2.executeQuery()) {
+            while (r2.next()) {
+                  list.add(new PostView(forumId, topicId,
+                  r2.getInt("id"), r2.getString("name"), r2.getString("username"),
+                  r2.getString("content"), r2.getInt("created"),
+                  r2.getInt("likes") + queued.getOrDefault(r2.getInt("id"), 0)));
+            }
+         }
+         if (list.isEmpty()) {
+            return Result.failure("No Post in appointed range");
+         }
+         boolean more = list.size() > limit;
+         if (more) {
+            list.remove(list.size() - 1);
+         }
+         if (!c.after) {
+            Collections.reverse(list);
+         }
+         int first = list.get(0).getPostNumber();
+         int last = list.get(list.size() - 1).getPostNumber();
+
+         // Only the direction we came from needs a probe.
+         boolean other;
+         if (cursor == null) {
+            other = false;
+         } else {
+            PreparedStatement p3 = l.prepare(c.after ? HAS_BEFORE : HAS_AFTER);
+            p3.setLong(1, topicId);
+            p3.setInt(2, c.after ? first : last);
+            try (ResultSet r3 = p3.executeQuery()) {
+               other = r3.next();
+            }
+         }
+         boolean hasNext = c.after ? more : other;
+         boolean hasPrevious = c.after ? other : more;
+
+         return Result.success(new TopicPageView(forumId, topicId,
+            forumTitle, topicTitle, list,
+            hasNext ? PostCursor.after(last) : null,
+            hasPrevious ? PostCursor.before(first) : null));
+      } catch (SQLException e) {
+         return Result.fatal("Something bad happened: " + e);
+      }
+    }
+    /**
+     * Get a page of a topic's posts by cursor.
+     * @param topicId - the topic to get.
+     * @param cursor - null for the first page, otherwise a cursor from an
+     * earlier page of this topic.
+     * @param limit - the maximum number of posts on the page.
+     * @return The page if the topic exists and has posts in the requested
+     * direction, otherwise failure (or fatal on database errors).
+     */
+
+    @Override
+    public Result likeTopic(String username, long topicId, boolean like) {
+      if (db == null) {
            throw new IllegalStateException();
        }
-       if (!existTable(topicId)) return Result.failure("No topic with this id");
-       if(!getPersonView(username).isSuccess()) return Result.failure("No user with this username");
-       if (like) {
-           try (PreparedStatement p = c.prepareStatement("INSERT OR IGNORE INTO LikeTopic(person,topic) Values(?, ?)")) {
-               p.setLong(2, topicId);
-               p.setString(1, username);
-               p.execute();
-               c.commit();
-           }
-           catch (SQLException e) {
-               try {
-                    c.rollback();
-               } catch (SQLException e1) {
-                    return Result.fatal("Error near rollback");
-               }
-               return Result.fatal("Something bad happened: " + e);
-           }
+       if (toggles != null) {
+          return toggles.toggle(ToggleQueue.Kind.LIKE_TOPIC, username, topicId, 0, like);
        }
-       else{
-           try (PreparedStatement p = c.prepareStatement("DELETE FROM LikeTopic WHERE person=? and topic=?")) {
-               p.setLong(2, topicId);
-               p.setString(1, username);
-                 p.execute();
-               c.commit();
-           }
-           catch (SQLException e) {
-               try {
-                    c.rollback();
-               } catch (SQLException e1) {
-                    return Result.fatal("Error near rollback");
-               }
-               return Result.fatal("Something bad happened: " + e);
-           }
-       }
-       return Result.success();
+       return db.write(l -> {
+          if (!topicExists(l, topicId)) return Result.failure("No topic with this id");
+          if (!personExists(l, username)) return Result.failure("No user with this username");
+          // (topic, person) is the primary key, so liking twice is ignored
+          final String SQL = like
+             ? "INSERT OR IGNORE INTO LikeTopic(topic,person) SELECT ?, id FROM Person WHERE username = ?"
+             : "DELETE FROM LikeTopic WHERE topic=? and person=(SELECT id FROM Person WHERE username = ?)";
+          PreparedStatement p = l.prepare(SQL);
+          p.setLong(1, topicId);
+          p.setString(2, username);
+          if (p.executeUpdate() > 0) {
+             PreparedStatement s = l.prepare(ForumSummary.ON_LIKE);
+             s.setInt(1, like ? 1 : -1);
+             s.setLong(2, topicId);
+             s.executeUpdate();
+          }
+          return Result.success();
+       });
     }
     /**
      * Like or unlike a topic. A topic is either liked or not, when calling this
@@ -587,44 +774,24 @@ public class API implements APIProvider {
 
     @Override
     public Result favouriteTopic(String username, long topicId, boolean fav) {
-      if (c == null) {
+      if (db == null) {
           throw new IllegalStateException();
       }
-      if (!existTable(topicId)) return Result.failure("No topic with this id");
-      if(!getPersonView(username).isSuccess()) return Result.failure("No user with this username");
-      if (fav) {
-          try (PreparedStatement p = c.prepareStatement("INSERT OR IGNORE INTO FavTopic(person,topic) Values(?, ?)")) {
-               p.setLong(2, topicId);
-               p.setString(1, username);
-               p.execute();
-               c.commit();
-          }
-          catch (SQLException e) {
-               try {
-                   c.rollback();
-               } catch (SQLException e1) {
-                   return Result.fatal("Error near rollback");
-               }
-               return Result.fatal("Something bad happened: " + e);
-          }
+      if (toggles != null) {
+         return toggles.toggle(ToggleQueue.Kind.FAV_TOPIC, username, topicId, 0, fav);
       }
-      else{
-          try (PreparedStatement p = c.prepareStatement("DELETE FROM FavTopic WHERE person=? and topic=?")) {
-               p.setLong(2, topicId);
-               p.setString(1, username);
-               p.execute();
-               c.commit();
-          }
-          catch (SQLException e) {
-               try {
-                   c.rollback();
-               } catch (SQLException e1) {
-                   return Result.fatal("Error near rollback");
-               }
-               return Result.fatal("Something bad happened: " + e);
-          }
-      }
-      return Result.success();
+      return db.write(l -> {
+         if (!topicExists(l, topicId)) return Result.failure("No topic with this id");
+         if (!personExists(l, username)) return Result.failure("No user with this username");
+         final String SQL = fav
+            ? "INSERT OR IGNORE INTO FavTopic(topic,person) SELECT ?, id FROM Person WHERE username = ?"
+            : "DELETE FROM FavTopic WHERE topic=? and person=(SELECT id FROM Person WHERE username = ?)";
+         PreparedStatement p = l.prepare(SQL);
+         p.setLong(1, topicId);
+         p.setString(2, username);
+         p.execute();
+         return Result.success();
+      });
     }
     /**
      * Set or unset a topic as favourite. Same semantics as likeTopic.
@@ -637,12 +804,80 @@ public class API implements APIProvider {
 
     @Override
     public Result createTopic(long forumId, String username, String title, String text) {
-        throw new UnsupportedOperationException("Not supported yet.");
+      if (title == null || title.equals("")) {
+         return Result.failure("Need a valid title");
+      }
+      if (text == null || text.equals("")) {
+         return Result.failure("Need a valid text");
+      }
+      Result written = db.write(l -> {
+         if (!forumExists(l, forumId)) {
+            return Result.failure("No forum with this id");
+         }
+         if (!personExists(l, username)) {
+            return Result.failure("No user with this username");
+         }
+         long created = System.currentTimeMillis() / 1000;
+         PreparedStatement p1 = l.prepare(
+         "INSERT INTO Topic (title, forum, creator, created) " +
+         "SELECT ?, ?, id, ? FROM Person WHERE username = ?");
+         p1.setString(1, title);
+         p1.setLong(2, forumId);
+         p1.setLong(3, created);
+         p1.setString(4, username);
+         p1.executeUpdate();
+         long topicId;
+         try (ResultSet r = l.prepare("SELECT last_insert_rowid()").executeQuery()) {
+            r.next();
+            topicId = r.getLong(1);
+         }
+         PreparedStatement p2 = l.prepare(
+         "INSERT INTO Post (id, topic, author, content, created) " +
+         "SELECT 1, id, creator, ?, created FROM Topic WHERE id = ?");
+         p2.setString(1, text);
+         p2.setLong(2, topicId);
+         p2.executeUpdate();
+         l.prepare(SearchIndex.ON_POST).executeUpdate();
+         PreparedStatement p3 = l.prepare(SearchIndex.ON_TOPIC);
+         p3.setLong(1, topicId);
+         p3.executeUpdate();
+         updateSummary(l, topicId);
+         return Result.success();
+      });
+      if (search != null && written.isSuccess()) {
+         search.changed();
+      }
+      return written;
     }
 
     @Override
     public Result<List<AdvancedForumSummaryView>> getAdvancedForums() {
-        throw new UnsupportedOperationException("Not supported yet.");
+      if (db == null) { throw new IllegalStateException(); }
+      List<AdvancedForumSummaryView> list = new ArrayList<>();
+
+      try (Lease l = db.read()) {
+         ToggleQueue.Overlay o = overlay();
+         PreparedStatement p = l.prepare(
+         "SELECT forum, title, topic, topicTitle, topicCreated, creatorName, " +
+         "creatorUsername, postCount, lastPostTime, lastPostName, likes " +
+         "FROM ForumSummary ORDER BY title ASC");
+         try (ResultSet r = p.executeQuery()) {
+            while (r.next()) {
+               long forumId = r.getLong("forum");
+               long topicId = r.getLong("topic");
+               TopicSummaryView tsv = r.wasNull() ? null
+                  : new TopicSummaryView(topicId, forumId, r.getString("topicTitle"),
+                       r.getInt("postCount"), r.getInt("topicCreated"),
+                       r.getInt("lastPostTime"), r.getString("lastPostName"),
+                       r.getInt("likes") + o.topicLikes(topicId), r.getString("creatorName"),
+                       r.getString("creatorUsername"));
+               list.add(new AdvancedForumSummaryView(forumId, r.getString("title"), tsv));
+            }
+         }
+         return Result.success(list);
+      } catch (SQLException e) {
+         return Result.fatal("Something bad happened: " + e);
+      }
     }
 
     @Override
@@ -657,18 +892,205 @@ public class API implements APIProvider {
 
     @Override
     public Result likePost(String username, long topicId, int post, boolean like) {
-        throw new UnsupportedOperationException("Not supported yet.");
+      if (db == null) {
+          throw new IllegalStateException();
+      }
+      if (toggles != null) {
+         return toggles.toggle(ToggleQueue.Kind.LIKE_POST, username, topicId, post, like);
+      }
+      return db.write(l -> {
+         if (!personExists(l, username)) return Result.failure("No user with this username");
+         if (!postExists(l, topicId, post)) return Result.failure("No post with this id");
+         // (topic, post, person) is the primary key, so liking twice is ignored
+         final String SQL = like
+            ? "INSERT OR IGNORE INTO LikePost(topic,post,person) SELECT ?, ?, id FROM Person WHERE username = ?"
+            : "DELETE FROM LikePost WHERE topic=? and post=? and person=(SELECT id FROM Person WHERE username = ?)";
+         PreparedStatement p = l.prepare(SQL);
+         p.setLong(1, topicId);
+         p.setInt(2, post);
+         p.setString(3, username);
+         p.execute();
+         return Result.success();
+      });
     }
 
-    // This method object used for count likes of a specific post
-    private int likes(int id) {
-      try (PreparedStatement p = c.prepareStatement(
-      "SELECT count(*) AS likes FROM LikePost WHERE post = ?")) {
-         p.setLong(1, id);
-         ResultSet r = p.executeQuery();
-         if (r.next()) return r.getInt("likes");
-         else return 0;
-      } catch (SQLException e) {return 0;}
+    @Override
+    public Result<List<PostView>> searchPosts(String query, int page) {
+      if (db == null) { throw new IllegalStateException(); }
+      String match = SearchIndex.match(query);
+      if (match == null) {
+         return Result.failure("Need some words to search for");
+      }
+      if (page < 1) {
+         return Result.failure("Pages are numbered from 1");
+      }
+      List<PostView> list = new ArrayList<>();
+      if ((long) (page - 1) * SEARCH_PAGE >= SearchIndex.CANDIDATES) {
+         return Result.success(list);
+      }
+
+      // ranked before taking a lease, which is then only held for the hits
+      List<SearchEngine.Hit> hits =
+         search == null ? null : search.posts(query, page * SEARCH_PAGE);
+      try (Lease l = db.read()) {
+         ToggleQueue.Overlay o = overlay();
+         if (search != null) {
+            PreparedStatement p = l.prepare(SEARCH_POST_BY_KEY);
+            for (int i = (page - 1) * SEARCH_PAGE; hits != null && i < hits.size(); i++) {
+               p.setLong(1, hits.get(i).getKey() >> 32);
+               p.setLong(2, hits.get(i).getKey() & 0xFFFFFFFFL);
+               try (ResultSet r = p.executeQuery()) {
+                  if (r.next()) { list.add(searchPost(r, o)); }
+               }
+            }
+            return Result.success(list);
+         }
+         PreparedStatement p = l.prepare(SEARCH_POSTS);
+         p.setString(1, match);
+         p.setInt(2, SEARCH_PAGE);
+         p.setInt(3, (page - 1) * SEARCH_PAGE);
+         try (ResultSet r = p.executeQuery()) {
+            while (r.next()) {
+               list.add(searchPost(r, o));
+            }
+         }
+         return Result.success(list);
+      } catch (SQLException e) {
+         return Result.fatal("Something bad happened: " + e);
+      }
+    }
+    /**
+     * Search posts by their text, best match first, 10 to a page.
+     * @param query - the words to look for, see SearchIndex.match.
+     * @param page - the page of hits, from 1.
+     * @return the hits, failure if there are no words in the query or the
+     * page is below 1, fatal on database errors.
+     */
+
+    @Override
+    public Result<List<TopicSummaryView>> searchTopics(String query, int page) {
+      if (db == null) { throw new IllegalStateException(); }
+      String match = SearchIndex.match(query);
+      if (match == null) {
+         return Result.failure("Need some words to search for");
+      }
+      if (page < 1) {
+         return Result.failure("Pages are numbered from 1");
+      }
+      List<TopicSummaryView> list = new ArrayList<>();
+      if ((long) (page - 1) * SEARCH_PAGE >= SearchIndex.CANDIDATES) {
+         return Result.success(list);
+      }
+
+      // ranked before taking a lease, which is then only held for the hits
+      List<SearchEngine.Hit> hits =
+         search == null ? null : search.topics(query, page * SEARCH_PAGE);
+      try (Lease l = db.read()) {
+         ToggleQueue.Overlay o = overlay();
+         if (search != null) {
+            PreparedStatement p = l.prepare(SEARCH_TOPIC_BY_KEY);
+            for (int i = (page - 1) * SEARCH_PAGE; hits != null && i < hits.size(); i++) {
+               p.setLong(1, hits.get(i).getKey());
+               try (ResultSet r = p.executeQuery()) {
+                  if (r.next()) { list.add(searchTopic(r, o)); }
+               }
+            }
+            return Result.success(list);
+         }
+         PreparedStatement p = l.prepare(SEARCH_TOPICS);
+         p.setString(1, match);
+         p.setInt(2, SEARCH_PAGE);
+         p.setInt(3, (page - 1) * SEARCH_PAGE);
+         try (ResultSet r = p.executeQuery()) {
+            while (r.next()) {
+               list.add(searchTopic(r, o));
+            }
+         }
+         return Result.success(list);
+      } catch (SQLException e) {
+         return Result.fatal("Something bad happened: " + e);
+      }
+    }
+    /**
+     * Search topics by their title, best match first, 10 to a page.
+     * @param query - the words to look for, see SearchIndex.match.
+     * @param page - the page of hits, from 1.
+     * @return the hits, failure if there are no words in the query or the
+     * page is below 1, fatal on database errors.
+     */
+
+    private static PostView searchPost(ResultSet r, ToggleQueue.Overlay o) throws SQLException {
+      long topicId = r.getLong("topic");
+      return new PostView(r.getLong("forum"), topicId, r.getInt("id"),
+         r.getString("name"), r.getString("username"), r.getString("content"),
+         r.getInt("created"),
+         r.getInt("likes") + o.postLikes(topicId).getOrDefault(r.getInt("id"), 0));
+   }
+
+    private static TopicSummaryView searchTopic(ResultSet r, ToggleQueue.Overlay o)
+       throws SQLException {
+      long topicId = r.getLong("id");
+      return new TopicSummaryView(topicId, r.getLong("forum"),
+         r.getString("title"), r.getInt("postCount"), r.getInt("created"),
+         r.getInt("lastPostTime"), r.getString("lastPostName"),
+         r.getInt("likes") + o.topicLikes(topicId), r.getString("creatorName"),
+         r.getString("creatorUsername"));
+   }
+
+    // Existence checks, usable on both read leases and the writer
+    private boolean forumExists(Lease l, long forumId) throws SQLException {
+      PreparedStatement p = l.prepare(
+      "SELECT 1 FROM Forum WHERE id = ?");
+      p.setLong(1, forumId);
+      try (ResultSet r = p.executeQuery()) {
+         return r.next();
+      }
+   }
+
+    private boolean topicExists(Lease l, long topicId) throws SQLException {
+      PreparedStatement p = l.prepare(
+      "SELECT 1 FROM Topic WHERE id = ?");
+      p.setLong(1, topicId);
+      try (ResultSet r = p.executeQuery()) {
+         return r.next();
+      }
+   }
+
+    /* Make topicId its forum's latest topic, after a post was added to it. */
+    private void updateSummary(Lease l, long topicId) throws SQLException {
+      PreparedStatement p = l.prepare(ForumSummary.ON_POST);
+      p.setLong(1, topicId);
+      p.executeUpdate();
+   }
+
+    private boolean postExists(Lease l, long topicId, int post) throws SQLException {
+      PreparedStatement p = l.prepare(
+      "SELECT 1 FROM Post WHERE topic = ? AND id = ?");
+      p.setLong(1, topicId);
+      p.setInt(2, post);
+      try (ResultSet r = p.executeQuery()) {
+         return r.next();
+      }
+   }
+
+    /* Reads that show like counts see queued toggles through this. */
+    private ToggleQueue.Overlay overlay() {
+      return toggles == null ? ToggleQueue.Overlay.NONE : toggles.overlay();
+   }
+
+    private boolean personExists(Lease l, String username) throws SQLException {
+      PreparedStatement p = l.prepare(
+      "SELECT 1 FROM Person WHERE username = ?");
+      p.setString(1, username);
+      try (ResultSet r = p.executeQuery()) {
+         return r.next();
+      }
+   }
+
+    /* PersonView wants "" rather than NULL for no student id. */
+    private static String stuId(ResultSet r) throws SQLException {
+      String stuId = r.getString("stuID");
+      return stuId == null ? "" : stuId;
    }
 
    }
@@ -0,0 +1,207 @@
+package uk.ac.bris.cs.databases.cwk3;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+import uk.ac.bris.cs.databases.api.APIProvider;
+import uk.ac.bris.cs.databases.api.AdvancedForumSummaryView;
+import uk.ac.bris.cs.databases.api.AdvancedForumView;
+import uk.ac.bris.cs.databases.api.AdvancedPersonView;
+import uk.ac.bris.cs.databases.api.AsyncAPIProvider;
+import uk.ac.bris.cs.databases.api.ForumSummaryView;
+import uk.ac.bris.cs.databases.api.ForumView;
+import uk.ac.bris.cs.databases.api.PersonView;
+import uk.ac.bris.cs.databases.api.PostView;
+import uk.ac.bris.cs.databases.api.Result;
+import uk.ac.bris.cs.databases.api.SimpleForumSummaryView;
+import uk.ac.bris.cs.databases.api.SimpleTopicView;
+import uk.ac.bris.cs.databases.api.TopicPageView;
+import uk.ac.bris.cs.databases.api.TopicSummaryView;
+import uk.ac.bris.cs.databases.api.TopicView;
+import uk.ac.bris.cs.databases.util.Threads;
+
+/**
+ * Runs a synchronous APIProvider on virtual threads (or, on a JVM without
+ * them, a small pool). Calls beyond what the database can serve at once wait
+ * for a permit on their own thread rather than on a read connection: reads
+ * are limited to the size of the read pool and writes to the writer's batch
+ * size, so a burst of requests queues here cheaply instead of timing out in
+ * the pool.
+ * @author csxdb
+ */
+public class AsyncAPI implements AsyncAPIProvider, AutoCloseable {
+
+    private final APIProvider api;
+    private final ExecutorService executor;
+    private final Semaphore reads;
+    private final Semaphore writes;
+
+    /**
+     * @param api - the provider to call.
+     * @param readers - how many reads may run at once; the read pool size.
+     * @param writers - how many writes may be in flight at once.
+     */
+    public AsyncAPI(APIProvider api, int readers, int writers) {
+        if (readers < 1 || writers < 1) {
+            throw new IllegalArgumentException("Need at least one reader and writer");
+        }
+        this.api = api;
+        this.reads = new Semaphore(readers, true);
+        this.writes = new Semaphore(writers, true);
+        this.executor = Threads.perTask("api", readers + writers);
+    }
+
+    private <T> CompletableFuture<Result<T>> run(Semaphore permits,
+                                                 Supplier<Result<T>> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Result.fatal("Interrupted waiting for the database");
+            }
+            try {
+                return call.get();
+            } finally {
+                permits.release();
+            }
+        }, executor);
+    }
+
+    /**
+     * @return the number of calls waiting for a read permit.
+     */
+    public int getQueuedReads() {
+        return reads.getQueueLength();
+    }
+
+    /**
+     * @return the number of calls waiting for a write permit.
+     */
+    public int getQueuedWrites() {
+        return writes.getQueueLength();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    @Override
+    public CompletableFuture<Result<Map<String, String>>> getUsers() {
+        return run(reads, () -> api.getUsers());
+    }
+
+    @Override
+    public CompletableFuture<Result<PersonView>> getPersonView(String username) {
+        return run(reads, () -> api.getPersonView(username));
+    }
+
+    @Override
+    public CompletableFuture<Result<List<SimpleForumSummaryView>>> getSimpleForums() {
+        return run(reads, () -> api.getSimpleForums());
+    }
+
+    @Override
+    public CompletableFuture<Result<Integer>> countPostsInTopic(long topicId) {
+        return run(reads, () -> api.countPostsInTopic(topicId));
+    }
+
+    @Override
+    public CompletableFuture<Result<List<PersonView>>> getLikers(long topicId) {
+        return run(reads, () -> api.getLikers(topicId));
+    }
+
+    @Override
+    public CompletableFuture<Result<SimpleTopicView>> getSimpleTopic(long topicId) {
+        return run(reads, () -> api.getSimpleTopic(topicId));
+    }
+
+    @Override
+    public CompletableFuture<Result<PostView>> getLatestPost(long topicId) {
+        return run(reads, () -> api.getLatestPost(topicId));
+    }
+
+    @Override
+    public CompletableFuture<Result<List<ForumSummaryView>>> getForums() {
+        return run(reads, () -> api.getForums());
+    }
+
+    @Override
+    public CompletableFuture<Result> createForum(String title) {
+        return run(writes, () -> api.createForum(title));
+    }
+
+    @Override
+    public CompletableFuture<Result> createPost(long topicId, String username, String text) {
+        return run(writes, () -> api.createPost(topicId, username, text));
+    }
+
+    @Override
+    public CompletableFuture<Result> addNewPerson(String name, String username, String studentId) {
+        return run(writes, () -> api.addNewPerson(name, username, studentId));
+    }
+
+    @Override
+    public CompletableFuture<Result<ForumView>> getForum(long id) {
+        return run(reads, () -> api.getForum(id));
+    }
+
+    @Override
+    public CompletableFuture<Result<TopicView>> getTopic(long topicId, int page) {
+        return run(reads, () -> api.getTopic(topicId, page));
+    }
+
+    @Override
+    public CompletableFuture<Result<TopicPageView>> getTopicPage(long topicId, String cursor, int limit) {
+        return run(reads, () -> api.getTopicPage(topicId, cursor, limit));
+    }
+
+    @Override
+    public CompletableFuture<Result> likeTopic(String username, long topicId, boolean like) {
+        return run(writes, () -> api.likeTopic(username, topicId, like));
+    }
+
+    @Override
+    public CompletableFuture<Result> favouriteTopic(String username, long topicId, boolean fav) {
+        return run(writes, () -> api.favouriteTopic(username, topicId, fav));
+    }
+
+    @Override
+    public CompletableFuture<Result> createTopic(long forumId, String username, String title, String text) {
+        return run(writes, () -> api.createTopic(forumId, username, title, text));
+    }
+
+    @Override
+    public CompletableFuture<Result<List<AdvancedForumSummaryView>>> getAdvancedForums() {
+        return run(reads, () -> api.getAdvancedForums());
+    }
+
+    @Override
+    public CompletableFuture<Result<AdvancedPersonView>> getAdvancedPersonView(String username) {
+        return run(reads, () -> api.getAdvancedPersonView(username));
+    }
+
+    @Override
+    public CompletableFuture<Result<AdvancedForumView>> getAdvancedForum(long id) {
+        return run(reads, () -> api.getAdvancedForum(id));
+    }
+
+    @Override
+    public CompletableFuture<Result> likePost(String username, long topicId, int post, boolean like) {
+        return run(writes, () -> api.likePost(username, topicId, post, like));
+    }
+
+    @Override
+    public CompletableFuture<Result<List<PostView>>> searchPosts(String query, int page) {
+        return run(reads, () -> api.searchPosts(query, page));
+    }
+
+    @Override
+    public CompletableFuture<Result<List<TopicSummaryView>>> searchTopics(String query, int page) {
+        return run(reads, () -> api.searchTopics(query, page));
+    }
+}
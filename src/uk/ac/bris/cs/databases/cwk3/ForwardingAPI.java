@@ -0,0 +1,152 @@
+package uk.ac.bris.cs.databases.cwk3;
+
+import java.util.List;
+import java.util.Map;
+import uk.ac.bris.cs.databases.api.APIProvider;
+import uk.ac.bris.cs.databases.api.AdvancedForumSummaryView;
+import uk.ac.bris.cs.databases.api.AdvancedForumView;
+import uk.ac.bris.cs.databases.api.AdvancedPersonView;
+import uk.ac.bris.cs.databases.api.ForumSummaryView;
+import uk.ac.bris.cs.databases.api.ForumView;
+import uk.ac.bris.cs.databases.api.PersonView;
+import uk.ac.bris.cs.databases.api.PostView;
+import uk.ac.bris.cs.databases.api.Result;
+import uk.ac.bris.cs.databases.api.SimpleForumSummaryView;
+import uk.ac.bris.cs.databases.api.SimpleTopicView;
+import uk.ac.bris.cs.databases.api.TopicPageView;
+import uk.ac.bris.cs.databases.api.TopicSummaryView;
+import uk.ac.bris.cs.databases.api.TopicView;
+
+/**
+ * An APIProvider that passes every call on to another one. Decorators
+ * (caching, metrics, ...) extend this and override only the calls they
+ * care about.
+ * @author csxdb
+ */
+public class ForwardingAPI implements APIProvider {
+
+    protected final APIProvider delegate;
+
+    public ForwardingAPI(APIProvider delegate) {
+        if (delegate == null) { throw new IllegalArgumentException(); }
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Result<Map<String, String>> getUsers() {
+        return delegate.getUsers();
+    }
+
+    @Override
+    public Result<PersonView> getPersonView(String username) {
+        return delegate.getPersonView(username);
+    }
+
+    @Override
+    public Result<List<SimpleForumSummaryView>> getSimpleForums() {
+        return delegate.getSimpleForums();
+    }
+
+    @Override
+    public Result<Integer> countPostsInTopic(long topicId) {
+        return delegate.countPostsInTopic(topicId);
+    }
+
+    @Override
+    public Result<List<PersonView>> getLikers(long topicId) {
+        return delegate.getLikers(topicId);
+    }
+
+    @Override
+    public Result<SimpleTopicView> getSimpleTopic(long topicId) {
+        return delegate.getSimpleTopic(topicId);
+    }
+
+    @Override
+    public Result<PostView> getLatestPost(long topicId) {
+        return delegate.getLatestPost(topicId);
+    }
+
+    @Override
+    public Result<List<ForumSummaryView>> getForums() {
+        return delegate.getForums();
+    }
+
+    @Override
+    public Result createForum(String title) {
+        return delegate.createForum(title);
+    }
+
+    @Override
+    public Result createPost(long topicId, String username, String text) {
+        return delegate.createPost(topicId, username, text);
+    }
+
+    @Override
+    public Result addNewPerson(String name, String username, String studentId) {
+        return delegate.addNewPerson(name, username, studentId);
+    }
+
+    @Override
+    public Result<ForumView> getForum(long id) {
+        return delegate.getForum(id);
+    }
+
+    @Override
+    public Result<TopicView> getTopic(long topicId, int page) {
+        return delegate.getTopic(topicId, page);
+    }
+
+    @Override
+    public Result<TopicPageView> getTopicPage(long topicId, String cursor,
+                                              int limit) {
+        return delegate.getTopicPage(topicId, cursor, limit);
+    }
+
+    @Override
+    public Result likeTopic(String username, long topicId, boolean like) {
+        return delegate.likeTopic(username, topicId, like);
+    }
+
+    @Override
+    public Result favouriteTopic(String username, long topicId, boolean fav) {
+        return delegate.favouriteTopic(username, topicId, fav);
+    }
+
+    @Override
+    public Result createTopic(long forumId, String username, String title,
+                              String text) {
+        return delegate.createTopic(forumId, username, title, text);
+    }
+
+    @Override
+    public Result<List<AdvancedForumSummaryView>> getAdvancedForums() {
+        return delegate.getAdvancedForums();
+    }
+
+    @Override
+    public Result<AdvancedPersonView> getAdvancedPersonView(String username) {
+        return delegate.getAdvancedPersonView(username);
+    }
+
+    @Override
+    public Result<AdvancedForumView> getAdvancedForum(long id) {
+        return delegate.getAdvancedForum(id);
+    }
+
+    @Override
+    public Result likePost(String username, long topicId, int post,
+                           boolean like) {
+        return delegate.likePost(username, topicId, post, like);
+    }
+
+    @Override
+    public Result<List<PostView>> searchPosts(String query, int page) {
+        return delegate.searchPosts(query, page);
+    }
+
+    @Override
+    public Result<List<TopicSummaryView>> searchTopics(String query, int page) {
+        return delegate.searchTopics(query, page);
+    }
+}
@@ -0,0 +1,206 @@
+package uk.ac.bris.cs.databases.cwk3;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import uk.ac.bris.cs.databases.api.APIProvider;
+import uk.ac.bris.cs.databases.api.AdvancedForumSummaryView;
+import uk.ac.bris.cs.databases.api.AdvancedForumView;
+import uk.ac.bris.cs.databases.api.AdvancedPersonView;
+import uk.ac.bris.cs.databases.api.ForumSummaryView;
+import uk.ac.bris.cs.databases.api.ForumView;
+import uk.ac.bris.cs.databases.api.PersonView;
+import uk.ac.bris.cs.databases.api.PostView;
+import uk.ac.bris.cs.databases.api.Result;
+import uk.ac.bris.cs.databases.api.SimpleForumSummaryView;
+import uk.ac.bris.cs.databases.api.SimpleTopicView;
+import uk.ac.bris.cs.databases.api.TopicPageView;
+import uk.ac.bris.cs.databases.api.TopicSummaryView;
+import uk.ac.bris.cs.databases.api.TopicView;
+import uk.ac.bris.cs.databases.util.Histogram;
+import uk.ac.bris.cs.databases.util.Metrics;
+
+/**
+ * Counts every APIProvider call by method and outcome (success, failure,
+ * fatal, or exception if it threw) and records its latency, into a Metrics
+ * registry as forum_api_calls_total and forum_api_latency_seconds. Put it
+ * outermost so that cached answers are measured too.
+ * @author csxdb
+ */
+public class MetricsAPI extends ForwardingAPI {
+
+    private static final String CALLS = "forum_api_calls_total";
+    private static final String CALLS_HELP = "APIProvider calls by method and outcome.";
+    private static final String LATENCY = "forum_api_latency_seconds";
+    private static final String LATENCY_HELP = "APIProvider call latency by method.";
+
+    /* One method's series, looked up once. */
+    private static final class Method {
+        final Histogram latency;
+        final LongAdder success;
+        final LongAdder failure;
+        final LongAdder fatal;
+        final LongAdder exception;
+
+        Method(Metrics m, String name) {
+            latency = m.summary(LATENCY, LATENCY_HELP, "method", name);
+            success = m.counter(CALLS, CALLS_HELP, "method", name, "outcome", "success");
+            failure = m.counter(CALLS, CALLS_HELP, "method", name, "outcome", "failure");
+            fatal = m.counter(CALLS, CALLS_HELP, "method", name, "outcome", "fatal");
+            exception = m.counter(CALLS, CALLS_HELP, "method", name, "outcome", "exception");
+        }
+    }
+
+    private final Metrics metrics;
+    private final ConcurrentMap<String, Method> methods = new ConcurrentHashMap<>();
+
+    public MetricsAPI(APIProvider delegate, Metrics metrics) {
+        super(delegate);
+        this.metrics = metrics;
+    }
+
+    private <R extends Result> R timed(String name, Supplier<R> call) {
+        Method m = methods.computeIfAbsent(name, n -> new Method(metrics, n));
+        long start = System.nanoTime();
+        R r;
+        try {
+            r = call.get();
+        } catch (RuntimeException | Error e) {
+            m.latency.record(System.nanoTime() - start);
+            m.exception.increment();
+            throw e;
+        }
+        m.latency.record(System.nanoTime() - start);
+        if (r == null) {
+            m.fatal.increment();
+        } else if (r.isSuccess()) {
+            m.success.increment();
+        } else if (r.isFatal()) {
+            m.fatal.increment();
+        } else {
+            m.failure.increment();
+        }
+        return r;
+    }
+
+    @Override
+    public Result<Map<String, String>> getUsers() {
+        return timed("getUsers", () -> delegate.getUsers());
+    }
+
+    @Override
+    public Result<PersonView> getPersonView(String username) {
+        return timed("getPersonView", () -> delegate.getPersonView(username));
+    }
+
+    @Override
+    public Result<List<SimpleForumSummaryView>> getSimpleForums() {
+        return timed("getSimpleForums", () -> delegate.getSimpleForums());
+    }
+
+    @Override
+    public Result<Integer> countPostsInTopic(long topicId) {
+        return timed("countPostsInTopic", () -> delegate.countPostsInTopic(topicId));
+    }
+
+    @Override
+    public Result<List<PersonView>> getLikers(long topicId) {
+        return timed("getLikers", () -> delegate.getLikers(topicId));
+    }
+
+    @Override
+    public Result<SimpleTopicView> getSimpleTopic(long topicId) {
+        return timed("getSimpleTopic", () -> delegate.getSimpleTopic(topicId));
+    }
+
+    @Override
+    public Result<PostView> getLatestPost(long topicId) {
+        return timed("getLatestPost", () -> delegate.getLatestPost(topicId));
+    }
+
+    @Override
+    public Result<List<ForumSummaryView>> getForums() {
+        return timed("getForums", () -> delegate.getForums());
+    }
+
+    @Override
+    public Result createForum(String title) {
+        return timed("createForum", () -> delegate.createForum(title));
+    }
+
+    @Override
+    public Result createPost(long topicId, String username, String text) {
+        return timed("createPost", () -> delegate.createPost(topicId, username, text));
+    }
+
+    @Override
+    public Result addNewPerson(String name, String username, String studentId) {
+        return timed("addNewPerson", () -> delegate.addNewPerson(name, username, studentId));
+    }
+
+    @Override
+    public Result<ForumView> getForum(long id) {
+        return timed("getForum", () -> delegate.getForum(id));
+    }
+
+    @Override
+    public Result<TopicView> getTopic(long topicId, int page) {
+        return timed("getTopic", () -> delegate.getTopic(topicId, page));
+    }
+
+    @Override
+    public Result<TopicPageView> getTopicPage(long topicId, String cursor,
+                                              int limit) {
+        return timed("getTopicPage", () -> delegate.getTopicPage(topicId, cursor, limit));
+    }
+
+    @Override
+    public Result likeTopic(String username, long topicId, boolean like) {
+        return timed("likeTopic", () -> delegate.likeTopic(username, topicId, like));
+    }
+
+    @Override
+    public Result favouriteTopic(String username, long topicId, boolean fav) {
+        return timed("favouriteTopic", () -> delegate.favouriteTopic(username, topicId, fav));
+    }
+
+    @Override
+    public Result createTopic(long forumId, String username, String title,
+                              String text) {
+        return timed("createTopic", () -> delegate.createTopic(forumId, username, title, text));
+    }
+
+    @Override
+    public Result<List<AdvancedForumSummaryView>> getAdvancedForums() {
+        return timed("getAdvancedForums", () -> delegate.getAdvancedForums());
+    }
+
+    @Override
+    public Result<AdvancedPersonView> getAdvancedPersonView(String username) {
+        return timed("getAdvancedPersonView", () -> delegate.getAdvancedPersonView(username));
+    }
+
+    @Override
+    public Result<AdvancedForumView> getAdvancedForum(long id) {
+        return timed("getAdvancedForum", () -> delegate.getAdvancedForum(id));
+    }
+
+    @Override
+    public Result likePost(String username, long topicId, int post,
+                           boolean like) {
+        return timed("likePost", () -> delegate.likePost(username, topicId, post, like));
+    }
+
+    @Override
+    public Result<List<PostView>> searchPosts(String query, int page) {
+        return timed("searchPosts", () -> delegate.searchPosts(query, page));
+    }
+
+    @Override
+    public Result<List<TopicSummaryView>> searchTopics(String query, int page) {
+        return timed("searchTopics", () -> delegate.searchTopics(query, page));
+    }
+}
@@ -0,0 +1,53 @@
+package uk.ac.bris.cs.databases.cwk3;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * The continuation tokens handed out by getTopicPage: a direction and the
+ * post number to continue from, base64 encoded so that clients treat them
+ * as opaque.
+ * @author csxdb
+ */
+class PostCursor {
+
+    /* true for "posts after anchor", false for "posts before anchor". */
+    final boolean after;
+    final int anchor;
+
+    PostCursor(boolean after, int anchor) {
+        this.after = after;
+        this.anchor = anchor;
+    }
+
+    static String after(int post) {
+        return new PostCursor(true, post).encode();
+    }
+
+    static String before(int post) {
+        return new PostCursor(false, post).encode();
+    }
+
+    String encode() {
+        String s = (after ? "a" : "b") + anchor;
+        return Base64.getUrlEncoder().withoutPadding()
+                     .encodeToString(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @return the cursor, or null if the token is not one of ours.
+     */
+    static PostCursor decode(String token) {
+        try {
+            String s = new String(Base64.getUrlDecoder().decode(token),
+                                  StandardCharsets.US_ASCII);
+            if (s.length() < 2 || (s.charAt(0) != 'a' && s.charAt(0) != 'b')) {
+                return null;
+            }
+            int anchor = Integer.parseInt(s.substring(1));
+            return anchor < 0 ? null : new PostCursor(s.charAt(0) == 'a', anchor);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package uk.ac.bris.cs.databases.cwk3;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import uk.ac.bris.cs.databases.api.Result;
+import uk.ac.bris.cs.databases.cwk3.db.ConnectionManager;
+import uk.ac.bris.cs.databases.cwk3.db.ForumSummary;
+import uk.ac.bris.cs.databases.cwk3.db.Lease;
+
+/**
+ * Write-behind for like and favourite toggles. A toggle is checked against
+ * the database (does the person, topic or post exist?) and then only
+ * recorded in memory, keeping the latest state per (kind, person, target)
+ * along with the state the database had when the key was first queued. A
+ * background thread writes the net changes in one transaction every
+ * interval, or sooner once the queue reaches the batch size; someone who
+ * likes and unlikes ten times in between costs nothing at all.
+ *
+ * Reads must see the queued state: they take an Overlay, a copy of the
+ * queued changes, just before reading the database. Neither waits for the
+ * other: a batch being flushed stays in the queue until its transaction has
+ * committed, and is handed off (dropped from the queue) under the monitor
+ * straight after. So a read never misses a toggle, but one that reads the
+ * database between the commit and the handoff sees that batch both there
+ * and in its Overlay. Likers are matched by person, so they come out
+ * right; a like count can be one toggle high for that moment.
+ * @author csxdb
+ */
+public class ToggleQueue implements AutoCloseable {
+
+    public enum Kind { LIKE_TOPIC, FAV_TOPIC, LIKE_POST }
+
+    private static final class Key {
+        final Kind kind;
+        final long person;
+        final long topic;
+        final int post;
+
+        Key(Kind kind, long person, long topic, int post) {
+            this.kind = kind;
+            this.person = person;
+            this.topic = topic;
+            this.post = post;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) { return false; }
+            Key k = (Key) o;
+            return kind == k.kind && person == k.person && topic == k.topic
+                && post == k.post;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, person, topic, post);
+        }
+    }
+
+    private static final class Entry {
+        /* What the database holds (or will, once the flush in progress commits). */
+        final boolean base;
+        boolean state;
+
+        Entry(boolean base, boolean state) {
+            this.base = base;
+            this.state = state;
+        }
+    }
+
+    private final ConnectionManager db;
+    private final int maxBatch;
+    private final ScheduledExecutorService flusher;
+    private final AtomicBoolean kicked = new AtomicBoolean();
+    private final Object flushLock = new Object();
+
+    /* Guarded by this. */
+    private Map<Key, Entry> pending = new HashMap<>();
+    private Map<Key, Entry> flushing = new HashMap<>();
+    private boolean closed;
+    /* Flushes finished, whether or not they wrote anything. */
+    private long flushed;
+
+    private long toggles;
+    private long coalesced;
+    private long flushes;
+    private long failures;
+    private long written;
+    private long lastFlushNanos;
+    private long maxFlushNanos;
+    private long totalFlushNanos;
+
+    /**
+     * @param db - the database to flush to.
+     * @param intervalMillis - how often to flush.
+     * @param maxBatch - flush early once this many keys are queued.
+     */
+    public ToggleQueue(ConnectionManager db, long intervalMillis, int maxBatch) {
+        if (intervalMillis < 1 || maxBatch < 1) {
+            throw new IllegalArgumentException("Need a positive interval and batch size");
+        }
+        this.db = db;
+        this.maxBatch = maxBatch;
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "toggle-flush");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis,
+                                       TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue a like/unlike or favourite/unfavourite.
+     * @param post - the post number for LIKE_POST, ignored otherwise.
+     * @return success once queued; failure if the person or target does not
+     * exist; fatal on database errors or after close().
+     */
+    public Result toggle(Kind kind, String username, long topicId, int post,
+                         boolean on) {
+        try (Lease l = db.read()) {
+            long person = personId(l, username);
+            if (person < 0) {
+                return Result.failure("No user with this username");
+            }
+            if (kind == Kind.LIKE_POST ? !exists(l, POST_EXISTS, topicId, post)
+                                       : !exists(l, TOPIC_EXISTS, topicId)) {
+                return Result.failure(kind == Kind.LIKE_POST ? "No post with this id"
+                                                             : "No topic with this id");
+            }
+            Key key = new Key(kind, person, topicId, kind == Kind.LIKE_POST ? post : 0);
+            int size;
+            // The database is read outside the monitor, so that toggles and
+            // the flusher's swap do not wait on it; the read is used only if
+            // no flush has finished in the meantime, since one may have
+            // written this key.
+            Boolean read = null;
+            long readAt = -1;
+            while (true) {
+                synchronized (this) {
+                    if (closed) {
+                        return Result.fatal("Toggle queue is closed");
+                    }
+                    Entry e = pending.get(key);
+                    if (e != null) {
+                        toggles++;
+                        e.state = on;
+                        coalesced++;
+                        return Result.success();
+                    }
+                    Entry f = flushing.get(key);
+                    // A key being flushed is not touched by the flush's commit
+                    // otherwise, so its row in the database is still current.
+                    if (f != null || (read != null && readAt == flushed)) {
+                        toggles++;
+                        pending.put(key, new Entry(f != null ? f.state : read, on));
+                        size = pending.size();
+                        break;
+                    }
+                    readAt = flushed;
+                }
+                read = stored(l, key);
+            }
+            if (size >= maxBatch && kicked.compareAndSet(false, true)) {
+                flusher.execute(this::flush);
+            }
+            return Result.success();
+        } catch (SQLException e) {
+            return Result.fatal("Something bad happened: " + e);
+        }
+    }
+
+    /**
+     * Write everything queued so far in one transaction. Called by the
+     * background thread; safe to call from anywhere.
+     */
+    public void flush() {
+        kicked.set(false);
+        synchronized (flushLock) {
+            Map<Key, Entry> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) { return; }
+                batch = pending;
+                flushing = batch;
+                pending = new HashMap<>();
+            }
+            long start = System.nanoTime();
+            Result<Integer> r = db.write(l -> Result.success(write(l, batch)));
+            // The handoff: the batch leaves the queue now that it is in the
+            // database.
+            synchronized (this) {
+                if (r.isSuccess()) {
+                    written += r.getValue();
+                } else {
+                    // Nothing was written: queued keys go back to the
+                    // bases they had, the rest are queued again.
+                    failures++;
+                    for (Map.Entry<Key, Entry> e : batch.entrySet()) {
+                        Entry p = pending.get(e.getKey());
+                        pending.put(e.getKey(), new Entry(e.getValue().base,
+                            p != null ? p.state : e.getValue().state));
+                    }
+                }
+                flushing = new HashMap<>();
+                flushed++;
+            }
+            long took = System.nanoTime() - start;
+            synchronized (this) {
+                flushes++;
+                lastFlushNanos = took;
+                maxFlushNanos = Math.max(maxFlushNanos, took);
+                totalFlushNanos += took;
+            }
+            if (!r.isSuccess()) {
+                System.out.println("[ToggleQueue] flush of " + batch.size()
+                                   + " toggles failed: " + r.getMessage());
+            }
+        }
+    }
+
+    private static int write(Lease l, Map<Key, Entry> batch) throws SQLException {
+        PreparedStatement likeTopic = l.prepare(
+            "INSERT OR IGNORE INTO LikeTopic (topic, person) VALUES (?, ?)");
+        PreparedStatement unlikeTopic = l.prepare(
+            "DELETE FROM LikeTopic WHERE topic = ? AND person = ?");
+        PreparedStatement fav = l.prepare(
+            "INSERT OR IGNORE INTO FavTopic (topic, person) VALUES (?, ?)");
+        PreparedStatement unfav = l.prepare(
+            "DELETE FROM FavTopic WHERE topic = ? AND person = ?");
+        PreparedStatement likePost = l.prepare(
+            "INSERT OR IGNORE INTO LikePost (topic, post, person) VALUES (?, ?, ?)");
+        PreparedStatement unlikePost = l.prepare(
+            "DELETE FROM LikePost WHERE topic = ? AND post = ? AND person = ?");
+        Map<Long, Integer> topicLikes = new HashMap<>();
+        int n = 0;
+        for (Map.Entry<Key, Entry> e : batch.entrySet()) {
+            Key k = e.getKey();
+            boolean on = e.getValue().state;
+            if (on == e.getValue().base) { continue; }
+            PreparedStatement p;
+            switch (k.kind) {
+                case LIKE_TOPIC:
+                    p = on ? likeTopic : unlikeTopic;
+                    topicLikes.merge(k.topic, on ? 1 : -1, Integer::sum);
+                    break;
+                case FAV_TOPIC:
+                    p = on ? fav : unfav;
+                    break;
+                default:
+                    p = on ? likePost : unlikePost;
+                    p.setLong(1, k.topic);
+                    p.setInt(2, k.post);
+                    p.setLong(3, k.person);
+                    p.addBatch();
+                    n++;
+                    continue;
+            }
+            p.setLong(1, k.topic);
+            p.setLong(2, k.person);
+            p.addBatch();
+            n++;
+        }
+        for (PreparedStatement p : new PreparedStatement[] {
+                likeTopic, unlikeTopic, fav, unfav, likePost, unlikePost }) {
+            p.executeBatch();
+        }
+        PreparedStatement summary = l.prepare(ForumSummary.ON_LIKE);
+        for (Map.Entry<Long, Integer> e : topicLikes.entrySet()) {
+            if (e.getValue() == 0) { continue; }
+            summary.setInt(1, e.getValue());
+            summary.setLong(2, e.getKey());
+            summary.executeUpdate();
+        }
+        return n;
+    }
+
+    /**
+     * The queued state for a read that needs to see queued toggles; take it
+     * once the read has its connection, just before reading the database.
+     */
+    public Overlay overlay() {
+        synchronized (this) {
+            return new Overlay(changes());
+        }
+    }
+
+    /**
+     * The queued state, as seen by one read.
+     */
+    public static class Overlay {
+
+        /* For reads when write-behind is off. */
+        public static final Overlay NONE = new Overlay(new HashMap<>());
+
+        /* key -> new state; see changes(). */
+        private final Map<Key, Boolean> changes;
+
+        private Overlay(Map<Key, Boolean> changes) {
+            this.changes = changes;
+        }
+
+        /**
+         * @return person id -> liked, for queued likes of this topic that
+         * differ from the database.
+         */
+        public Map<Long, Boolean> topicLikers(long topicId) {
+            Map<Long, Boolean> m = new HashMap<>();
+            for (Map.Entry<Key, Boolean> e : changes.entrySet()) {
+                Key k = e.getKey();
+                if (k.kind == Kind.LIKE_TOPIC && k.topic == topicId) {
+                    m.put(k.person, e.getValue());
+                }
+            }
+            return m;
+        }
+
+        /**
+         * @return the net change in likes of this topic still queued.
+         */
+        public int topicLikes(long topicId) {
+            int n = 0;
+            for (boolean on : topicLikers(topicId).values()) {
+                n += on ? 1 : -1;
+            }
+            return n;
+        }
+
+        /**
+         * @return post number -> net change in likes still queued, for the
+         * posts of this topic that have any.
+         */
+        public Map<Integer, Integer> postLikes(long topicId) {
+            Map<Integer, Integer> m = new HashMap<>();
+            for (Map.Entry<Key, Boolean> e : changes.entrySet()) {
+                Key k = e.getKey();
+                if (k.kind == Kind.LIKE_POST && k.topic == topicId) {
+                    m.merge(k.post, e.getValue() ? 1 : -1, Integer::sum);
+                }
+            }
+            return m;
+        }
+    }
+
+    /* key -> new state, for every queued key whose state differs from the
+     * database before the flush in progress, if any, commits. Caller holds
+     * this.
+     */
+    private Map<Key, Boolean> changes() {
+        Map<Key, Boolean> m = new HashMap<>();
+        if (pending.isEmpty() && flushing.isEmpty()) { return m; }
+        for (Map.Entry<Key, Entry> e : flushing.entrySet()) {
+            if (e.getValue().state != e.getValue().base) {
+                m.put(e.getKey(), e.getValue().state);
+            }
+        }
+        for (Map.Entry<Key, Entry> e : pending.entrySet()) {
+            Entry f = flushing.get(e.getKey());
+            boolean stored = f != null ? f.base : e.getValue().base;
+            if (e.getValue().state != stored) {
+                m.put(e.getKey(), e.getValue().state);
+            } else {
+                m.remove(e.getKey());
+            }
+        }
+        return m;
+    }
+
+    /**
+     * @return the number of keys queued or being flushed.
+     */
+    public synchronized int getDepth() {
+        return pending.size() + flushing.size();
+    }
+
+    /**
+     * @return a snapshot of the counters, for the metrics page and logs.
+     */
+    public synchronized Map<String, Number> getStats() {
+        Map<String, Number> m = new LinkedHashMap<>();
+        m.put("depth", pending.size() + flushing.size());
+        m.put("toggles", toggles);
+        m.put("coalesced", coalesced);
+        m.put("flushes", flushes);
+        m.put("failures", failures);
+        m.put("written", written);
+        m.put("lastFlushMs", lastFlushNanos / 1e6);
+        m.put("maxFlushMs", maxFlushNanos / 1e6);
+        m.put("meanFlushMs", flushes == 0 ? 0.0 : totalFlushNanos / 1e6 / flushes);
+        return m;
+    }
+
+    /**
+     * Stop taking toggles and write out everything queued. The database
+     * must still be open.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) { return; }
+            closed = true;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int depth = getDepth();
+        flush();
+        System.out.println("[ToggleQueue] drained " + depth + " toggles, "
+                           + getDepth() + " left");
+    }
+
+    private static final String TOPIC_EXISTS = "SELECT 1 FROM Topic WHERE id = ?";
+    private static final String POST_EXISTS =
+        "SELECT 1 FROM Post WHERE topic = ? AND id = ?";
+
+    private static long personId(Lease l, String username) throws SQLException {
+        PreparedStatement p = l.prepare("SELECT id FROM Person WHERE username = ?");
+        p.setString(1, username);
+        try (ResultSet r = p.executeQuery()) {
+            return r.next() ? r.getLong(1) : -1;
+        }
+    }
+
+    private static boolean exists(Lease l, String sql, long... args)
+            throws SQLException {
+        PreparedStatement p = l.prepare(sql);
+        for (int i = 0; i < args.length; i++) {
+            p.setLong(i + 1, args[i]);
+        }
+        try (ResultSet r = p.executeQuery()) {
+            return r.next();
+        }
+    }
+
+    private static boolean stored(Lease l, Key k) throws SQLException {
+        switch (k.kind) {
+            case LIKE_TOPIC:
+                return exists(l, "SELECT 1 FROM LikeTopic WHERE topic = ? AND person = ?",
+                              k.topic, k.person);
+            case FAV_TOPIC:
+                return exists(l, "SELECT 1 FROM FavTopic WHERE topic = ? AND person = ?",
+                              k.topic, k.person);
+            default:
+                return exists(l, "SELECT 1 FROM LikePost WHERE topic = ? AND post = ? AND person = ?",
+                              k.topic, k.post, k.person);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package uk.ac.bris.cs.databases.cwk3;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import uk.ac.bris.cs.databases.api.APIProvider;
+import uk.ac.bris.cs.databases.api.Result;
+
+/**
+ * Keeps a version for every topic, forum and person page, which the writes
+ * made through this object move on once they have returned (i.e. committed,
+ * or been queued where reads already see them). Reading a version costs a
+ * map lookup, so a web handler can tell a client that its copy of a page is
+ * still current without loading or rendering anything.
+ *
+ * A topic changes with its posts and its likes (of the topic or of a post),
+ * a forum with the topics created in it; people do not change once created.
+ * Versions start again when the process does, so tags carry the start time
+ * and none survives a restart. Like CachingAPI this only sees writes made
+ * through this object.
+ *
+ * Only written pages are kept, one small entry each.
+ * @author csxdb
+ */
+public class VersionedAPI extends ForwardingAPI {
+
+    /**
+     * A page's version and when it last changed.
+     */
+    public static final class Version {
+        private final long number;
+        private final long modified;
+        private final String tag;
+
+        Version(long started, long number, long modified) {
+            this.number = number;
+            this.modified = modified;
+            this.tag = Long.toString(started, 36) + "-" + number;
+        }
+
+        /**
+         * @return an entity tag for the page, different for every version.
+         */
+        public String getTag() {
+            return tag;
+        }
+
+        /**
+         * @return when the page last changed (at the latest), in
+         * milliseconds since the epoch.
+         */
+        public long getModified() {
+            return modified;
+        }
+    }
+
+    private final long started = System.currentTimeMillis();
+    private final Version initial = new Version(started, 0, started);
+    private final ConcurrentMap<String, Version> versions = new ConcurrentHashMap<>();
+
+    public VersionedAPI(APIProvider delegate) {
+        super(delegate);
+    }
+
+    /**
+     * Read the version before reading the page: a write in between then
+     * makes the tag out of date rather than the page.
+     */
+    public Version topic(long topicId) {
+        return version("Topic:" + topicId);
+    }
+
+    public Version forum(long forumId) {
+        return version("Forum:" + forumId);
+    }
+
+    public Version person(String username) {
+        return version("Person:" + username);
+    }
+
+    private Version version(String key) {
+        return versions.getOrDefault(key, initial);
+    }
+
+    private Result written(Result r, String key) {
+        // A fatal write may or may not have got as far as the commit.
+        if (r.isSuccess() || r.isFatal()) {
+            long now = System.currentTimeMillis();
+            versions.compute(key, (k, v) -> new Version(started,
+                v == null ? 1 : v.number + 1, Math.max(now, started)));
+        }
+        return r;
+    }
+
+    /* Writes */
+
+    @Override
+    public Result createPost(long topicId, String username, String text) {
+        return written(delegate.createPost(topicId, username, text), "Topic:" + topicId);
+    }
+
+    @Override
+    public Result addNewPerson(String name, String username, String studentId) {
+        return written(delegate.addNewPerson(name, username, studentId),
+                       "Person:" + username);
+    }
+
+    @Override
+    public Result likeTopic(String username, long topicId, boolean like) {
+        return written(delegate.likeTopic(username, topicId, like), "Topic:" + topicId);
+    }
+
+    @Override
+    public Result favouriteTopic(String username, long topicId, boolean fav) {
+        return written(delegate.favouriteTopic(username, topicId, fav), "Topic:" + topicId);
+    }
+
+    @Override
+    public Result createTopic(long forumId, String username, String title, String text) {
+        return written(delegate.createTopic(forumId, username, title, text),
+                       "Forum:" + forumId);
+    }
+
+    @Override
+    public Result likePost(String username, long topicId, int post, boolean like) {
+        return written(delegate.likePost(username, topicId, post, like), "Topic:" + topicId);
+    }
+}
@@ -0,0 +1,196 @@
+package uk.ac.bris.cs.databases.cwk3.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import uk.ac.bris.cs.databases.api.APIProvider;
+import uk.ac.bris.cs.databases.api.ForumSummaryView;
+import uk.ac.bris.cs.databases.api.ForumView;
+import uk.ac.bris.cs.databases.api.PersonView;
+import uk.ac.bris.cs.databases.api.Result;
+import uk.ac.bris.cs.databases.api.SimpleForumSummaryView;
+import uk.ac.bris.cs.databases.cwk3.ForwardingAPI;
+
+/**
+ * Read-through cache in front of another APIProvider. The hot, rarely
+ * changing reads are cached together with the tables and rows they depend
+ * on; each write invalidates just the tags it touches, once it has returned
+ * (i.e. committed). Fatal results are never cached. Failures are, but tagged
+ * with the table rather than the row, so that e.g. creating forum 7 drops a
+ * cached "no forum 7".
+ *
+ * A cached result is handed to every caller, on every thread, so what is
+ * cached is a read-only copy: lists and maps in it are unmodifiable, and a
+ * caller that tries to sort or edit one gets an exception rather than
+ * changing the result for everyone else.
+ *
+ * This only sees writes made through this object: anything else that
+ * changes the database must call clear().
+ * @author csxdb
+ */
+public class CachingAPI extends ForwardingAPI {
+
+    private final QueryCache cache;
+
+    /**
+     * @param delegate - the provider to read through to.
+     * @param budget - the most memory, in (estimated) bytes, to cache.
+     */
+    public CachingAPI(APIProvider delegate, long budget) {
+        super(delegate);
+        this.cache = new QueryCache(budget);
+    }
+
+    /**
+     * @return the cache, for its statistics.
+     */
+    public QueryCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Forget everything cached.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /* readOnly makes the read-only copy of a successful value. */
+    private <T> Result<T> cached(String key, Supplier<Result<T>> query,
+                                 UnaryOperator<T> readOnly,
+                                 String[] onSuccess, String[] onFailure) {
+        Result<T> r = cache.get(key);
+        if (r != null) {
+            return r;
+        }
+        long generation = cache.generation();
+        r = query.get();
+        if (r.isSuccess()) {
+            r = Result.success(readOnly.apply(r.getValue()));
+            cache.put(key, r, generation, onSuccess);
+        } else if (!r.isFatal()) {
+            cache.put(key, r, generation, onFailure);
+        }
+        return r;
+    }
+
+    private static String[] tags(String... tags) {
+        return tags;
+    }
+
+    private static <E> List<E> list(List<E> l) {
+        return Collections.unmodifiableList(new ArrayList<>(l));
+    }
+
+    private static ForumView forum(ForumView f) {
+        return new ForumView(f.getId(), f.getTitle(), list(f.getTopics()));
+    }
+
+    private Result written(Result r, String... tags) {
+        // A fatal write may or may not have got as far as the commit.
+        if (r.isSuccess() || r.isFatal()) {
+            cache.invalidate(tags);
+        }
+        return r;
+    }
+
+    /* Reads */
+
+    @Override
+    public Result<Map<String, String>> getUsers() {
+        return cached("getUsers", delegate::getUsers,
+            m -> Collections.unmodifiableMap(new LinkedHashMap<>(m)),
+            tags("Person"), tags("Person"));
+    }
+
+    @Override
+    public Result<PersonView> getPersonView(String username) {
+        String person = "Person:" + username;
+        return cached("getPersonView:" + username,
+            () -> delegate.getPersonView(username), UnaryOperator.identity(),
+            tags(person), tags(person));
+    }
+
+    @Override
+    public Result<List<SimpleForumSummaryView>> getSimpleForums() {
+        return cached("getSimpleForums", delegate::getSimpleForums, CachingAPI::list,
+            tags("Forum"), tags("Forum"));
+    }
+
+    /* A topic that does not exist yet counts 0 posts rather than failing,
+     * so the count goes with creating topics too. */
+    @Override
+    public Result<Integer> countPostsInTopic(long topicId) {
+        return cached("countPostsInTopic:" + topicId,
+            () -> delegate.countPostsInTopic(topicId), UnaryOperator.identity(),
+            tags("Post:" + topicId, "Topic"), tags("Topic"));
+    }
+
+    @Override
+    public Result<List<PersonView>> getLikers(long topicId) {
+        return cached("getLikers:" + topicId,
+            () -> delegate.getLikers(topicId), CachingAPI::list,
+            tags("LikeTopic:" + topicId), tags("Topic"));
+    }
+
+    @Override
+    public Result<List<ForumSummaryView>> getForums() {
+        return cached("getForums", delegate::getForums, CachingAPI::list,
+            tags("Forum", "Topic", "Post"), tags("Forum", "Topic", "Post"));
+    }
+
+    @Override
+    public Result<ForumView> getForum(long id) {
+        return cached("getForum:" + id, () -> delegate.getForum(id), CachingAPI::forum,
+            tags("Forum:" + id), tags("Forum"));
+    }
+
+    /* Writes */
+
+    @Override
+    public Result createForum(String title) {
+        return written(delegate.createForum(title), "Forum");
+    }
+
+    @Override
+    public Result createPost(long topicId, String username, String text) {
+        return written(delegate.createPost(topicId, username, text),
+            "Post", "Post:" + topicId);
+    }
+
+    @Override
+    public Result addNewPerson(String name, String username, String studentId) {
+        return written(delegate.addNewPerson(name, username, studentId),
+            "Person", "Person:" + username);
+    }
+
+    @Override
+    public Result likeTopic(String username, long topicId, boolean like) {
+        return written(delegate.likeTopic(username, topicId, like),
+            "LikeTopic", "LikeTopic:" + topicId);
+    }
+
+    @Override
+    public Result favouriteTopic(String username, long topicId, boolean fav) {
+        return written(delegate.favouriteTopic(username, topicId, fav),
+            "FavTopic", "FavTopic:" + topicId);
+    }
+
+    @Override
+    public Result createTopic(long forumId, String username, String title,
+                              String text) {
+        return written(delegate.createTopic(forumId, username, title, text),
+            "Topic", "Forum:" + forumId, "Post");
+    }
+
+    @Override
+    public Result likePost(String username, long topicId, int post,
+                           boolean like) {
+        return written(delegate.likePost(username, topicId, post, like),
+            "LikePost", "LikePost:" + topicId);
+    }
+}
@@ -0,0 +1,200 @@
+package uk.ac.bris.cs.databases.cwk3.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import uk.ac.bris.cs.databases.api.Result;
+
+/**
+ * A size-bounded LRU of query results, each tagged with the data it was
+ * computed from. Tags are either a table ("Post") or a table row or group of
+ * rows ("Post:12"); invalidating a tag drops every entry that carries it.
+ *
+ * A result may only be stored if nothing was invalidated between the start
+ * of the query and the put: the caller takes a generation() before running
+ * the query and hands it back to put(). This keeps a read that raced with a
+ * write from re-inserting what it saw before the write committed.
+ * @author csxdb
+ */
+public class QueryCache {
+
+    private static class Entry {
+        final Result<?> value;
+        final String[] tags;
+        final long bytes;
+
+        Entry(Result<?> value, String[] tags, long bytes) {
+            this.value = value;
+            this.tags = tags;
+            this.bytes = bytes;
+        }
+    }
+
+    private final long budget;
+
+    /* All fields below are guarded by this. */
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<String, Set<String>> byTag = new HashMap<>();
+    private long bytes;
+    private long generation;
+
+    private long hits;
+    private long misses;
+    private long puts;
+    private long rejected;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * @param budget - the most memory, in (estimated) bytes, that cached
+     * results may take up.
+     */
+    public QueryCache(long budget) {
+        if (budget < 1) {
+            throw new IllegalArgumentException("Cache budget must be positive");
+        }
+        this.budget = budget;
+    }
+
+    /**
+     * @return the cached result for this key, or null.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> Result<T> get(String key) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return (Result<T>) e.value;
+    }
+
+    /**
+     * @return a token to pass to put() for a query that starts now.
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Store a result unless there was an invalidation since the generation
+     * was taken, or the result alone is larger than the budget.
+     * @param key - the key the result is looked up by.
+     * @param value - the result.
+     * @param generation - from generation(), taken before the query ran.
+     * @param tags - everything the result was computed from.
+     */
+    public synchronized void put(String key, Result<?> value, long generation,
+                                 String... tags) {
+        if (generation != this.generation) {
+            rejected++;
+            return;
+        }
+        long size = Sizes.of(key) + Sizes.of(value) + 16L * tags.length;
+        if (size > budget) {
+            rejected++;
+            return;
+        }
+        remove(key);
+        entries.put(key, new Entry(value, tags, size));
+        for (String tag : tags) {
+            byTag.computeIfAbsent(tag, t -> new HashSet<>()).add(key);
+        }
+        bytes += size;
+        puts++;
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (bytes > budget && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            untag(eldest.getKey(), eldest.getValue());
+            evictions++;
+        }
+    }
+
+    /**
+     * Drop every entry carrying any of these tags. Call after the write that
+     * changed the data has committed.
+     */
+    public synchronized void invalidate(String... tags) {
+        generation++;
+        for (String tag : tags) {
+            Set<String> keys = byTag.remove(tag);
+            if (keys == null) { continue; }
+            for (String key : new ArrayList<>(keys)) {
+                if (remove(key)) {
+                    invalidations++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop everything, e.g. after the database was changed behind our back.
+     */
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        byTag.clear();
+        bytes = 0;
+    }
+
+    private boolean remove(String key) {
+        Entry e = entries.remove(key);
+        if (e == null) { return false; }
+        untag(key, e);
+        return true;
+    }
+
+    private void untag(String key, Entry e) {
+        bytes -= e.bytes;
+        for (String tag : e.tags) {
+            Set<String> keys = byTag.get(tag);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    byTag.remove(tag);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a snapshot of the counters, for the metrics page and logs.
+     */
+    public synchronized Map<String, Number> getStats() {
+        Map<String, Number> m = new LinkedHashMap<>();
+        m.put("entries", entries.size());
+        m.put("bytes", bytes);
+        m.put("budget", budget);
+        m.put("hits", hits);
+        m.put("misses", misses);
+        m.put("hitRate", hits + misses == 0 ? 0.0 : hits / (double) (hits + misses));
+        m.put("puts", puts);
+        m.put("rejected", rejected);
+        m.put("evictions", evictions);
+        m.put("invalidations", invalidations);
+        return m;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,92 @@
+package uk.ac.bris.cs.databases.cwk3.cache;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rough heap size estimates for cached results. The views are small trees of
+ * strings, numbers and lists, so walking their fields is cheap and close
+ * enough for an eviction budget; it does not try to match any particular
+ * JVM's layout.
+ * @author csxdb
+ */
+final class Sizes {
+
+    private static final int HEADER = 16;
+    private static final int REF = 8;
+
+    private static final Map<Class<?>, Field[]> FIELDS = new ConcurrentHashMap<>();
+
+    private Sizes() {}
+
+    static long of(Object o) {
+        return of(o, new IdentityHashMap<>());
+    }
+
+    private static long of(Object o, IdentityHashMap<Object, Boolean> seen) {
+        if (o == null || seen.put(o, Boolean.TRUE) != null) {
+            return 0;
+        }
+        if (o instanceof String) {
+            return HEADER + 24 + ((String) o).length() * 2L;
+        }
+        if (o instanceof Number || o instanceof Boolean || o instanceof Character
+                || o instanceof Enum) {
+            return HEADER + 8;
+        }
+        if (o instanceof Collection) {
+            Collection<?> c = (Collection<?>) o;
+            long n = HEADER + 24 + (long) c.size() * (REF + 16);
+            for (Object e : c) {
+                n += of(e, seen);
+            }
+            return n;
+        }
+        if (o instanceof Map) {
+            Map<?, ?> m = (Map<?, ?>) o;
+            long n = HEADER + 48 + (long) m.size() * (REF + 32);
+            for (Map.Entry<?, ?> e : m.entrySet()) {
+                n += of(e.getKey(), seen) + of(e.getValue(), seen);
+            }
+            return n;
+        }
+        long n = HEADER;
+        for (Field f : fields(o.getClass())) {
+            if (f.getType().isPrimitive()) {
+                n += 8;
+                continue;
+            }
+            n += REF;
+            try {
+                n += of(f.get(o), seen);
+            } catch (IllegalAccessException | RuntimeException e) {
+                // not ours to look into; count the reference only
+            }
+        }
+        return n;
+    }
+
+    private static Field[] fields(Class<?> type) {
+        return FIELDS.computeIfAbsent(type, t -> {
+            List<Field> list = new ArrayList<>();
+            for (Class<?> c = t; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field f : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(f.getModifiers())) { continue; }
+                    try {
+                        f.setAccessible(true);
+                        list.add(f);
+                    } catch (RuntimeException e) {
+                        // e.g. JDK internals under strong encapsulation
+                    }
+                }
+            }
+            return list.toArray(new Field[0]);
+        });
+    }
+}
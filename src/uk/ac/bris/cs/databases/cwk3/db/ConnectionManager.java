@@ -0,0 +1,431 @@
+package uk.ac.bris.cs.databases.cwk3.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import uk.ac.bris.cs.databases.api.Result;
+
+/**
+ * Owns all connections to the forum database. The database runs in WAL mode
+ * so that readers never block behind the writer: reads borrow one of a pool
+ * of read-only connections, while every mutation runs on a single dedicated
+ * writer connection.
+ *
+ * Mutations are handed to one writer thread, which uses group commit: each
+ * unit of work that has queued up (up to the batch size, waiting at most the
+ * batch window for more) runs in its own savepoint inside one transaction,
+ * and the whole batch pays for a single commit. Each caller still gets its
+ * own result, and one caller's failure rolls back only its own savepoint.
+ * @author csxdb
+ */
+public class ConnectionManager implements AutoCloseable {
+
+    /* How long SQLite itself retries a locked database before giving up. */
+    private static final int BUSY_TIMEOUT_MS = 5000;
+
+    private final Connection writer;
+    private final Lease writerLease;
+    private final Statement control;
+    private final BlockingQueue<Write<?>> writes = new LinkedBlockingQueue<>();
+    private final Thread writerThread;
+    private final int batchSize;
+    private final long batchWindowNanos;
+    private volatile boolean closed;
+
+    /* Only touched by the writer thread; read for statistics. */
+    private volatile long batches;
+    private volatile long batched;
+    private volatile int largestBatch;
+    private final ReadPool readers;
+    private final ScheduledExecutorService leakCheck;
+    private final SlowQueryLog slow;
+
+    /**
+     * Open the writer and the read pool.
+     * @param url - the JDBC url of the database.
+     * @param readers - the number of read connections to open.
+     * @param timeoutMillis - how long a read waits for a free connection.
+     * @param leakMillis - report read leases held longer than this; 0 for
+     * no leak detection.
+     * @param statements - how many prepared statements to cache per
+     * connection.
+     */
+    public ConnectionManager(String url, int readers, long timeoutMillis,
+                             long leakMillis, int statements) throws SQLException {
+        this(url, readers, timeoutMillis, leakMillis, statements, 64, 0);
+    }
+
+    /**
+     * Open the writer and the read pool.
+     * @param url - the JDBC url of the database.
+     * @param readers - the number of read connections to open.
+     * @param timeoutMillis - how long a read waits for a free connection.
+     * @param leakMillis - report read leases held longer than this; 0 for
+     * no leak detection.
+     * @param statements - how many prepared statements to cache per
+     * connection.
+     * @param batchSize - the most writes to commit together; 1 commits each
+     * write on its own.
+     * @param batchWindowMicros - how long the writer waits for more writes
+     * to join a batch; 0 to take only what is already queued.
+     */
+    public ConnectionManager(String url, int readers, long timeoutMillis,
+                             long leakMillis, int statements, int batchSize,
+                             long batchWindowMicros) throws SQLException {
+        this(url, readers, timeoutMillis, leakMillis, statements, batchSize,
+             batchWindowMicros, null);
+    }
+
+    /**
+     * Open the writer and the read pool, with every statement timed for a
+     * slow query log.
+     * @param slow - the slow query log, or null not to time statements; it
+     * is closed with the manager.
+     * @see #ConnectionManager(String, int, long, long, int, int, long)
+     */
+    public ConnectionManager(String url, int readers, long timeoutMillis,
+                             long leakMillis, int statements, int batchSize,
+                             long batchWindowMicros, SlowQueryLog slow)
+        throws SQLException {
+        if (readers < 1) {
+            throw new IllegalArgumentException("Need at least one reader");
+        }
+        if (batchSize < 1 || batchWindowMicros < 0) {
+            throw new IllegalArgumentException("Bad write batch settings");
+        }
+        this.batchSize = batchSize;
+        this.batchWindowNanos = batchWindowMicros * 1000;
+        this.slow = slow;
+        writer = DriverManager.getConnection(url);
+        try (Statement s = writer.createStatement()) {
+            s.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MS);
+            try (ResultSet r = s.executeQuery("PRAGMA journal_mode = WAL")) {
+                if (!r.next() || !"wal".equalsIgnoreCase(r.getString(1))) {
+                    System.out.println("[ConnectionManager] WAL mode not available, "
+                                       + "reads may wait for writes");
+                }
+            }
+        }
+        writer.setAutoCommit(false);
+        writerLease = new Lease(null, new StatementCache(writer, statements, slow), null);
+        control = writer.createStatement();
+
+        List<StatementCache> pool = new ArrayList<>(readers);
+        for (int i = 0; i < readers; i++) {
+            Connection c = DriverManager.getConnection(url);
+            try (Statement s = c.createStatement()) {
+                s.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MS);
+                s.execute("PRAGMA query_only = ON");
+            }
+            // Autocommit so that each read sees the latest committed state
+            // and no reader pins an old snapshot (which blocks checkpoints).
+            c.setAutoCommit(true);
+            pool.add(new StatementCache(c, statements, slow));
+        }
+        this.readers = new ReadPool(pool, timeoutMillis, leakMillis);
+
+        if (leakMillis > 0) {
+            leakCheck = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "read-pool-leak-check");
+                t.setDaemon(true);
+                return t;
+            });
+            leakCheck.scheduleWithFixedDelay(this::reportLeaks,
+                leakMillis, leakMillis, TimeUnit.MILLISECONDS);
+        } else {
+            leakCheck = null;
+        }
+
+        writerThread = new Thread(this::writeLoop, "db-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Borrow a read-only connection.
+     * @return a lease to close once the read is done.
+     * @throws SQLException if no connection became free in time.
+     */
+    public Lease read() throws SQLException {
+        return readers.borrow();
+    }
+
+    /**
+     * Run a unit of work on the writer connection and wait until it has
+     * committed (or rolled back). The work is committed if it returns
+     * success and rolled back otherwise; it may share its transaction with
+     * other callers' work, but never their outcome.
+     * @param work - the transaction body.
+     * @return the result of the work, or fatal on database errors.
+     */
+    public <T> Result<T> write(Transaction<T> work) {
+        if (Thread.currentThread() == writerThread) {
+            // A write from inside a write: already in the transaction.
+            return runNested(work);
+        }
+        Write<T> w = new Write<>(work);
+        if (closed) {
+            return fatal("Database is closed");
+        }
+        writes.add(w);
+        if (closed && writes.remove(w)) {
+            // close() may have drained the queue before we added to it.
+            w.done.complete(fatal("Database is closed"));
+        }
+        try {
+            return w.done.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static class Write<T> {
+        final Transaction<T> work;
+        final CompletableFuture<Result<T>> done = new CompletableFuture<>();
+        /* Set by the writer: the outcome so far, and any unchecked error. */
+        Result<T> result;
+        RuntimeException error;
+
+        Write(Transaction<T> work) {
+            this.work = work;
+        }
+
+        /* Lose the write without running it, or after it has run. */
+        void fail(String message) {
+            result = fatal(message);
+        }
+
+        void abort(String message) {
+            done.complete(fatal(message));
+        }
+
+        void finish() {
+            if (error != null) {
+                done.completeExceptionally(error);
+            } else {
+                done.complete(result);
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<Write<?>> batch = new ArrayList<>(batchSize);
+        while (true) {
+            try {
+                Write<?> first = writes.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed && writes.isEmpty()) { return; }
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + batchWindowNanos;
+                while (batch.size() < batchSize) {
+                    Write<?> next;
+                    long wait = deadline - System.nanoTime();
+                    next = wait > 0 ? writes.poll(wait, TimeUnit.NANOSECONDS)
+                                    : writes.poll();
+                    if (next == null) { break; }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // only close() interrupts, after the queue has been drained
+                return;
+            }
+            runBatch(batch);
+            batch.clear();
+        }
+    }
+
+    /* One transaction for the whole batch, one savepoint per write. */
+    private void runBatch(List<Write<?>> batch) {
+        batches++;
+        batched += batch.size();
+        largestBatch = Math.max(largestBatch, batch.size());
+        int started = 0;
+        try {
+            for (Write<?> w : batch) {
+                started++;
+                runOne(w);
+            }
+            writer.commit();
+        } catch (SQLException e) {
+            // Lost the transaction (the savepoint or the commit failed):
+            // nothing in the batch has been written.
+            try {
+                writer.rollback();
+            } catch (SQLException e1) {
+                System.out.println("[ConnectionManager] rollback failed: " + e1);
+            }
+            String lost = "Something bad happened: " + e;
+            for (int i = 0; i < started; i++) {
+                Write<?> w = batch.get(i);
+                if (w.error == null && (w.result == null || w.result.isSuccess())) {
+                    w.fail(lost);
+                }
+            }
+            for (int i = started; i < batch.size(); i++) {
+                batch.get(i).fail(lost);
+            }
+        }
+        for (Write<?> w : batch) {
+            w.finish();
+        }
+    }
+
+    private <T> void runOne(Write<T> w) throws SQLException {
+        control.execute("SAVEPOINT write");
+        try {
+            w.result = w.work.run(writerLease);
+        } catch (SQLException e) {
+            w.result = fatal("Something bad happened: " + e);
+        } catch (RuntimeException e) {
+            w.error = e;
+        }
+        if (w.result == null || !w.result.isSuccess()) {
+            control.execute("ROLLBACK TO write");
+        }
+        control.execute("RELEASE write");
+    }
+
+    private <T> Result<T> runNested(Transaction<T> work) {
+        try {
+            return work.run(writerLease);
+        } catch (SQLException e) {
+            return fatal("Something bad happened: " + e);
+        }
+    }
+
+    /* Result.fatal is raw; a fatal result holds no value, so it is a
+     * Result of any type. */
+    @SuppressWarnings("unchecked")
+    private static <T> Result<T> fatal(String message) {
+        return Result.fatal(message);
+    }
+
+    /**
+     * @return the read pool, for its statistics.
+     */
+    public ReadPool getReadPool() {
+        return readers;
+    }
+
+    /**
+     * @return the slow query log, or null if statements are not timed.
+     */
+    public SlowQueryLog getSlowQueryLog() {
+        return slow;
+    }
+
+    /**
+     * @return statement cache hits summed over all connections.
+     */
+    public long getStatementCacheHits() {
+        long n = writerLease.raw().getHits();
+        for (StatementCache s : readers.getStatementCaches()) {
+            n += s.getHits();
+        }
+        return n;
+    }
+
+    /**
+     * @return statement cache misses (i.e. statements actually prepared)
+     * summed over all connections.
+     */
+    public long getStatementCacheMisses() {
+        long n = writerLease.raw().getMisses();
+        for (StatementCache s : readers.getStatementCaches()) {
+            n += s.getMisses();
+        }
+        return n;
+    }
+
+    /**
+     * @return statements closed to make room, summed over all connections.
+     */
+    public long getStatementCacheEvictions() {
+        long n = writerLease.raw().getEvictions();
+        for (StatementCache s : readers.getStatementCaches()) {
+            n += s.getEvictions();
+        }
+        return n;
+    }
+
+    /**
+     * @return the number of writes waiting for the writer thread.
+     */
+    public int getWriteQueueLength() {
+        return writes.size();
+    }
+
+    /**
+     * @return the number of transactions (i.e. commits) the writer has run.
+     */
+    public long getWriteBatches() {
+        return batches;
+    }
+
+    /**
+     * @return the number of writes committed or rolled back so far.
+     */
+    public long getWrites() {
+        return batched;
+    }
+
+    /**
+     * @return the most writes that have shared one commit.
+     */
+    public int getLargestWriteBatch() {
+        return largestBatch;
+    }
+
+    private void reportLeaks() {
+        for (String leak : readers.findLeaks()) {
+            System.out.println("[ReadPool] possible connection leak: " + leak);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (leakCheck != null) {
+            leakCheck.shutdownNow();
+        }
+        readers.closeAll();
+        // Let the writer finish what is queued, then stop it.
+        closed = true;
+        try {
+            writerThread.join(30000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writerThread.isAlive()) {
+            writerThread.interrupt();
+        }
+        Write<?> w;
+        while ((w = writes.poll()) != null) {
+            w.abort("Database is closed");
+        }
+        try {
+            control.close();
+        } catch (SQLException e) {
+            // closing anyway
+        }
+        writerLease.raw().close();
+        if (slow != null) {
+            slow.close();
+        }
+    }
+}
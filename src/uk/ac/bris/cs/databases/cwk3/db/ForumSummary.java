@@ -0,0 +1,121 @@
+package uk.ac.bris.cs.databases.cwk3.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import uk.ac.bris.cs.databases.cwk3.db.migrate.Migrations;
+
+/**
+ * The ForumSummary table: one row per forum with everything the main page
+ * shows about it, i.e. the topic with the latest post and that topic's
+ * creator, post count, last poster and likes. It is a projection of the other
+ * tables, kept up to date by the API in the same transaction as each write,
+ * so that getForums and getAdvancedForums read N rows and nothing else.
+ *
+ * If it ever drifts (e.g. after editing the database by hand) run this class
+ * to rebuild it: ForumSummary [database file].
+ * @author csxdb
+ */
+public final class ForumSummary {
+
+    private static final String DEFAULT_DATABASE = "database/database.sqlite3";
+
+    public static final String CREATE_TABLE =
+        "CREATE TABLE IF NOT EXISTS ForumSummary ("
+        + "forum INTEGER PRIMARY KEY REFERENCES Forum(id), "
+        + "title VARCHAR(100) NOT NULL, "
+        + "topic INTEGER NULL REFERENCES Topic(id), "
+        + "topicTitle VARCHAR(100) NULL, "
+        + "topicCreated INTEGER NULL, "
+        + "creatorName VARCHAR(100) NULL, "
+        + "creatorUsername VARCHAR(10) NULL, "
+        + "postCount INTEGER NOT NULL DEFAULT 0, "
+        + "lastPostTime INTEGER NULL, "
+        + "lastPostName VARCHAR(100) NULL, "
+        + "likes INTEGER NOT NULL DEFAULT 0)";
+
+    public static final String CREATE_INDEX =
+        "CREATE INDEX IF NOT EXISTS ForumSummary_title ON ForumSummary(title)";
+
+    /* Recompute every row from scratch. The latest topic is the one with the
+     * latest post; posts in the same second are ordered by insertion (rowid),
+     * which is what the incremental updates see.
+     */
+    public static final String CLEAR = "DELETE FROM ForumSummary";
+    public static final String FILL =
+        "INSERT INTO ForumSummary (forum, title, topic, topicTitle, topicCreated, "
+        + "creatorName, creatorUsername, postCount, lastPostTime, lastPostName, likes) "
+        + "SELECT F.id, F.title, T.id, T.title, T.created, C.name, C.username, "
+        + "(SELECT COUNT(*) FROM Post WHERE Post.topic = T.id), "
+        + "LP.created, A.name, "
+        + "(SELECT COUNT(*) FROM LikeTopic WHERE LikeTopic.topic = T.id) "
+        + "FROM Forum F "
+        + "LEFT JOIN Topic T ON T.id = (SELECT Post.topic FROM Topic "
+        + "INNER JOIN Post ON (Post.topic = Topic.id) WHERE Topic.forum = F.id "
+        + "ORDER BY Post.created DESC, Post.rowid DESC LIMIT 1) "
+        + "LEFT JOIN Person C ON (C.id = T.creator) "
+        + "LEFT JOIN Post LP ON (LP.topic = T.id "
+        + "AND LP.id = (SELECT MAX(id) FROM Post WHERE Post.topic = T.id)) "
+        + "LEFT JOIN Person A ON (A.id = LP.author)";
+
+    /* After createForum: the forum just inserted, with no topics yet. */
+    public static final String ON_FORUM =
+        "INSERT INTO ForumSummary (forum, title) "
+        + "SELECT id, title FROM Forum WHERE id = last_insert_rowid()";
+
+    /* After a post (including a topic's first post) in topic ?1: that topic
+     * becomes its forum's latest. Every right hand side sees the row as it
+     * was before the update, so staying on the same topic is a +1 and only a
+     * change of topic pays for the counts.
+     */
+    public static final String ON_POST =
+        "UPDATE ForumSummary SET "
+        + "postCount = CASE WHEN topic IS ?1 THEN postCount + 1 "
+        + "ELSE (SELECT COUNT(*) FROM Post WHERE Post.topic = ?1) END, "
+        + "likes = CASE WHEN topic IS ?1 THEN likes "
+        + "ELSE (SELECT COUNT(*) FROM LikeTopic WHERE LikeTopic.topic = ?1) END, "
+        + "(topic, topicTitle, topicCreated, creatorName, creatorUsername) = "
+        + "(SELECT Topic.id, Topic.title, Topic.created, Person.name, Person.username "
+        + "FROM Topic INNER JOIN Person ON (Person.id = Topic.creator) WHERE Topic.id = ?1), "
+        + "(lastPostTime, lastPostName) = "
+        + "(SELECT Post.created, Person.name FROM Post INNER JOIN Person "
+        + "ON (Person.id = Post.author) WHERE Post.topic = ?1 ORDER BY Post.id DESC LIMIT 1) "
+        + "WHERE forum = (SELECT forum FROM Topic WHERE id = ?1)";
+
+    /* After a like (+1) or unlike (-1) of topic ?2. */
+    public static final String ON_LIKE =
+        "UPDATE ForumSummary SET likes = likes + ? "
+        + "WHERE forum = (SELECT forum FROM Topic WHERE id = ?2) AND topic = ?2";
+
+    private ForumSummary() {}
+
+    /**
+     * Recompute the whole table. Runs on the caller's transaction.
+     * @return the number of forums summarised.
+     */
+    public static int rebuild(Connection c) throws SQLException {
+        try (Statement s = c.createStatement()) {
+            s.executeUpdate(CLEAR);
+            return s.executeUpdate(FILL);
+        }
+    }
+
+    public static void main(String[] args) throws SQLException {
+        String url = "jdbc:sqlite:" + (args.length > 0 ? args[0] : DEFAULT_DATABASE);
+        Migrations.migrate(url);
+        try (Connection c = DriverManager.getConnection(url)) {
+            c.setAutoCommit(false);
+            long start = System.nanoTime();
+            try {
+                int n = rebuild(c);
+                c.commit();
+                System.out.println("[ForumSummary] rebuilt " + n + " forums in "
+                    + (System.nanoTime() - start) / 1000000 + "ms");
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            }
+        }
+    }
+}
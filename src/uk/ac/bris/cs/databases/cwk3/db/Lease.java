@@ -0,0 +1,91 @@
+package uk.ac.bris.cs.databases.cwk3.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * A connection held for the duration of one API call: either a read
+ * connection borrowed from a ReadPool, or the writer for the length of a
+ * transaction. Close read leases (try-with-resources) to hand the connection
+ * back; a lease held for too long is reported as a possible leak.
+ * @author csxdb
+ */
+public class Lease implements AutoCloseable {
+
+    /* The pool to return to, or null for the writer. */
+    private final ReadPool pool;
+    private final StatementCache statements;
+
+    /* When and by whom the connection was borrowed, for leak reports. */
+    private final long since;
+    private final String owner;
+    private final Throwable origin;
+
+    private boolean closed = false;
+
+    Lease(ReadPool pool, StatementCache statements, Throwable origin) {
+        this.pool = pool;
+        this.statements = statements;
+        this.since = System.nanoTime();
+        this.owner = Thread.currentThread().getName();
+        this.origin = origin;
+    }
+
+    /**
+     * Get the cached prepared statement for this SQL on this connection.
+     * Do not close it; close the result sets it returns instead.
+     * @param sql - the statement text.
+     * @return a statement with its parameters cleared.
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        return statements().prepare(sql);
+    }
+
+    /**
+     * @return the underlying connection, valid until this lease is closed.
+     */
+    public Connection connection() {
+        return statements().getConnection();
+    }
+
+    /**
+     * @return how long this lease has been held, in milliseconds.
+     */
+    public long heldMillis() {
+        return (System.nanoTime() - since) / 1000000;
+    }
+
+    /**
+     * @return the name of the thread that borrowed the connection.
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * @return where the connection was borrowed, or null if leak detection
+     * was off at the time.
+     */
+    Throwable getOrigin() {
+        return origin;
+    }
+
+    StatementCache statements() {
+        if (closed) { throw new IllegalStateException("Lease already closed"); }
+        return statements;
+    }
+
+    StatementCache raw() {
+        return statements;
+    }
+
+    @Override
+    public void close() {
+        if (closed) { return; }
+        closed = true;
+        if (pool != null) {
+            pool.release(this);
+        }
+    }
+}
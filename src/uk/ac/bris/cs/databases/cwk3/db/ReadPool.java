@@ -0,0 +1,174 @@
+package uk.ac.bris.cs.databases.cwk3.db;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size pool of read-only connections. Connections are opened up front
+ * and handed out as Leases; a caller that cannot get one within the timeout
+ * gets an SQLException, which the API turns into a fatal result.
+ * @author csxdb
+ */
+public class ReadPool {
+
+    private final int size;
+    private final long timeoutMillis;
+    private final long leakMillis;
+
+    private final List<StatementCache> all;
+    private final BlockingQueue<StatementCache> idle;
+    private final Set<Lease> leased = ConcurrentHashMap.newKeySet();
+
+    /* Wait statistics: how often we borrowed and how long it took. */
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * @param connections - the read connections to pool, already configured,
+     * each with its own statement cache.
+     * @param timeoutMillis - how long borrow() waits for a free connection.
+     * @param leakMillis - leases held longer than this are reported as leaks;
+     * 0 disables leak detection (and the stack capture it needs).
+     */
+    public ReadPool(List<StatementCache> connections, long timeoutMillis,
+                    long leakMillis) {
+        this.size = connections.size();
+        this.timeoutMillis = timeoutMillis;
+        this.leakMillis = leakMillis;
+        this.all = new ArrayList<>(connections);
+        this.idle = new ArrayBlockingQueue<>(size, false, connections);
+    }
+
+    /**
+     * Borrow a connection, waiting up to the pool timeout for one to be free.
+     * @return a lease that must be closed to return the connection.
+     * @throws SQLException if no connection became free in time.
+     */
+    public Lease borrow() throws SQLException {
+        long start = System.nanoTime();
+        StatementCache c;
+        try {
+            c = idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a read connection");
+        }
+        long waited = System.nanoTime() - start;
+        waitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        if (c == null) {
+            timeouts.increment();
+            throw new SQLException("No read connection free after "
+                                   + timeoutMillis + "ms");
+        }
+        borrows.increment();
+        Lease l = new Lease(this, c,
+            leakMillis > 0 ? new Throwable("Connection borrowed here") : null);
+        leased.add(l);
+        return l;
+    }
+
+    void release(Lease l) {
+        if (leased.remove(l)) {
+            idle.offer(l.raw());
+        }
+    }
+
+    /**
+     * Report leases that have been held longer than the leak threshold.
+     * @return one line per suspected leak; empty if there are none or leak
+     * detection is off.
+     */
+    public List<String> findLeaks() {
+        List<String> leaks = new ArrayList<>();
+        if (leakMillis <= 0) { return leaks; }
+        for (Lease l : leased) {
+            long held = l.heldMillis();
+            if (held > leakMillis) {
+                StringBuilder sb = new StringBuilder();
+                sb.append("held for ").append(held).append("ms by ")
+                  .append(l.getOwner());
+                Throwable t = l.getOrigin();
+                if (t != null) {
+                    for (StackTraceElement e : t.getStackTrace()) {
+                        sb.append("\n    at ").append(e);
+                    }
+                }
+                leaks.add(sb.toString());
+            }
+        }
+        return leaks;
+    }
+
+    /**
+     * @return the number of connections in the pool.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of connections currently borrowed.
+     */
+    public int getActive() {
+        return leased.size();
+    }
+
+    /**
+     * @return the number of successful borrows so far.
+     */
+    public long getBorrows() {
+        return borrows.sum();
+    }
+
+    /**
+     * @return the number of borrows that gave up waiting.
+     */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * @return the total time callers have spent waiting, in nanoseconds.
+     */
+    public long getTotalWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    /**
+     * @return the longest single wait so far, in nanoseconds.
+     */
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    /**
+     * @return the statement caches of the pooled connections.
+     */
+    List<StatementCache> getStatementCaches() {
+        return all;
+    }
+
+    /**
+     * @return the threshold above which a lease counts as leaked.
+     */
+    public long getLeakMillis() {
+        return leakMillis;
+    }
+
+    void closeAll() {
+        for (StatementCache c : all) {
+            c.close();
+        }
+    }
+}
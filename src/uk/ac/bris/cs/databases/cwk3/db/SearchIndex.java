@@ -0,0 +1,203 @@
+package uk.ac.bris.cs.databases.cwk3.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import uk.ac.bris.cs.databases.cwk3.db.migrate.Migrations;
+
+/**
+ * The full-text indexes (SQLite FTS5) behind search: PostSearch over post
+ * text and TopicSearch over topic titles, kept up to date by the API in the
+ * same transaction as createPost and createTopic.
+ *
+ * PostSearch stores no text of its own (contentless) and its rowid is the
+ * post's key, topic << 32 | id, since Post has no stable rowid (VACUUM may
+ * renumber it). TopicSearch reads titles from Topic by id.
+ *
+ * A search ranks (bm25) the CANDIDATES newest matches, which FTS5 reads
+ * straight off its index; ranking every match of a common word would cost
+ * time in proportion to the whole table. Both indexes also index 2 and 3
+ * letter prefixes, so that word* does not have to merge the postings of
+ * every word it matches.
+ *
+ * If the indexes ever drift (e.g. after editing the database by hand) run
+ * this class to rebuild them: SearchIndex [database file].
+ * @author csxdb
+ */
+public final class SearchIndex {
+
+    private static final String DEFAULT_DATABASE = "database/database.sqlite3";
+
+    /** How many of the newest matches a search ranks. */
+    public static final int CANDIDATES = 1000;
+
+    /* Most words in a query; every one must match. */
+    private static final int MAX_TERMS = 16;
+
+    private static final String TOKENIZE =
+        "prefix = '2 3', tokenize = 'porter unicode61 remove_diacritics 2'";
+
+    public static final String CREATE_POSTS =
+        "CREATE VIRTUAL TABLE IF NOT EXISTS PostSearch USING fts5("
+        + "content, content = '', " + TOKENIZE + ")";
+
+    public static final String CREATE_TOPICS =
+        "CREATE VIRTUAL TABLE IF NOT EXISTS TopicSearch USING fts5("
+        + "title, content = 'Topic', content_rowid = 'id', " + TOKENIZE + ")";
+
+    /* Backfills, by rowid range: exclusive lower and inclusive upper. */
+    public static final String FILL_POSTS =
+        "INSERT INTO PostSearch (rowid, content) "
+        + "SELECT (topic << 32) | id, content FROM Post WHERE rowid > ? AND rowid <= ?";
+    public static final String FILL_TOPICS =
+        "INSERT INTO TopicSearch (rowid, title) "
+        + "SELECT id, title FROM Topic WHERE id > ? AND id <= ?";
+
+    /* After inserting a post: the row just inserted. */
+    public static final String ON_POST =
+        "INSERT INTO PostSearch (rowid, content) "
+        + "SELECT (topic << 32) | id, content FROM Post WHERE rowid = last_insert_rowid()";
+
+    /* After inserting topic ?. */
+    public static final String ON_TOPIC =
+        "INSERT INTO TopicSearch (rowid, title) SELECT id, title FROM Topic WHERE id = ?";
+
+    private SearchIndex() {}
+
+    /**
+     * The hits of one page, as rows (hit, score) best first, for a FROM
+     * clause. Parameters: the match expression, the page size and offset.
+     * @param table - PostSearch or TopicSearch.
+     */
+    public static String hits(String table) {
+        return "SELECT rowid AS hit, score FROM (SELECT rowid, rank AS score FROM " + table
+            + " WHERE " + table + " MATCH ? ORDER BY rowid DESC LIMIT " + CANDIDATES
+            + ") ORDER BY score LIMIT ? OFFSET ?";
+    }
+
+    /**
+     * Turn what someone typed into an FTS5 query: every word must match,
+     * "a phrase" in double quotes matches as a phrase and word* matches a
+     * prefix. Everything else is punctuation, so no input is a syntax error.
+     * @return the query, or null if there are no words in it.
+     */
+    public static String match(String text) {
+        if (text == null) { return null; }
+        StringBuilder q = new StringBuilder();
+        int terms = 0;
+        int i = 0;
+        int n = text.length();
+        while (i < n && terms < MAX_TERMS) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                int end = text.indexOf('"', i + 1);
+                if (end < 0) { end = n; }
+                String phrase = words(text.substring(i + 1, end));
+                if (!phrase.isEmpty()) {
+                    q.append(q.length() == 0 ? "" : " ").append('"').append(phrase).append('"');
+                    terms++;
+                }
+                i = end + 1;
+            } else if (Character.isLetterOrDigit(c)) {
+                int end = i;
+                while (end < n && Character.isLetterOrDigit(text.charAt(end))) { end++; }
+                q.append(q.length() == 0 ? "" : " ").append('"')
+                 .append(text, i, end).append('"');
+                if (end < n && text.charAt(end) == '*') {
+                    q.append('*');
+                    end++;
+                }
+                terms++;
+                i = end;
+            } else {
+                i++;
+            }
+        }
+        return terms == 0 ? null : q.toString();
+    }
+
+    /* The words of s separated by single spaces. */
+    private static String words(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(c);
+            } else if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ') {
+                sb.append(' ');
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    /**
+     * Index the posts and topics after the given rowid / id, e.g. the ones a
+     * bulk load added. Runs on the caller's transaction.
+     * @return the number of posts and topics indexed.
+     */
+    public static long indexAfter(Connection c, long postRowid, long topicId)
+        throws SQLException {
+        long n = 0;
+        try (PreparedStatement p = c.prepareStatement(FILL_POSTS)) {
+            p.setLong(1, postRowid);
+            p.setLong(2, Long.MAX_VALUE);
+            n += p.executeUpdate();
+        }
+        try (PreparedStatement p = c.prepareStatement(FILL_TOPICS)) {
+            p.setLong(1, topicId);
+            p.setLong(2, Long.MAX_VALUE);
+            n += p.executeUpdate();
+        }
+        return n;
+    }
+
+    /**
+     * Recompute both indexes from scratch. Runs on the caller's transaction.
+     */
+    public static void rebuild(Connection c) throws SQLException {
+        try (Statement s = c.createStatement()) {
+            s.execute("INSERT INTO PostSearch (PostSearch) VALUES ('delete-all')");
+            s.execute("INSERT INTO TopicSearch (TopicSearch) VALUES ('rebuild')");
+        }
+        try (PreparedStatement p = c.prepareStatement(FILL_POSTS)) {
+            p.setLong(1, Long.MIN_VALUE);
+            p.setLong(2, Long.MAX_VALUE);
+            p.executeUpdate();
+        }
+        try (Statement s = c.createStatement()) {
+            s.execute("INSERT INTO PostSearch (PostSearch) VALUES ('optimize')");
+            s.execute("INSERT INTO TopicSearch (TopicSearch) VALUES ('optimize')");
+        }
+    }
+
+    /**
+     * @return the largest rowid in a table, 0 if it is empty.
+     */
+    public static long maxRowid(Connection c, String table) throws SQLException {
+        try (Statement s = c.createStatement();
+             ResultSet r = s.executeQuery("SELECT COALESCE(MAX(rowid), 0) FROM " + table)) {
+            return r.next() ? r.getLong(1) : 0;
+        }
+    }
+
+    public static void main(String[] args) throws SQLException {
+        String url = "jdbc:sqlite:" + (args.length > 0 ? args[0] : DEFAULT_DATABASE);
+        Migrations.migrate(url);
+        try (Connection c = DriverManager.getConnection(url)) {
+            c.setAutoCommit(false);
+            long start = System.nanoTime();
+            try {
+                rebuild(c);
+                c.commit();
+                System.out.println("[SearchIndex] rebuilt in "
+                    + (System.nanoTime() - start) / 1000000 + "ms");
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package uk.ac.bris.cs.databases.cwk3.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import uk.ac.bris.cs.databases.util.Threads;
+
+/**
+ * Times every statement that StatementCaches hand out and records the ones
+ * over a threshold: the SQL, the shapes of its parameters (types and string
+ * lengths, never the values), the rows it returned or changed, the time
+ * and SQLite's EXPLAIN QUERY PLAN for it. The newest KEEP are kept in memory
+ * for the /admin/slow-queries page, and all of them are appended to a log
+ * file that is rotated at FILE_BYTES, keeping FILES old ones.
+ *
+ * The time of a query covers executing it and stepping through its rows
+ * (ResultSet.next), not what the caller does between rows. It ends when the
+ * last row has been read or the result set is closed. A batch
+ * (executeBatch) is timed as one statement.
+ *
+ * Statements are wrapped in a TimedStatement, a plain delegate that only
+ * reads the clock around executing and stepping. The plan costs another
+ * query, on the connection that ran the slow one while its caller still
+ * holds it, so at most perSecond slow queries a second are recorded in full
+ * and the rest are only counted.
+ * @author csxdb
+ */
+public final class SlowQueryLog implements AutoCloseable {
+
+    /** How many slow queries to keep in memory. */
+    public static final int KEEP = 100;
+
+    private static final long FILE_BYTES = 10L << 20;
+    private static final int FILES = 3;
+
+    /* Stands for a parameter set with setNull. */
+    static final Object NULL = new Object();
+
+    /**
+     * One slow query.
+     */
+    public static final class Entry {
+        private final long at;
+        private final String thread;
+        private final String sql;
+        private final String params;
+        private final long rows;
+        private final long nanos;
+        private final String plan;
+
+        Entry(long at, String thread, String sql, String params, long rows,
+              long nanos, String plan) {
+            this.at = at;
+            this.thread = thread;
+            this.sql = sql;
+            this.params = params;
+            this.rows = rows;
+            this.nanos = nanos;
+            this.plan = plan;
+        }
+
+        /** @return when it finished, in milliseconds since the epoch. */
+        public long getAt() { return at; }
+        public String getThread() { return thread; }
+        public String getSql() { return sql; }
+        /** @return the parameter shapes, e.g. "integer, text(12)". */
+        public String getParams() { return params; }
+        public long getRows() { return rows; }
+        public double getMillis() { return nanos / 1e6; }
+        /** @return the query plan, one indented line per step. */
+        public String getPlan() { return plan; }
+
+        @Override
+        public String toString() {
+            return Instant.ofEpochMilli(at) + " " + String.format("%.1f", getMillis())
+                + "ms " + rows + " rows [" + thread + "]\n" + sql
+                + "\nparams: " + (params.isEmpty() ? "none" : params)
+                + "\nplan:\n" + plan + "\n";
+        }
+    }
+
+    private final long thresholdNanos;
+    private final int perSecond;
+    private final File file;
+    private final ExecutorService writer;
+
+    /* Guarded by this: the ring of recent entries and the sampling window. */
+    private final Entry[] recent = new Entry[KEEP];
+    private int next = 0;
+    private long windowStart = System.nanoTime();
+    private int inWindow = 0;
+
+    private final LongAdder slow = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    /**
+     * @param thresholdMillis - record statements that take at least this.
+     * @param perSecond - the most slow statements to record in a second.
+     * @param file - the log file, or null to keep them in memory only.
+     */
+    public SlowQueryLog(long thresholdMillis, int perSecond, File file) {
+        if (thresholdMillis < 0 || perSecond < 1) {
+            throw new IllegalArgumentException("Bad slow query log settings");
+        }
+        this.thresholdNanos = thresholdMillis * 1000000;
+        this.perSecond = perSecond;
+        this.file = file;
+        this.writer = file == null ? null
+            : Executors.newSingleThreadExecutor(Threads.daemon("slow-query-log"));
+    }
+
+    /**
+     * @return a statement that behaves as p but times what it runs.
+     */
+    PreparedStatement wrap(PreparedStatement p, String sql) {
+        return new TimedStatement(this, p, sql);
+    }
+
+    /**
+     * @return the recorded slow queries, newest first.
+     */
+    public synchronized List<Entry> getRecent() {
+        List<Entry> l = new ArrayList<>(KEEP);
+        for (int i = 1; i <= KEEP; i++) {
+            Entry e = recent[(next - i + KEEP) % KEEP];
+            if (e == null) { break; }
+            l.add(e);
+        }
+        return l;
+    }
+
+    public long getThresholdMillis() {
+        return thresholdNanos / 1000000;
+    }
+
+    /**
+     * @return every statement over the threshold so far, recorded or not.
+     */
+    public long getSlow() {
+        return slow.sum();
+    }
+
+    /**
+     * @return slow statements only counted, over the per second limit.
+     */
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * Finish writing the log file.
+     */
+    @Override
+    public void close() {
+        if (writer == null) { return; }
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized boolean sample() {
+        long now = System.nanoTime();
+        if (now - windowStart >= 1000000000L) {
+            windowStart = now;
+            inWindow = 0;
+        }
+        return inWindow++ < perSecond;
+    }
+
+    /* A statement took nanos in all; record it if it was slow. */
+    void finished(PreparedStatement p, String sql, Object[] params,
+                  long rows, long nanos) {
+        if (nanos < thresholdNanos) { return; }
+        slow.increment();
+        if (!sample()) {
+            skipped.increment();
+            return;
+        }
+        String plan;
+        try {
+            plan = explain(p.getConnection(), sql, params);
+        } catch (SQLException e) {
+            plan = "  (no plan: " + e.getMessage() + ")";
+        }
+        Entry e = new Entry(System.currentTimeMillis(), Thread.currentThread().getName(),
+                            sql, shapes(params), rows, nanos, plan);
+        synchronized (this) {
+            recent[next] = e;
+            next = (next + 1) % KEEP;
+        }
+        if (writer != null) {
+            writer.execute(() -> append(e.toString() + "\n"));
+        }
+    }
+
+    /* EXPLAIN QUERY PLAN rows are (id, parent, notused, detail); a step is
+     * indented under its parent. */
+    private static String explain(Connection c, String sql, Object[] params)
+        throws SQLException {
+        StringBuilder sb = new StringBuilder();
+        Map<Integer, Integer> depth = new HashMap<>();
+        try (PreparedStatement p = c.prepareStatement("EXPLAIN QUERY PLAN " + sql)) {
+            for (int i = 1; i < params.length && i <= p.getParameterMetaData()
+                                                          .getParameterCount(); i++) {
+                p.setObject(i, params[i] == NULL ? null : params[i]);
+            }
+            try (ResultSet r = p.executeQuery()) {
+                while (r.next()) {
+                    int d = depth.getOrDefault(r.getInt(2), 0) + 1;
+                    depth.put(r.getInt(1), d);
+                    for (int i = 0; i < d; i++) { sb.append("  "); }
+                    sb.append(r.getString(4)).append('\n');
+                }
+            }
+        }
+        return sb.length() == 0 ? "  (none)" : sb.substring(0, sb.length() - 1);
+    }
+
+    private static String shapes(Object[] params) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i < params.length; i++) {
+            Object v = params[i];
+            if (v == null) { continue; }
+            if (sb.length() > 0) { sb.append(", "); }
+            sb.append(i).append(": ");
+            if (v == NULL) {
+                sb.append("null");
+            } else if (v instanceof String) {
+                sb.append("text(").append(((String) v).length()).append(')');
+            } else if (v instanceof byte[]) {
+                sb.append("blob(").append(((byte[]) v).length).append(')');
+            } else if (v instanceof Long || v instanceof Integer || v instanceof Short
+                       || v instanceof Byte || v instanceof Boolean) {
+                sb.append("integer");
+            } else if (v instanceof Double || v instanceof Float) {
+                sb.append("real");
+            } else {
+                sb.append(v.getClass().getSimpleName());
+            }
+        }
+        return sb.toString();
+    }
+
+    /* On the writer thread only. */
+    private void append(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        try {
+            if (file.length() > 0 && file.length() + bytes.length > FILE_BYTES) {
+                rotate();
+            }
+            Files.write(file.toPath(), bytes, StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.out.println("[SlowQueryLog] cannot write " + file + ": " + e);
+        }
+    }
+
+    /* file.N-1 -> file.N ... file -> file.1; the oldest is dropped. */
+    private void rotate() throws IOException {
+        Path p = file.toPath();
+        for (int i = FILES; i >= 1; i--) {
+            Path from = i == 1 ? p : p.resolveSibling(file.getName() + "." + (i - 1));
+            if (Files.exists(from)) {
+                Files.move(from, p.resolveSibling(file.getName() + "." + i),
+                           StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+}
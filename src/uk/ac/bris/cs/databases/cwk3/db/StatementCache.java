@@ -0,0 +1,139 @@
+package uk.ac.bris.cs.databases.cwk3.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prepared statements for one connection, keyed by SQL text, so that SQLite
+ * parses and plans each query once per connection rather than once per call.
+ * Bounded, least recently used statements are closed when it is full.
+ *
+ * A cache is only ever used by the thread holding its connection (a read
+ * lease's borrower, or the writer thread for the writer connection), so
+ * statements are never shared between concurrent requests; callers must not
+ * close the statements they get, only their result sets.
+ *
+ * With a SlowQueryLog every statement is prepared wrapped, so that it is
+ * timed on every use.
+ * @author csxdb
+ */
+public class StatementCache {
+
+    private final Connection c;
+    private final int capacity;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+    private final SlowQueryLog slow;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public StatementCache(Connection c, int capacity) {
+        this(c, capacity, null);
+    }
+
+    /**
+     * @param slow - the log to time statements for, or null.
+     */
+    public StatementCache(Connection c, int capacity, SlowQueryLog slow) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.c = c;
+        this.capacity = capacity;
+        this.slow = slow;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> e) {
+                if (size() > StatementCache.this.capacity) {
+                    evictions.incrementAndGet();
+                    closeQuietly(e.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get a prepared statement for this SQL, preparing it on first use.
+     * @param sql - the statement text; use constant strings, as every
+     * distinct text takes a slot.
+     * @return a statement with its parameters cleared.
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement p = statements.get(sql);
+        if (p != null && !p.isClosed()) {
+            hits.incrementAndGet();
+            p.clearParameters();
+            return p;
+        }
+        misses.incrementAndGet();
+        p = c.prepareStatement(sql);
+        if (slow != null) {
+            p = slow.wrap(p, sql);
+        }
+        statements.put(sql, p);
+        return p;
+    }
+
+    /**
+     * @return the connection the statements belong to.
+     */
+    public Connection getConnection() {
+        return c;
+    }
+
+    /**
+     * @return the maximum number of statements kept.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of statements currently cached.
+     */
+    public int getSize() {
+        return statements.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Close every cached statement and then the connection.
+     */
+    void close() {
+        for (PreparedStatement p : statements.values()) {
+            closeQuietly(p);
+        }
+        statements.clear();
+        try {
+            c.close();
+        } catch (SQLException e) {
+            // closing anyway
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement p) {
+        try {
+            p.close();
+        } catch (SQLException e) {
+            // nothing to do, the statement is gone either way
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package uk.ac.bris.cs.databases.cwk3.db;
+
+import java.sql.SQLException;
+import uk.ac.bris.cs.databases.api.Result;
+
+/**
+ * A unit of work run on the writer connection, passed in as a Lease for the
+ * length of the transaction. Return success to commit, failure or fatal to
+ * roll back; a thrown SQLException also rolls back. The work may share a
+ * transaction with other writes (see ConnectionManager), so it must not
+ * commit or roll back the connection itself.
+ * @param <T> The result type if the work succeeds.
+ * @author csxdb
+ */
+public interface Transaction<T> {
+
+    Result<T> run(Lease l) throws SQLException;
+}
@@ -0,0 +1,95 @@
+package uk.ac.bris.cs.databases.cwk3.db.migrate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Creates a table and fills it from an existing one, e.g. an index or a
+ * projection of it. Rows are read in rowid ranges of a fixed size, each
+ * range in its own committed transaction together with a progress marker,
+ * so a backfill of a large table that is interrupted carries on from the
+ * last committed range when the server next starts.
+ * @author csxdb
+ */
+public class Backfill extends Migration {
+
+    private static final int BATCH = 50000;
+
+    private final String table;
+    private final String create;
+    private final String fill;
+
+    /**
+     * @param table - the table to read from, by rowid.
+     * @param create - an idempotent statement creating the table to fill.
+     * @param fill - INSERT into it selecting from the table with two
+     * parameters, the exclusive lower and inclusive upper rowid.
+     */
+    public Backfill(int version, String description, String table,
+                    String create, String fill) {
+        super(version, description);
+        this.table = table;
+        this.create = create;
+        this.fill = fill;
+    }
+
+    @Override
+    public void apply(Connection c) throws SQLException {
+        try (Statement s = c.createStatement()) {
+            s.execute("CREATE TABLE IF NOT EXISTS MigrationProgress ("
+                      + "version INTEGER PRIMARY KEY, position INTEGER NOT NULL)");
+            s.execute(create);
+        }
+        c.commit();
+
+        long position = position(c);
+        long max;
+        try (Statement s = c.createStatement();
+             ResultSet r = s.executeQuery("SELECT COALESCE(MAX(rowid), 0) FROM " + table)) {
+            max = r.next() ? r.getLong(1) : 0;
+        }
+        if (position > 0) {
+            System.out.println("[Migrations] resuming " + table + " at row " + position);
+        }
+
+        try (PreparedStatement p = c.prepareStatement(fill);
+             PreparedStatement mark = c.prepareStatement(
+                 "INSERT OR REPLACE INTO MigrationProgress (version, position) VALUES (?, ?)")) {
+            while (position < max) {
+                long upto = Math.min(position + BATCH, max);
+                p.setLong(1, position);
+                p.setLong(2, upto);
+                p.executeUpdate();
+                mark.setInt(1, getVersion());
+                mark.setLong(2, upto);
+                mark.executeUpdate();
+                c.commit();
+                position = upto;
+            }
+        }
+
+        try (Statement s = c.createStatement()) {
+            s.execute("DELETE FROM MigrationProgress WHERE version = " + getVersion());
+        }
+    }
+
+    /**
+     * @return the table read from.
+     */
+    protected String getTable() {
+        return table;
+    }
+
+    private long position(Connection c) throws SQLException {
+        try (PreparedStatement p = c.prepareStatement(
+                 "SELECT position FROM MigrationProgress WHERE version = ?")) {
+            p.setInt(1, getVersion());
+            try (ResultSet r = p.executeQuery()) {
+                return r.next() ? r.getLong(1) : 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package uk.ac.bris.cs.databases.cwk3.db.migrate;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * One step from schema version n-1 to n. The runner calls apply() with
+ * autocommit off and then records the new version and commits, so whatever
+ * apply() leaves uncommitted becomes visible together with the version bump.
+ * A migration may commit intermediate work itself (e.g. a long copy) as long
+ * as running it again after a crash picks up where it stopped.
+ * @author csxdb
+ */
+public abstract class Migration {
+
+    private final int version;
+    private final String description;
+
+    protected Migration(int version, String description) {
+        this.version = version;
+        this.description = description;
+    }
+
+    public abstract void apply(Connection c) throws SQLException;
+
+    /**
+     * @return the schema version after this migration.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return a one-line description for the startup log.
+     */
+    public String getDescription() {
+        return description;
+    }
+}
@@ -0,0 +1,181 @@
+package uk.ac.bris.cs.databases.cwk3.db.migrate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import uk.ac.bris.cs.databases.cwk3.db.ForumSummary;
+import uk.ac.bris.cs.databases.cwk3.db.SearchIndex;
+
+/**
+ * The schema migrations, in order, and the runner that applies them. The
+ * schema version lives in SQLite's user_version header field: database/
+ * setup.sql creates version 0 and every migration with a higher version is
+ * applied at startup.
+ * @author csxdb
+ */
+public class Migrations {
+
+    /* Turns a legacy person column, which may hold a username, into an id. */
+    private static final String PERSON_ID =
+        "CASE WHEN typeof(person) = 'integer' THEN person "
+        + "ELSE (SELECT id FROM Person WHERE username = person) END";
+
+    public static final List<Migration> ALL = Collections.unmodifiableList(Arrays.asList(
+
+        // Person needs none: every lookup is one row by username, which the
+        // UNIQUE constraint's index already finds.
+        new SqlMigration(1, "indexes for the API read paths",
+            // getSimpleForums ordering and the createForum duplicate check
+            "CREATE INDEX IF NOT EXISTS Forum_title ON Forum(title)",
+            // getForum, and the latest topic per forum
+            "CREATE INDEX IF NOT EXISTS Topic_forum ON Topic(forum, created, title)",
+            // posts of a topic by number: paging, counts, latest post
+            "CREATE INDEX IF NOT EXISTS Post_topic ON Post(topic, id, created)",
+            // posts by a person
+            "CREATE INDEX IF NOT EXISTS Post_author ON Post(author)"),
+
+        new TableRebuild(2, "LikeTopic keyed by (topic, person)", "LikeTopic",
+            "CREATE TABLE IF NOT EXISTS LikeTopic_new ("
+            + "topic INTEGER NOT NULL REFERENCES Topic(id), "
+            + "person INTEGER NOT NULL REFERENCES Person(id), "
+            + "PRIMARY KEY (topic, person)) WITHOUT ROWID",
+            "INSERT OR IGNORE INTO LikeTopic_new (topic, person) "
+            + "SELECT topic, p FROM (SELECT topic, " + PERSON_ID + " AS p FROM LikeTopic "
+            + "WHERE rowid > ? AND rowid <= ?) WHERE topic IS NOT NULL AND p IS NOT NULL",
+            "CREATE INDEX IF NOT EXISTS LikeTopic_person ON LikeTopic(person, topic)"),
+
+        new TableRebuild(3, "FavTopic keyed by (person, topic)", "FavTopic",
+            "CREATE TABLE IF NOT EXISTS FavTopic_new ("
+            + "person INTEGER NOT NULL REFERENCES Person(id), "
+            + "topic INTEGER NOT NULL REFERENCES Topic(id), "
+            + "PRIMARY KEY (person, topic)) WITHOUT ROWID",
+            "INSERT OR IGNORE INTO FavTopic_new (person, topic) "
+            + "SELECT p, topic FROM (SELECT topic, " + PERSON_ID + " AS p FROM FavTopic "
+            + "WHERE rowid > ? AND rowid <= ?) WHERE topic IS NOT NULL AND p IS NOT NULL",
+            "CREATE INDEX IF NOT EXISTS FavTopic_topic ON FavTopic(topic, person)"),
+
+        // Post ids are only unique within a topic, which the old LikePost
+        // could not express; old likes go to the first topic with that post.
+        new TableRebuild(4, "LikePost keyed by (topic, post, person)", "LikePost",
+            "CREATE TABLE IF NOT EXISTS LikePost_new ("
+            + "topic INTEGER NOT NULL REFERENCES Topic(id), "
+            + "post INTEGER NOT NULL, "
+            + "person INTEGER NOT NULL REFERENCES Person(id), "
+            + "PRIMARY KEY (topic, post, person)) WITHOUT ROWID",
+            "INSERT OR IGNORE INTO LikePost_new (topic, post, person) "
+            + "SELECT t, post, p FROM (SELECT post, " + PERSON_ID + " AS p, "
+            + "(SELECT MIN(topic) FROM Post WHERE Post.id = LikePost.post) AS t FROM LikePost "
+            + "WHERE rowid > ? AND rowid <= ?) "
+            + "WHERE t IS NOT NULL AND post IS NOT NULL AND p IS NOT NULL",
+            "CREATE INDEX IF NOT EXISTS LikePost_person ON LikePost(person, topic, post)"),
+
+        new SqlMigration(5, "ForumSummary projection for the main page",
+            ForumSummary.CREATE_TABLE,
+            ForumSummary.CREATE_INDEX,
+            ForumSummary.CLEAR,
+            ForumSummary.FILL),
+
+        new Backfill(6, "full-text index of posts", "Post",
+            SearchIndex.CREATE_POSTS, SearchIndex.FILL_POSTS),
+
+        new Backfill(7, "full-text index of topic titles", "Topic",
+            SearchIndex.CREATE_TOPICS, SearchIndex.FILL_TOPICS),
+
+        // version 1 once made this, duplicating the UNIQUE(username) index
+        new SqlMigration(8, "drop the redundant Person username index",
+            "DROP INDEX IF EXISTS Person_username")
+    ));
+
+    private Migrations() {}
+
+    /**
+     * @return the schema version this code expects.
+     */
+    public static int latest() {
+        return ALL.get(ALL.size() - 1).getVersion();
+    }
+
+    /**
+     * Open the database and bring its schema up to date.
+     * @param url - the JDBC url of the database.
+     * @return the schema version afterwards.
+     */
+    public static int migrate(String url) throws SQLException {
+        try (Connection c = DriverManager.getConnection(url)) {
+            return migrate(c);
+        }
+    }
+
+    /**
+     * Apply every migration newer than the database's version, each in its
+     * own transaction.
+     * @param c - a connection nothing else is writing through.
+     * @return the schema version afterwards.
+     */
+    public static int migrate(Connection c) throws SQLException {
+        boolean autoCommit = c.getAutoCommit();
+        c.setAutoCommit(false);
+        try {
+            int current = version(c);
+            if (current > latest()) {
+                System.out.println("[Migrations] database is at version " + current
+                                   + ", newer than this code (" + latest() + ")");
+            }
+            for (Migration m : ALL) {
+                if (m.getVersion() <= current) { continue; }
+                System.out.println("[Migrations] " + current + " -> " + m.getVersion()
+                                   + ": " + m.getDescription());
+                try {
+                    m.apply(c);
+                    try (Statement s = c.createStatement()) {
+                        s.execute("PRAGMA user_version = " + m.getVersion());
+                    }
+                    c.commit();
+                } catch (SQLException e) {
+                    c.rollback();
+                    throw e;
+                }
+                current = m.getVersion();
+            }
+            return current;
+        } finally {
+            c.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Create schema version 0 by running a setup script such as
+     * database/setup.sql, which drops and recreates every table.
+     * @param c - the connection to run it on.
+     * @param setup - the script; statements separated by semicolons.
+     */
+    public static void create(Connection c, File setup) throws IOException, SQLException {
+        String sql = new String(Files.readAllBytes(setup.toPath()), StandardCharsets.UTF_8);
+        try (Statement s = c.createStatement()) {
+            for (String stmt : sql.split(";")) {
+                if (!stmt.trim().isEmpty()) {
+                    s.execute(stmt);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the schema version recorded in the database.
+     */
+    public static int version(Connection c) throws SQLException {
+        try (Statement s = c.createStatement();
+             ResultSet r = s.executeQuery("PRAGMA user_version")) {
+            return r.next() ? r.getInt(1) : 0;
+        }
+    }
+}
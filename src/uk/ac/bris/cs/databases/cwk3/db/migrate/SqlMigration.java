@@ -0,0 +1,29 @@
+package uk.ac.bris.cs.databases.cwk3.db.migrate;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A migration made of plain statements, run in a single transaction. The
+ * statements should be idempotent (CREATE INDEX IF NOT EXISTS and so on).
+ * @author csxdb
+ */
+public class SqlMigration extends Migration {
+
+    private final String[] statements;
+
+    public SqlMigration(int version, String description, String... statements) {
+        super(version, description);
+        this.statements = statements;
+    }
+
+    @Override
+    public void apply(Connection c) throws SQLException {
+        try (Statement s = c.createStatement()) {
+            for (String sql : statements) {
+                s.execute(sql);
+            }
+        }
+    }
+}
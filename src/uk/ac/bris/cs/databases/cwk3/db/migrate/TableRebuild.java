@@ -0,0 +1,45 @@
+package uk.ac.bris.cs.databases.cwk3.db.migrate;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Rebuilds a table into a new shape (typically a composite-key WITHOUT ROWID
+ * table). Rows are copied into table_new as a Backfill, so a rebuild of a
+ * large table that is interrupted carries on from the last committed range
+ * when the server next starts. The final swap (drop, rename, create
+ * indexes) is left uncommitted for the runner to commit with the version.
+ * @author csxdb
+ */
+public class TableRebuild extends Backfill {
+
+    private final String[] after;
+
+    /**
+     * @param table - the table to rebuild; it is copied into table_new.
+     * @param create - CREATE TABLE IF NOT EXISTS for table_new.
+     * @param copy - INSERT into table_new selecting from the old table with
+     * two parameters, the exclusive lower and inclusive upper rowid.
+     * @param after - statements to run once table_new has been renamed,
+     * e.g. secondary indexes.
+     */
+    public TableRebuild(int version, String description, String table,
+                        String create, String copy, String... after) {
+        super(version, description, table, create, copy);
+        this.after = after;
+    }
+
+    @Override
+    public void apply(Connection c) throws SQLException {
+        super.apply(c);
+        String table = getTable();
+        try (Statement s = c.createStatement()) {
+            s.execute("DROP TABLE " + table);
+            s.execute("ALTER TABLE " + table + "_new RENAME TO " + table);
+            for (String sql : after) {
+                s.execute(sql);
+            }
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package uk.ac.bris.cs.databases.cwk3.load;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import uk.ac.bris.cs.databases.cwk3.db.ForumSummary;
+import uk.ac.bris.cs.databases.cwk3.db.SearchIndex;
+import uk.ac.bris.cs.databases.cwk3.db.migrate.Migrations;
+import uk.ac.bris.cs.databases.cwk3.load.DumpFormat.Kind;
+import uk.ac.bris.cs.databases.cwk3.load.DumpFormat.Row;
+
+/**
+ * Loads a forum dump (see DumpFormat) into a database far faster than
+ * running it as a script of INSERTs:
+ *
+ *  - one thread reads the file in chunks of lines and worker threads parse
+ *    them; both hand over through short bounded queues, so memory stays
+ *    constant however big the dump is;
+ *  - this thread is the only writer: batched prepared INSERT OR IGNOREs,
+ *    committed every load.commitRows rows with synchronous=OFF;
+ *  - the secondary indexes are dropped first and built once at the end,
+ *    which is much cheaper than maintaining them row by row;
+ *  - the new posts and topics are added to the search indexes in one go
+ *    at the end (also after a failure, for what was committed);
+ *  - ForumSummary is rebuilt and ANALYZE run at the end, so the loaded
+ *    database is ready for the server as it is.
+ *
+ * Records whose key is already in the database are skipped, so a load that
+ * was interrupted can be rerun. A missing database is created from
+ * database/setup.sql and migrated first.
+ *
+ * Usage: BulkLoader dump-file [database file]. Tuning: -Dload.threads,
+ * -Dload.commitRows, -Dload.maxErrors.
+ * @author csxdb
+ */
+public class BulkLoader {
+
+    private static final String DEFAULT_DATABASE = "database/database.sqlite3";
+    private static final String SETUP = "database/setup.sql";
+
+    private static final int CHUNK_LINES = 4096;
+    private static final int STATEMENT_BATCH = 1000;
+    private static final long PROGRESS_MILLIS = 5000;
+    private static final int ERRORS_SHOWN = 20;
+
+    private final Connection c;
+    private final int threads;
+    private final long commitRows;
+    private final long maxErrors;
+
+    private final Map<Kind, PreparedStatement> inserts = new EnumMap<>(Kind.class);
+    private final Map<Kind, Integer> batched = new EnumMap<>(Kind.class);
+    private final long[] loaded = new long[Kind.values().length];
+    private long rows;
+    private long errors;
+
+    public BulkLoader(Connection c, int threads, long commitRows, long maxErrors) {
+        this.c = c;
+        this.threads = threads;
+        this.commitRows = commitRows;
+        this.maxErrors = maxErrors;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: BulkLoader dump-file [database file]");
+            System.exit(1);
+        }
+        String database = args.length > 1 ? args[1] : DEFAULT_DATABASE;
+        try (BufferedReader in = Files.newBufferedReader(new File(args[0]).toPath(),
+                                                         StandardCharsets.UTF_8)) {
+            load(in, database);
+        }
+    }
+
+    /**
+     * Load a dump into a database file, creating and migrating it first if
+     * it has no schema, with the settings from the load.* properties.
+     */
+    public static void load(BufferedReader dump, String database)
+        throws IOException, SQLException, InterruptedException {
+        int threads = Integer.getInteger("load.threads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        long commitRows = Long.getLong("load.commitRows", 200000);
+        long maxErrors = Long.getLong("load.maxErrors", 1000);
+
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + database)) {
+            if (!hasTable(c, "Person")) {
+                System.out.println("[BulkLoader] no schema, creating it from " + SETUP);
+                Migrations.create(c, new File(SETUP));
+            }
+            Migrations.migrate(c);
+            new BulkLoader(c, threads, commitRows, maxErrors).load(dump);
+        }
+    }
+
+    /**
+     * Load a dump, then rebuild the indexes and ForumSummary. The indexes
+     * are put back even if the load fails part way through.
+     */
+    public void load(BufferedReader dump) throws IOException, SQLException,
+                                                 InterruptedException {
+        long start = System.nanoTime();
+        try (Statement s = c.createStatement()) {
+            s.execute("PRAGMA synchronous = OFF");
+            s.execute("PRAGMA cache_size = -65536");
+            s.execute("PRAGMA temp_store = MEMORY");
+        }
+        c.setAutoCommit(false);
+        long lastPost = SearchIndex.maxRowid(c, "Post");
+        long lastTopic = SearchIndex.maxRowid(c, "Topic");
+        Map<String, String> indexes = dropIndexes();
+        c.commit();
+        try {
+            for (Kind k : Kind.values()) {
+                inserts.put(k, c.prepareStatement(k.insertSql()));
+                batched.put(k, 0);
+            }
+            stream(dump, start);
+            flush();
+            c.commit();
+        } catch (SQLException | IOException | InterruptedException | RuntimeException e) {
+            c.rollback();
+            throw e;
+        } finally {
+            for (PreparedStatement p : inserts.values()) {
+                p.close();
+            }
+            long t = System.nanoTime();
+            createIndexes(indexes);
+            c.commit();
+            System.out.println("[BulkLoader] built " + indexes.size() + " indexes in "
+                + millis(t) + "ms");
+            t = System.nanoTime();
+            long indexed = SearchIndex.indexAfter(c, lastPost, lastTopic);
+            c.commit();
+            System.out.println("[BulkLoader] indexed " + indexed + " posts and topics for "
+                + "search in " + millis(t) + "ms");
+        }
+
+        long t = System.nanoTime();
+        int forums = ForumSummary.rebuild(c);
+        try (Statement s = c.createStatement()) {
+            s.execute("ANALYZE");
+        }
+        c.commit();
+        System.out.println("[BulkLoader] summarised " + forums + " forums and analysed in "
+            + millis(t) + "ms");
+
+        long ms = Math.max(1, millis(start));
+        for (Kind k : Kind.values()) {
+            if (loaded[k.ordinal()] > 0) {
+                System.out.println("[BulkLoader]   " + k.getTable() + ": "
+                    + loaded[k.ordinal()]);
+            }
+        }
+        System.out.println("[BulkLoader] " + rows + " rows in " + ms + "ms, "
+            + rows * 1000 / ms + " rows/s, " + errors + " bad lines");
+    }
+
+    /* ---- pipeline ---- */
+
+    private static final class Chunk {
+        final long firstLine;
+        final List<String> lines;
+
+        Chunk(long firstLine, List<String> lines) {
+            this.firstLine = firstLine;
+            this.lines = lines;
+        }
+    }
+
+    private static final class Parsed {
+        final List<Row> rows;
+        final List<String> errors;
+
+        Parsed(List<Row> rows, List<String> errors) {
+            this.rows = rows;
+            this.errors = errors;
+        }
+    }
+
+    private static final Chunk NO_MORE_LINES = new Chunk(0, new ArrayList<>());
+    private static final Parsed NO_MORE_ROWS = new Parsed(new ArrayList<>(), new ArrayList<>());
+
+    /* The parsed chunks arrive in whatever order the workers finish them,
+     * which does not matter: every insert is keyed and nothing is derived
+     * until the end.
+     */
+    private void stream(BufferedReader dump, long start)
+        throws IOException, SQLException, InterruptedException {
+        BlockingQueue<Chunk> lines = new ArrayBlockingQueue<>(threads * 4);
+        BlockingQueue<Parsed> parsed = new ArrayBlockingQueue<>(threads * 4);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+
+        Thread reader = new Thread(() -> {
+            try {
+                read(dump, lines);
+            } catch (IOException | InterruptedException e) {
+                failure.compareAndSet(null, e);
+            }
+            try {
+                for (int i = 0; i < threads; i++) {
+                    lines.put(NO_MORE_LINES);
+                }
+            } catch (InterruptedException e) {
+                // the writer gave up
+            }
+        }, "load-reader");
+        reader.setDaemon(true);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread w = new Thread(() -> {
+                try {
+                    for (Chunk chunk = lines.take(); chunk != NO_MORE_LINES;
+                         chunk = lines.take()) {
+                        parsed.put(parse(chunk));
+                    }
+                    parsed.put(NO_MORE_ROWS);
+                } catch (InterruptedException e) {
+                    // the writer gave up
+                }
+            }, "load-parser-" + (i + 1));
+            w.setDaemon(true);
+            workers.add(w);
+        }
+        reader.start();
+        workers.forEach(Thread::start);
+
+        try {
+            long sinceCommit = 0;
+            long lastReport = System.nanoTime();
+            int finished = 0;
+            while (finished < threads) {
+                Parsed p = parsed.take();
+                if (p == NO_MORE_ROWS) {
+                    finished++;
+                    continue;
+                }
+                for (String e : p.errors) {
+                    if (errors++ < ERRORS_SHOWN) {
+                        System.out.println("[BulkLoader] skipped " + e);
+                    }
+                }
+                if (errors > maxErrors) {
+                    throw new IOException("More than " + maxErrors + " bad lines, giving up");
+                }
+                for (Row r : p.rows) {
+                    insert(r);
+                }
+                sinceCommit += p.rows.size();
+                if (sinceCommit >= commitRows) {
+                    flush();
+                    c.commit();
+                    sinceCommit = 0;
+                }
+                if (System.nanoTime() - lastReport > PROGRESS_MILLIS * 1000000) {
+                    lastReport = System.nanoTime();
+                    System.out.println("[BulkLoader] " + rows + " rows, "
+                        + rows * 1000 / Math.max(1, millis(start)) + " rows/s");
+                }
+            }
+        } finally {
+            reader.interrupt();
+            workers.forEach(Thread::interrupt);
+        }
+        if (failure.get() instanceof IOException) {
+            throw (IOException) failure.get();
+        }
+    }
+
+    private static void read(BufferedReader in, BlockingQueue<Chunk> out)
+        throws IOException, InterruptedException {
+        long lineNo = 1;
+        List<String> lines = new ArrayList<>(CHUNK_LINES);
+        String line;
+        while ((line = in.readLine()) != null) {
+            lines.add(line);
+            if (lines.size() == CHUNK_LINES) {
+                out.put(new Chunk(lineNo, lines));
+                lineNo += lines.size();
+                lines = new ArrayList<>(CHUNK_LINES);
+            }
+        }
+        if (!lines.isEmpty()) {
+            out.put(new Chunk(lineNo, lines));
+        }
+    }
+
+    private static Parsed parse(Chunk chunk) {
+        List<Row> rows = new ArrayList<>(chunk.lines.size());
+        List<String> errors = new ArrayList<>(0);
+        long lineNo = chunk.firstLine;
+        for (String line : chunk.lines) {
+            try {
+                Row r = DumpFormat.parse(line);
+                if (r != null) {
+                    rows.add(r);
+                }
+            } catch (IllegalArgumentException e) {
+                errors.add("line " + lineNo + ": " + e.getMessage());
+            }
+            lineNo++;
+        }
+        return new Parsed(rows, errors);
+    }
+
+    /* ---- writer ---- */
+
+    private void insert(Row r) throws SQLException {
+        PreparedStatement p = inserts.get(r.kind);
+        for (int i = 0; i < r.values.length; i++) {
+            p.setObject(i + 1, r.values[i]);
+        }
+        p.addBatch();
+        int n = batched.get(r.kind) + 1;
+        if (n == STATEMENT_BATCH) {
+            execute(r.kind);
+        } else {
+            batched.put(r.kind, n);
+        }
+    }
+
+    private void flush() throws SQLException {
+        for (Kind k : Kind.values()) {
+            if (batched.get(k) > 0) {
+                execute(k);
+            }
+        }
+    }
+
+    /* Counts rows actually inserted; INSERT OR IGNORE reports 0 for a
+     * duplicate.
+     */
+    private void execute(Kind k) throws SQLException {
+        for (int n : inserts.get(k).executeBatch()) {
+            if (n > 0) {
+                loaded[k.ordinal()] += n;
+                rows += n;
+            }
+        }
+        batched.put(k, 0);
+    }
+
+    /* ---- indexes ---- */
+
+    /* Every index created by a statement, i.e. not the ones behind primary
+     * keys and UNIQUE, which the inserts need.
+     */
+    private Map<String, String> dropIndexes() throws SQLException {
+        Map<String, String> indexes = new LinkedHashMap<>();
+        try (Statement s = c.createStatement()) {
+            try (ResultSet r = s.executeQuery(
+                     "SELECT name, sql FROM sqlite_master "
+                     + "WHERE type = 'index' AND sql IS NOT NULL")) {
+                while (r.next()) {
+                    indexes.put(r.getString(1), r.getString(2));
+                }
+            }
+            for (String name : indexes.keySet()) {
+                s.execute("DROP INDEX \"" + name + "\"");
+            }
+        }
+        return indexes;
+    }
+
+    private void createIndexes(Map<String, String> indexes) throws SQLException {
+        try (Statement s = c.createStatement()) {
+            for (String sql : indexes.values()) {
+                s.execute(sql);
+            }
+        }
+    }
+
+    private static boolean hasTable(Connection c, String table) throws SQLException {
+        try (PreparedStatement p = c.prepareStatement(
+                 "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?")) {
+            p.setString(1, table);
+            try (ResultSet r = p.executeQuery()) {
+                return r.next();
+            }
+        }
+    }
+
+    private static long millis(long since) {
+        return (System.nanoTime() - since) / 1000000;
+    }
+}
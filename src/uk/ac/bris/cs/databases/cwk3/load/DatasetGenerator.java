@@ -0,0 +1,302 @@
+package uk.ac.bris.cs.databases.cwk3.load;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import uk.ac.bris.cs.databases.cwk3.load.DumpFormat.Kind;
+
+/**
+ * Generates a forum of a given number of posts shaped like a real one, as a
+ * dump BulkLoader can read:
+ *
+ *  - forums and people are picked with Zipf popularity, so a few forums hold
+ *    most topics and a few people write most posts and likes;
+ *  - topic lengths are Pareto distributed: most topics get a handful of
+ *    replies, a few run to thousands;
+ *  - topic and post likes follow a power law, most posts getting none;
+ *  - topics start over three years from 2015 with a daily cycle, replies
+ *    follow with log-normal gaps (minutes typically, sometimes weeks);
+ *  - text is drawn from a Zipf vocabulary, so searches see realistic term
+ *    frequencies.
+ *
+ * Everything comes from one seeded generator and is written as it is made,
+ * so the same arguments give the same dump and 10^8 posts need no more
+ * memory than 10^3.
+ *
+ * Usage: DatasetGenerator posts [output] [seed]. The output is a dump file,
+ * "-" for standard output (the default), or a database file ending in
+ * .sqlite3 or .db, which is loaded directly through BulkLoader. Posts may be
+ * written like 1e6.
+ * @author csxdb
+ */
+public class DatasetGenerator {
+
+    /* 2015-01-01T00:00:00Z */
+    public static final long START = 1420070400L;
+    private static final long SPAN = 3 * 365 * 86400L;
+
+    private static final double PERSON_EXPONENT = 1.1;
+    private static final double FORUM_EXPONENT = 1.0;
+    private static final double WORD_EXPONENT = 1.07;
+    private static final int VOCABULARY = 20000;
+
+    /* topic length: Pareto with this minimum and shape, mean about 10 */
+    private static final double TOPIC_MIN = 3;
+    private static final double TOPIC_SHAPE = 1.4;
+    private static final long TOPIC_MAX = 100000;
+    private static final double TOPIC_MEAN = 10;
+
+    /* reply gap: log-normal, median 15 minutes, at most 30 days */
+    private static final double GAP_MU = Math.log(900);
+    private static final double GAP_SIGMA = 1.8;
+    private static final double GAP_MAX = 30 * 86400;
+
+    private static final double TOPIC_LIKE_SHAPE = 1.3;
+    private static final double POST_LIKE_SHAPE = 2.2;
+    private static final int LIKES_MAX = 10000;
+
+    private static final String[] FIRST = {
+        "Amy", "Ben", "Chloe", "Dan", "Emma", "Finn", "Grace", "Harry", "Isla",
+        "Jack", "Khas", "Lily", "Max", "Nina", "Oscar", "Priya", "Quinn", "Ravi",
+        "Sara", "Tom", "Uma", "Victor", "Wen", "Xander", "Yusuf", "Zoe"
+    };
+    private static final String[] LAST = {
+        "Ahmed", "Brown", "Chen", "Davies", "Evans", "Fischer", "Garcia", "Hughes",
+        "Iyer", "Jones", "Khan", "Lewis", "Morgan", "Nowak", "Okafor", "Patel",
+        "Roberts", "Smith", "Taylor", "Wang", "Williams", "Wilson", "Wright", "Young"
+    };
+    private static final String[] SYLLABLES = {
+        "da", "ta", "ba", "se", "le", "ke", "ri", "mi", "no", "jo", "qu", "ry",
+        "ex", "in", "on", "al", "ver", "cor", "sql", "java"
+    };
+
+    private final long posts;
+    private final long people;
+    private final long forums;
+    private final SplittableRandom random;
+    private final Zipf personZipf;
+    private final Zipf forumZipf;
+    private final Zipf wordZipf;
+    private final String[] words = new String[VOCABULARY];
+    private final Set<Long> likers = new HashSet<>();
+
+    private long topics;
+    private long topicLikes;
+    private long postLikes;
+    private long favourites;
+
+    public DatasetGenerator(long posts, long seed) {
+        this.posts = posts;
+        this.people = Math.max(10, posts / 20);
+        this.forums = Math.max(3, Math.min(2000, (long) Math.sqrt(posts) / 3));
+        this.random = new SplittableRandom(seed);
+        this.personZipf = new Zipf(people, PERSON_EXPONENT);
+        this.forumZipf = new Zipf(forums, FORUM_EXPONENT);
+        this.wordZipf = new Zipf(VOCABULARY, WORD_EXPONENT);
+        for (int i = 0; i < VOCABULARY; i++) {
+            words[i] = word(i);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: DatasetGenerator posts [output] [seed]");
+            System.exit(1);
+        }
+        long posts = (long) Double.parseDouble(args[0]);
+        String output = args.length > 1 ? args[1] : "-";
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        DatasetGenerator g = new DatasetGenerator(posts, seed);
+
+        if (output.endsWith(".sqlite3") || output.endsWith(".db")) {
+            g.load(output);
+        } else if (output.equals("-")) {
+            Writer out = new BufferedWriter(
+                new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+            g.write(out);
+            out.flush();
+        } else {
+            try (Writer out = Files.newBufferedWriter(Paths.get(output),
+                                                      StandardCharsets.UTF_8)) {
+                g.write(out);
+            }
+        }
+        // not standard output, which may be the dump
+        System.err.println("[DatasetGenerator] " + g.people + " people, " + g.forums
+            + " forums, " + g.topics + " topics, " + posts + " posts, " + g.topicLikes
+            + " topic likes, " + g.postLikes + " post likes, " + g.favourites
+            + " favourites (seed " + seed + ")");
+    }
+
+    /**
+     * Generate straight into a database through BulkLoader, with no dump
+     * file in between.
+     */
+    public void load(String database) throws IOException, SQLException, InterruptedException {
+        PipedReader pipe = new PipedReader(1 << 20);
+        PipedWriter sink = new PipedWriter(pipe);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try (Writer out = new BufferedWriter(sink, 1 << 16)) {
+                write(out);
+            } catch (IOException e) {
+                failure.set(e);
+            }
+        }, "generator");
+        writer.setDaemon(true);
+        writer.start();
+        try (BufferedReader in = new BufferedReader(pipe, 1 << 16)) {
+            BulkLoader.load(in, database);
+        }
+        writer.join();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Write the whole dump: people, forums, then each topic with its posts
+     * and likes, topics in order of creation.
+     */
+    public void write(Writer out) throws IOException {
+        for (long p = 1; p <= people; p++) {
+            String name = FIRST[random.nextInt(FIRST.length)] + " "
+                + LAST[random.nextInt(LAST.length)];
+            String stuId = random.nextDouble() < 0.8 ? String.valueOf(1000000 + p) : null;
+            line(out, Kind.PERSON, p, name, "u" + p, stuId);
+        }
+        for (long f = 1; f <= forums; f++) {
+            line(out, Kind.FORUM, f, capitalise(text(1 + random.nextInt(3))) + " " + f);
+        }
+
+        long longest = Math.max(1, Math.min(TOPIC_MAX, posts / 20));
+        double meanGap = SPAN / Math.max(1.0, posts / TOPIC_MEAN);
+        double time = START;
+        long left = posts;
+        while (left > 0) {
+            long topic = ++topics;
+            time = arrival(time, meanGap);
+            long length = Math.min(left, Math.min(longest, pareto(TOPIC_MIN, TOPIC_SHAPE)));
+            long creator = personZipf.sample(random);
+            long created = (long) time;
+            line(out, Kind.TOPIC, topic, forumZipf.sample(random), creator, created,
+                 capitalise(text(3 + random.nextInt(6))));
+
+            long author = creator;
+            for (long id = 1; id <= length; id++) {
+                if (id > 1) {
+                    created += gap();
+                    author = personZipf.sample(random);
+                }
+                line(out, Kind.POST, topic, id, author, created, capitalise(text(postWords())));
+                long likes = pareto(1, POST_LIKE_SHAPE) - 1;
+                for (long person : likers(likes)) {
+                    line(out, Kind.LIKE_POST, topic, id, person);
+                    postLikes++;
+                }
+            }
+
+            // longer threads draw more likes and favourites
+            long likes = (long) ((pareto(1, TOPIC_LIKE_SHAPE) - 1) * (1 + Math.log(length)));
+            for (long person : likers(likes)) {
+                line(out, Kind.LIKE_TOPIC, topic, person);
+                topicLikes++;
+            }
+            for (long person : likers(likes / 4)) {
+                line(out, Kind.FAV_TOPIC, topic, person);
+                favourites++;
+            }
+            left -= length;
+        }
+    }
+
+    private static void line(Writer out, Kind kind, Object... values) throws IOException {
+        out.write(DumpFormat.format(kind, values));
+        out.write('\n');
+    }
+
+    /* Up to n distinct people, popular ones more likely. */
+    private Set<Long> likers(long n) {
+        likers.clear();
+        n = Math.min(n, Math.min(LIKES_MAX, people / 2));
+        for (long tries = 0; likers.size() < n && tries < 4 * n; tries++) {
+            likers.add(personZipf.sample(random));
+        }
+        return likers;
+    }
+
+    /* The next topic: a Poisson process thinned by time of day, busiest in
+     * the evening and quietest before dawn; meanGap apart on average.
+     */
+    private double arrival(double time, double meanGap) {
+        do {
+            time -= Math.log(1 - random.nextDouble()) * meanGap * 0.6;
+        } while (random.nextDouble() > activity(time));
+        return time;
+    }
+
+    private static double activity(double time) {
+        double hour = (time % 86400) / 3600;
+        return 0.6 + 0.4 * Math.cos(2 * Math.PI * (hour - 20) / 24);
+    }
+
+    private long gap() {
+        return (long) Math.min(GAP_MAX, Math.exp(GAP_MU + GAP_SIGMA * gaussian()));
+    }
+
+    private int postWords() {
+        return (int) Math.max(1, Math.min(2000, Math.round(Math.exp(Math.log(20)
+                                                                    + 0.9 * gaussian()))));
+    }
+
+    /* floor of a Pareto(min, shape) variate, so at least min. */
+    private long pareto(double min, double shape) {
+        double x = min / Math.pow(1 - random.nextDouble(), 1 / shape);
+        return x >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) x;
+    }
+
+    /* Box-Muller, one of the pair. */
+    private double gaussian() {
+        double u = 1 - random.nextDouble();
+        return Math.sqrt(-2 * Math.log(u)) * Math.cos(2 * Math.PI * random.nextDouble());
+    }
+
+    private String text(int n) {
+        StringBuilder sb = new StringBuilder(n * 7);
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(words[(int) wordZipf.sample(random) - 1]);
+        }
+        return sb.toString();
+    }
+
+    private static String capitalise(String s) {
+        return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+    }
+
+    /* The i-th word: i written in base SYLLABLES.length, one syllable per
+     * digit, so common words are short.
+     */
+    private static String word(int i) {
+        StringBuilder sb = new StringBuilder();
+        do {
+            sb.append(SYLLABLES[i % SYLLABLES.length]);
+            i /= SYLLABLES.length;
+        } while (i > 0);
+        return sb.toString();
+    }
+}
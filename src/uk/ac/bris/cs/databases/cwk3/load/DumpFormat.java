@@ -0,0 +1,277 @@
+package uk.ac.bris.cs.databases.cwk3.load;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The forum dump format read by BulkLoader: one record per line, fields
+ * separated by tabs, the first field naming the record type.
+ *
+ *   person     id  name  username  stuId
+ *   forum      id  title
+ *   topic      id  forum  creator  created  title
+ *   post       topic  id  author  created  content
+ *   liketopic  topic  person
+ *   favtopic   topic  person
+ *   likepost   topic  post  person
+ *
+ * Ids, created and person/author fields are integers; created is in seconds
+ * as everywhere else. In text fields a backslash escapes tab (\t), newline
+ * (\n), carriage return (\r) and itself; an empty stuId is NULL. Blank lines
+ * and lines starting with # are ignored.
+ *
+ * Single-line INSERT statements of the form used by data.sql ("INSERT INTO
+ * Post (id, topic, ...) VALUES (1, 1, ...);") are accepted as well, so old
+ * SQL dumps load without conversion.
+ * @author csxdb
+ */
+public final class DumpFormat {
+
+    public enum Kind {
+        PERSON("person", "Person", "id:I name:S username:S stuId:N"),
+        FORUM("forum", "Forum", "id:I title:S"),
+        TOPIC("topic", "Topic", "id:I forum:I creator:I created:I title:S"),
+        POST("post", "Post", "topic:I id:I author:I created:I content:S"),
+        LIKE_TOPIC("liketopic", "LikeTopic", "topic:I person:I"),
+        FAV_TOPIC("favtopic", "FavTopic", "topic:I person:I"),
+        LIKE_POST("likepost", "LikePost", "topic:I post:I person:I");
+
+        final String tag;
+        final String table;
+        final String[] columns;
+        /* I = integer, S = text, N = text or NULL */
+        final char[] types;
+
+        Kind(String tag, String table, String spec) {
+            this.tag = tag;
+            this.table = table;
+            String[] fields = spec.split(" ");
+            columns = new String[fields.length];
+            types = new char[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                columns[i] = fields[i].substring(0, fields[i].indexOf(':'));
+                types[i] = fields[i].charAt(fields[i].length() - 1);
+            }
+        }
+
+        /**
+         * @return the statement that inserts one record, parameters in
+         * field order.
+         */
+        public String insertSql() {
+            StringBuilder sb = new StringBuilder("INSERT OR IGNORE INTO ")
+                .append(table).append(" (").append(String.join(", ", columns))
+                .append(") VALUES (");
+            for (int i = 0; i < columns.length; i++) {
+                sb.append(i == 0 ? "?" : ", ?");
+            }
+            return sb.append(")").toString();
+        }
+
+        public String getTable() {
+            return table;
+        }
+    }
+
+    /**
+     * One parsed record: values are Long, String or null, in field order.
+     */
+    public static final class Row {
+        public final Kind kind;
+        public final Object[] values;
+
+        Row(Kind kind, Object[] values) {
+            this.kind = kind;
+            this.values = values;
+        }
+    }
+
+    private static final Pattern INSERT = Pattern.compile(
+        "INSERT\\s+INTO\\s+(\\w+)\\s*\\(([^)]*)\\)\\s*VALUES\\s*\\((.*)\\)\\s*;?\\s*",
+        Pattern.CASE_INSENSITIVE);
+
+    private DumpFormat() {}
+
+    /**
+     * @return the record on this line, or null for a blank or comment line.
+     * @throws IllegalArgumentException if the line is not a valid record.
+     */
+    public static Row parse(String line) {
+        if (line.isEmpty() || line.charAt(0) == '#' || line.trim().isEmpty()) {
+            return null;
+        }
+        if (line.regionMatches(true, 0, "INSERT", 0, 6)) {
+            return parseInsert(line);
+        }
+        String[] fields = line.split("\t", -1);
+        Kind kind = byTag(fields[0]);
+        if (fields.length - 1 != kind.columns.length) {
+            throw new IllegalArgumentException(kind.tag + " needs " + kind.columns.length
+                + " fields, got " + (fields.length - 1));
+        }
+        Object[] values = new Object[kind.columns.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = value(kind, i, unescape(fields[i + 1]));
+        }
+        return new Row(kind, values);
+    }
+
+    /**
+     * @return one dump line (without the newline) for a record.
+     */
+    public static String format(Kind kind, Object... values) {
+        if (values.length != kind.columns.length) {
+            throw new IllegalArgumentException(kind.tag + " needs " + kind.columns.length
+                + " fields");
+        }
+        StringBuilder sb = new StringBuilder(kind.tag);
+        for (Object v : values) {
+            sb.append('\t');
+            if (v != null) {
+                escape(sb, v.toString());
+            }
+        }
+        return sb.toString();
+    }
+
+    private static Kind byTag(String tag) {
+        for (Kind k : Kind.values()) {
+            if (k.tag.equals(tag)) { return k; }
+        }
+        throw new IllegalArgumentException("Unknown record type '" + tag + "'");
+    }
+
+    private static Object value(Kind kind, int i, String s) {
+        switch (kind.types[i]) {
+            case 'I':
+                try {
+                    return Long.parseLong(s.trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(kind.columns[i]
+                        + " is not a number: '" + s + "'");
+                }
+            case 'N':
+                return s == null || s.isEmpty() ? null : s;
+            default:
+                if (s == null) {
+                    throw new IllegalArgumentException(kind.columns[i] + " cannot be NULL");
+                }
+                return s;
+        }
+    }
+
+    private static Row parseInsert(String line) {
+        Matcher m = INSERT.matcher(line);
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Not a single-row INSERT");
+        }
+        Kind kind = null;
+        for (Kind k : Kind.values()) {
+            if (k.table.equalsIgnoreCase(m.group(1))) { kind = k; }
+        }
+        if (kind == null) {
+            throw new IllegalArgumentException("Unknown table " + m.group(1));
+        }
+        String[] names = m.group(2).split(",");
+        List<String> literals = literals(m.group(3));
+        if (names.length != literals.size()) {
+            throw new IllegalArgumentException("Column and value counts differ");
+        }
+        Object[] values = new Object[kind.columns.length];
+        boolean[] seen = new boolean[values.length];
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i].trim().toLowerCase(Locale.ROOT);
+            int c = 0;
+            while (c < kind.columns.length
+                   && !kind.columns[c].toLowerCase(Locale.ROOT).equals(name)) {
+                c++;
+            }
+            if (c == kind.columns.length) {
+                throw new IllegalArgumentException(kind.table + " has no column " + name);
+            }
+            values[c] = value(kind, c, literals.get(i));
+            seen[c] = true;
+        }
+        for (int c = 0; c < seen.length; c++) {
+            if (!seen[c] && kind.types[c] != 'N') {
+                throw new IllegalArgumentException("Missing column " + kind.columns[c]);
+            }
+        }
+        return new Row(kind, values);
+    }
+
+    /* SQL literals: numbers, NULL and '...' strings with '' for a quote. */
+    private static List<String> literals(String s) {
+        List<String> out = new ArrayList<>();
+        int i = 0;
+        int n = s.length();
+        while (i < n) {
+            char c = s.charAt(i);
+            if (c == ',' || Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '\'') {
+                StringBuilder sb = new StringBuilder();
+                i++;
+                while (true) {
+                    if (i >= n) {
+                        throw new IllegalArgumentException("Unterminated string");
+                    }
+                    char d = s.charAt(i++);
+                    if (d == '\'') {
+                        if (i < n && s.charAt(i) == '\'') {
+                            sb.append('\'');
+                            i++;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        sb.append(d);
+                    }
+                }
+                out.add(sb.toString());
+            } else {
+                int start = i;
+                while (i < n && s.charAt(i) != ',') { i++; }
+                String token = s.substring(start, i).trim();
+                out.add(token.equalsIgnoreCase("NULL") ? null : token);
+            }
+        }
+        return out;
+    }
+
+    private static void escape(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\t': sb.append("\\t"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\\': sb.append("\\\\"); break;
+                default: sb.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0) { return s; }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char d = s.charAt(++i);
+                switch (d) {
+                    case 't': sb.append('\t'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    default: sb.append(d);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,59 @@
+package uk.ac.bris.cs.databases.cwk3.search;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable byte array for writing postings, and the varint codec they
+ * use: 7 bits per byte, low bits first, high bit set on all but the last.
+ * @author csxdb
+ */
+final class Bytes {
+
+    byte[] data;
+    int size;
+
+    Bytes(int capacity) {
+        data = new byte[Math.max(16, capacity)];
+    }
+
+    void varint(int v) {
+        if (size + 5 > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + 5));
+        }
+        while ((v & ~0x7F) != 0) {
+            data[size++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        data[size++] = (byte) v;
+    }
+
+    void bytes(byte[] b) {
+        if (size + b.length > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + b.length));
+        }
+        System.arraycopy(b, 0, data, size, b.length);
+        size += b.length;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Read a varint at at[0] and move at[0] past it.
+     */
+    static int varint(ByteBuffer b, int[] at) {
+        int p = at[0];
+        int v = 0;
+        int shift = 0;
+        byte x;
+        do {
+            x = b.get(p++);
+            v |= (x & 0x7F) << shift;
+            shift += 7;
+        } while (x < 0);
+        at[0] = p;
+        return v;
+    }
+}
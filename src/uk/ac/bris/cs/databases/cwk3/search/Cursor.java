@@ -0,0 +1,94 @@
+package uk.ac.bris.cs.databases.cwk3.search;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads one term's postings: for each document, in increasing order, the
+ * gap from the previous document (the first from -1), the term frequency
+ * and then that many position gaps (the first from 0), all varints.
+ * Positions are only decoded if asked for.
+ * @author csxdb
+ */
+final class Cursor {
+
+    static final int END = Integer.MAX_VALUE;
+
+    private final ByteBuffer buf;
+    private final int end;
+    private final int docFreq;
+    private final int[] at = new int[1];
+
+    private int doc = -1;
+    private int freq;
+    private int positionsAt;
+    private boolean decoded;
+    private int[] positions = new int[8];
+
+    Cursor(ByteBuffer buf, int start, int end, int docFreq) {
+        this.buf = buf;
+        this.end = end;
+        this.docFreq = docFreq;
+        at[0] = start;
+    }
+
+    int doc() {
+        return doc;
+    }
+
+    int freq() {
+        return freq;
+    }
+
+    int docFreq() {
+        return docFreq;
+    }
+
+    /**
+     * @return the next document, END if there is none.
+     */
+    int next() {
+        if (doc == END) { return END; }
+        if (doc >= 0 && !decoded) {
+            for (int i = 0; i < freq; i++) {
+                Bytes.varint(buf, at);
+            }
+        }
+        if (at[0] >= end) {
+            return doc = END;
+        }
+        doc += Bytes.varint(buf, at);
+        freq = Bytes.varint(buf, at);
+        positionsAt = at[0];
+        decoded = false;
+        return doc;
+    }
+
+    /**
+     * @return the first document at or after target, END if there is none.
+     */
+    int advance(int target) {
+        while (doc < target) {
+            next();
+        }
+        return doc;
+    }
+
+    /**
+     * @return the positions in the current document, freq() of them.
+     */
+    int[] positions() {
+        if (!decoded) {
+            if (positions.length < freq) {
+                positions = new int[Math.max(freq, positions.length * 2)];
+            }
+            at[0] = positionsAt;
+            int p = 0;
+            for (int i = 0; i < freq; i++) {
+                p += Bytes.varint(buf, at);
+                positions[i] = p;
+            }
+            decoded = true;
+        }
+        return positions;
+    }
+}
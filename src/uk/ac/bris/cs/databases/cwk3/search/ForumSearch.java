@@ -0,0 +1,162 @@
+package uk.ac.bris.cs.databases.cwk3.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import uk.ac.bris.cs.databases.cwk3.db.ConnectionManager;
+import uk.ac.bris.cs.databases.cwk3.db.Lease;
+
+/**
+ * In-process search over posts and topic titles, an alternative to the
+ * SQLite FTS5 tables (SearchIndex) that keeps ranking off the database
+ * connections. Two SearchEngines live in one directory: "posts", keyed
+ * topic << 32 | id like PostSearch, and "topics", keyed by topic id.
+ *
+ * The indexes follow the tables rather than the API: a background thread
+ * reads the rows after the last one indexed (by rowid, in batches, on a
+ * read lease) whenever changed() is called and every POLL_MS besides, so
+ * posts added by a bulk load or another process are found too. Search
+ * results therefore lag a write by a moment. A VACUUM may renumber Post's
+ * rowids; delete the directory afterwards and it is rebuilt on start.
+ * @author csxdb
+ */
+public class ForumSearch implements AutoCloseable {
+
+    private static final int BATCH = 5000;
+    private static final long POLL_MS = 1000;
+
+    private static final String POSTS_AFTER =
+        "SELECT rowid, (topic << 32) | id, content FROM Post "
+        + "WHERE rowid > ? ORDER BY rowid LIMIT " + BATCH;
+    private static final String TOPICS_AFTER =
+        "SELECT id, id, title FROM Topic WHERE id > ? ORDER BY id LIMIT " + BATCH;
+
+    private final ConnectionManager db;
+    private final SearchEngine posts;
+    private final SearchEngine topics;
+    private final ScheduledExecutorService indexer;
+    private final AtomicBoolean kicked = new AtomicBoolean();
+
+    /**
+     * Open the indexes in dir and start bringing them up to date.
+     * @param flushDocs - documents per new segment file.
+     */
+    public ForumSearch(ConnectionManager db, File dir, int flushDocs) throws IOException {
+        this.db = db;
+        this.posts = new SearchEngine(dir, "posts", flushDocs);
+        this.topics = new SearchEngine(dir, "topics", flushDocs);
+        indexer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "search-index");
+            t.setDaemon(true);
+            return t;
+        });
+        indexer.scheduleWithFixedDelay(this::catchUp, 0, POLL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Posts or topics were added; index them soon.
+     */
+    public void changed() {
+        if (kicked.compareAndSet(false, true)) {
+            try {
+                indexer.execute(this::catchUp);
+            } catch (RejectedExecutionException e) {
+                // closed
+            }
+        }
+    }
+
+    private void catchUp() {
+        kicked.set(false);
+        try {
+            long n = tail(posts, POSTS_AFTER) + tail(topics, TOPICS_AFTER);
+            if (n >= BATCH) {
+                System.out.println("[ForumSearch] indexed " + n + " posts and topics, "
+                    + posts.getDocCount() + " posts in " + posts.getSegmentCount()
+                    + " segments");
+            }
+        } catch (SQLException | IOException | RuntimeException e) {
+            System.out.println("[ForumSearch] indexing failed: " + e);
+        }
+    }
+
+    /* Add every row after the last indexed one; returns how many. */
+    private long tail(SearchEngine engine, String sql) throws SQLException, IOException {
+        long after = Math.max(0, engine.getIndexedSource());
+        long total = 0;
+        long[] sources = new long[BATCH];
+        long[] keys = new long[BATCH];
+        String[] texts = new String[BATCH];
+        while (true) {
+            int n = 0;
+            // read a batch, then index it with the lease back in the pool
+            try (Lease l = db.read()) {
+                PreparedStatement p = l.prepare(sql);
+                p.setLong(1, after);
+                try (ResultSet r = p.executeQuery()) {
+                    while (r.next()) {
+                        sources[n] = r.getLong(1);
+                        keys[n] = r.getLong(2);
+                        texts[n++] = r.getString(3);
+                    }
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                engine.add(sources[i], keys[i], texts[i]);
+                texts[i] = null;
+            }
+            total += n;
+            if (n < BATCH) { return total; }
+            after = sources[n - 1];
+        }
+    }
+
+    /**
+     * @return the k best posts for the query, best first; null if it has no
+     * words in it.
+     */
+    public List<SearchEngine.Hit> posts(String query, int k) {
+        return posts.search(query, k);
+    }
+
+    /**
+     * @return the k best topics for the query, best first; null if it has
+     * no words in it.
+     */
+    public List<SearchEngine.Hit> topics(String query, int k) {
+        return topics.search(query, k);
+    }
+
+    public SearchEngine getPosts() {
+        return posts;
+    }
+
+    public SearchEngine getTopics() {
+        return topics;
+    }
+
+    /**
+     * Stop indexing and write what is in memory to disk.
+     */
+    @Override
+    public void close() {
+        indexer.shutdown();
+        try {
+            indexer.awaitTermination(1, TimeUnit.MINUTES);
+            posts.close();
+            topics.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("[ForumSearch] could not save the index: " + e);
+        }
+    }
+}
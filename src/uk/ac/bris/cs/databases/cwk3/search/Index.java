@@ -0,0 +1,41 @@
+package uk.ac.bris.cs.databases.cwk3.search;
+
+import java.util.Iterator;
+
+/**
+ * The part of the search index one SearchEngine search reads from: a
+ * segment file or the documents still in memory. Documents are numbered
+ * from 0 in the order they were added and each carries the key of what it
+ * indexes and its length in terms. The source numbers (e.g. rowids) of all
+ * its documents lie in [getMinSource(), getMaxSource()].
+ * @author csxdb
+ */
+interface Index {
+
+    int getDocCount();
+
+    long getKey(int doc);
+
+    int getLength(int doc);
+
+    long getTotalLength();
+
+    long getMinSource();
+
+    long getMaxSource();
+
+    /**
+     * @return the number of documents containing term, 0 if none.
+     */
+    int docFreq(String term);
+
+    /**
+     * @return a cursor over term's postings, null if no document has it.
+     */
+    Cursor cursor(String term);
+
+    /**
+     * @return every term, in String order.
+     */
+    Iterator<String> terms();
+}
@@ -0,0 +1,127 @@
+package uk.ac.bris.cs.databases.cwk3.search;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The newest documents, before they are written out as a Segment. Postings
+ * are kept in the same encoding as on disk, one growable array per term.
+ * Not thread safe; SearchEngine guards it.
+ * @author csxdb
+ */
+final class MemoryIndex implements Index {
+
+    private static final class Term {
+        final Bytes postings = new Bytes(16);
+        int docFreq;
+        int lastDoc = -1;
+    }
+
+    private final Map<String, Term> terms = new HashMap<>();
+    private long[] keys = new long[1024];
+    private int[] lengths = new int[1024];
+    private int docs;
+    private long totalLength;
+    private long minSource = Long.MAX_VALUE;
+    private long maxSource = Long.MIN_VALUE;
+
+    /* Scratch: positions of each term of the document being added. */
+    private final Map<String, int[]> scratch = new HashMap<>();
+
+    void add(long source, long key, String text) {
+        List<String> tokens = Tokenizer.tokens(text);
+        scratch.clear();
+        for (int i = 0; i < tokens.size(); i++) {
+            String t = tokens.get(i);
+            if (t.isEmpty()) { continue; }
+            int[] p = scratch.get(t);
+            if (p == null) {
+                p = new int[4];
+            } else if (p[0] + 1 == p.length) {
+                p = Arrays.copyOf(p, p.length * 2);
+            }
+            p[++p[0]] = i;
+            scratch.put(t, p);
+        }
+
+        int doc = docs++;
+        if (doc == keys.length) {
+            keys = Arrays.copyOf(keys, doc * 2);
+            lengths = Arrays.copyOf(lengths, doc * 2);
+        }
+        keys[doc] = key;
+        lengths[doc] = tokens.size();
+        totalLength += tokens.size();
+        minSource = Math.min(minSource, source);
+        maxSource = Math.max(maxSource, source);
+
+        for (Map.Entry<String, int[]> e : scratch.entrySet()) {
+            Term term = terms.computeIfAbsent(e.getKey(), k -> new Term());
+            int[] p = e.getValue();
+            term.postings.varint(doc - term.lastDoc);
+            term.postings.varint(p[0]);
+            int last = 0;
+            for (int i = 1; i <= p[0]; i++) {
+                term.postings.varint(p[i] - last);
+                last = p[i];
+            }
+            term.lastDoc = doc;
+            term.docFreq++;
+        }
+    }
+
+    @Override
+    public int getDocCount() {
+        return docs;
+    }
+
+    @Override
+    public long getKey(int doc) {
+        return keys[doc];
+    }
+
+    @Override
+    public int getLength(int doc) {
+        return lengths[doc];
+    }
+
+    @Override
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    @Override
+    public long getMinSource() {
+        return minSource;
+    }
+
+    @Override
+    public long getMaxSource() {
+        return maxSource;
+    }
+
+    @Override
+    public int docFreq(String term) {
+        Term t = terms.get(term);
+        return t == null ? 0 : t.docFreq;
+    }
+
+    @Override
+    public Cursor cursor(String term) {
+        Term t = terms.get(term);
+        return t == null ? null
+            : new Cursor(ByteBuffer.wrap(t.postings.data), 0, t.postings.size, t.docFreq);
+    }
+
+    @Override
+    public Iterator<String> terms() {
+        List<String> sorted = new ArrayList<>(terms.keySet());
+        sorted.sort(null);
+        return sorted.iterator();
+    }
+}
@@ -0,0 +1,71 @@
+package uk.ac.bris.cs.databases.cwk3.search;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A parsed search: every clause must match. A clause is one term, or a
+ * phrase whose terms must appear one after the other. "Double quotes" make
+ * a phrase; everything that is not a letter or digit separates terms.
+ * @author csxdb
+ */
+final class Query {
+
+    /* Most clauses in a query, as for SearchIndex.match. */
+    static final int MAX_CLAUSES = 16;
+
+    private final List<String[]> clauses;
+    private final String[] terms;
+
+    private Query(List<String[]> clauses) {
+        this.clauses = clauses;
+        Set<String> distinct = new LinkedHashSet<>();
+        for (String[] c : clauses) {
+            for (String t : c) {
+                distinct.add(t);
+            }
+        }
+        this.terms = distinct.toArray(new String[0]);
+    }
+
+    /**
+     * @return the query, or null if there are no words in it.
+     */
+    static Query parse(String text) {
+        if (text == null) { return null; }
+        List<String[]> clauses = new ArrayList<>();
+        int i = 0;
+        while (i < text.length() && clauses.size() < MAX_CLAUSES) {
+            int quote = text.indexOf('"', i);
+            int end = quote < 0 ? text.length() : quote;
+            for (String t : Tokenizer.tokens(text.substring(i, end))) {
+                if (!t.isEmpty() && clauses.size() < MAX_CLAUSES) {
+                    clauses.add(new String[] { t });
+                }
+            }
+            if (quote < 0) { break; }
+            int close = text.indexOf('"', quote + 1);
+            if (close < 0) { close = text.length(); }
+            List<String> phrase = Tokenizer.tokens(text.substring(quote + 1, close));
+            phrase.removeIf(String::isEmpty);
+            if (!phrase.isEmpty() && clauses.size() < MAX_CLAUSES) {
+                clauses.add(phrase.toArray(new String[0]));
+            }
+            i = close + 1;
+        }
+        return clauses.isEmpty() ? null : new Query(clauses);
+    }
+
+    List<String[]> getClauses() {
+        return clauses;
+    }
+
+    /**
+     * @return every term in the query once, in order of appearance.
+     */
+    String[] getTerms() {
+        return terms;
+    }
+}
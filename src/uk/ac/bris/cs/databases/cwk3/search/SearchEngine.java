@@ -0,0 +1,509 @@
+package uk.ac.bris.cs.databases.cwk3.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import uk.ac.bris.cs.databases.util.Threads;
+
+/**
+ * A full-text index of documents with BM25 ranking, held in this process.
+ * Each document has a key (what a hit returns) and a source number, e.g.
+ * the rowid it was read from; documents must be added in increasing source
+ * order, which is how an index finds where to carry on after a restart
+ * (getIndexedSource()).
+ *
+ * New documents go into a MemoryIndex, which is written out as a segment
+ * file of its own every flushDocs documents and when the engine is closed;
+ * documents still in memory when the process dies are simply added again.
+ * Segments are memory-mapped. Once there are more than MAX_SEGMENTS a
+ * background thread merges the run of MERGE_WIDTH neighbouring segments
+ * with the fewest documents into one; each segment file is named after the
+ * source range it covers, so if a merge is interrupted between writing its
+ * output and deleting its inputs, the next open drops the inputs.
+ *
+ * Searches hold the read lock, adds and segment swaps the write lock; there
+ * is one writer (whoever calls add), so the lock is rarely contended.
+ * @author csxdb
+ */
+public class SearchEngine implements AutoCloseable {
+
+    static final int MAX_SEGMENTS = 8;
+    static final int MERGE_WIDTH = 4;
+
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+
+    /** A search result: the document's key and its score, higher first. */
+    public static final class Hit {
+        private final long key;
+        private final float score;
+
+        Hit(long key, float score) {
+            this.key = key;
+            this.score = score;
+        }
+
+        public long getKey() { return key; }
+        public float getScore() { return score; }
+    }
+
+    private final File dir;
+    private final String name;
+    private final int flushDocs;
+    private final ExecutorService merger;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /* Guarded by lock. Segments in source order. */
+    private Segment[] segments;
+    private MemoryIndex memory = new MemoryIndex();
+    private MemoryIndex flushing;
+    private boolean merging;
+    private boolean closed;
+
+    private long merges;
+
+    /**
+     * Open (or start) the index called name in dir.
+     * @param flushDocs - write a segment every this many documents.
+     */
+    public SearchEngine(File dir, String name, int flushDocs) throws IOException {
+        if (flushDocs < 1) {
+            throw new IllegalArgumentException("Need a positive flush size");
+        }
+        this.dir = dir;
+        this.name = name;
+        this.flushDocs = flushDocs;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File[] stale = dir.listFiles((d, f) -> f.startsWith(name + "-") && f.endsWith(".tmp"));
+        for (File f : stale == null ? new File[0] : stale) {
+            Files.deleteIfExists(f.toPath());
+        }
+        List<Segment> open = new ArrayList<>();
+        File[] files = dir.listFiles((d, f) -> f.startsWith(name + "-") && f.endsWith(".seg"));
+        for (File f : files == null ? new File[0] : files) {
+            open.add(Segment.open(f));
+        }
+        // widest first for equal starts, so a merged segment beats its inputs
+        open.sort(Comparator.comparingLong(Segment::getMinSource)
+                  .thenComparing(Comparator.comparingLong(Segment::getMaxSource).reversed()));
+        List<Segment> kept = new ArrayList<>();
+        for (Segment s : open) {
+            if (!kept.isEmpty() && s.getMinSource() <= kept.get(kept.size() - 1).getMaxSource()) {
+                System.out.println("[SearchEngine] dropping merged " + s.getFile().getName());
+                Files.deleteIfExists(s.getFile().toPath());
+            } else {
+                kept.add(s);
+            }
+        }
+        segments = kept.toArray(new Segment[0]);
+        merger = Executors.newSingleThreadExecutor(Threads.daemon("search-merge-" + name));
+        maybeMerge();
+    }
+
+    /**
+     * Index a document. Sources must increase from call to call.
+     */
+    public void add(long source, long key, String text) throws IOException {
+        boolean full;
+        lock.writeLock().lock();
+        try {
+            if (closed) { throw new IllegalStateException("Search index closed"); }
+            memory.add(source, key, text);
+            full = memory.getDocCount() >= flushDocs;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the documents in memory out as a segment. Called by the adding
+     * thread; searches carry on meanwhile.
+     */
+    public void flush() throws IOException {
+        MemoryIndex full;
+        lock.writeLock().lock();
+        try {
+            if (memory.getDocCount() == 0) { return; }
+            full = memory;
+            flushing = full;
+            memory = new MemoryIndex();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        Segment s;
+        try {
+            s = writeSegment(Collections.singletonList(full));
+        } catch (IOException | RuntimeException e) {
+            lock.writeLock().lock();
+            try {
+                // one writer, so nothing was added meanwhile: keep them in memory
+                memory = full;
+                flushing = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            throw e;
+        }
+        lock.writeLock().lock();
+        try {
+            Segment[] more = Arrays.copyOf(segments, segments.length + 1);
+            more[segments.length] = s;
+            segments = more;
+            flushing = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        maybeMerge();
+    }
+
+    /* Write parts into a new segment file, renamed into place when done. */
+    private Segment writeSegment(List<? extends Index> parts) throws IOException {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (Index p : parts) {
+            min = Math.min(min, p.getMinSource());
+            max = Math.max(max, p.getMaxSource());
+        }
+        File file = new File(dir, name + "-" + min + "-" + max + ".seg");
+        File tmp = new File(dir, file.getName() + ".tmp");
+        Segment.write(parts, tmp);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return Segment.open(file);
+    }
+
+    private void maybeMerge() {
+        lock.writeLock().lock();
+        try {
+            if (merging || closed || segments.length <= MAX_SEGMENTS) { return; }
+            merging = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        merger.execute(this::merge);
+    }
+
+    private void merge() {
+        Segment[] run;
+        lock.readLock().lock();
+        try {
+            int best = 0;
+            long fewest = Long.MAX_VALUE;
+            for (int i = 0; i + MERGE_WIDTH <= segments.length; i++) {
+                long docs = 0;
+                for (int j = i; j < i + MERGE_WIDTH; j++) {
+                    docs += segments[j].getDocCount();
+                }
+                if (docs < fewest) {
+                    fewest = docs;
+                    best = i;
+                }
+            }
+            run = Arrays.copyOfRange(segments, best, best + MERGE_WIDTH);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        long start = System.nanoTime();
+        try {
+            Segment merged = writeSegment(Arrays.asList(run));
+            lock.writeLock().lock();
+            try {
+                List<Segment> now = new ArrayList<>(Arrays.asList(segments));
+                int at = now.indexOf(run[0]);
+                now.subList(at, at + run.length).clear();
+                now.add(at, merged);
+                segments = now.toArray(new Segment[0]);
+                merges++;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            // no search can still be reading them: they ran under the read lock
+            for (Segment s : run) {
+                Files.deleteIfExists(s.getFile().toPath());
+            }
+            System.out.println("[SearchEngine] " + name + ": merged " + run.length
+                + " segments (" + merged.getDocCount() + " documents) in "
+                + (System.nanoTime() - start) / 1000000 + "ms");
+        } catch (IOException | RuntimeException e) {
+            System.out.println("[SearchEngine] " + name + ": merge failed: " + e);
+        } finally {
+            lock.writeLock().lock();
+            try {
+                merging = false;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        maybeMerge();
+    }
+
+    /**
+     * The k best matches of a query in order, best first; ties go to the
+     * document added last.
+     * @param query - as for Query.parse.
+     * @return the hits, null if the query has no words in it.
+     */
+    public List<Hit> search(String query, int k) {
+        Query q = Query.parse(query);
+        if (q == null) { return null; }
+        if (k < 1) { return new ArrayList<>(); }
+
+        lock.readLock().lock();
+        try {
+            List<Index> parts = new ArrayList<>(Arrays.asList(segments));
+            if (flushing != null) { parts.add(flushing); }
+            parts.add(memory);
+
+            String[] terms = q.getTerms();
+            long docs = 0;
+            long length = 0;
+            long[] docFreq = new long[terms.length];
+            for (Index p : parts) {
+                docs += p.getDocCount();
+                length += p.getTotalLength();
+                for (int t = 0; t < terms.length; t++) {
+                    docFreq[t] += p.docFreq(terms[t]);
+                }
+            }
+            float[] idf = new float[terms.length];
+            for (int t = 0; t < terms.length; t++) {
+                if (docFreq[t] == 0) { return new ArrayList<>(); }
+                idf[t] = (float) Math.log(1 + (docs - docFreq[t] + 0.5) / (docFreq[t] + 0.5));
+            }
+            float avgLength = Math.max(1f, (float) length / docs);
+
+            TopK top = new TopK(k);
+            for (Index p : parts) {
+                search(p, q, idf, avgLength, top);
+            }
+            return top.hits();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /* Score the documents of one part that match every clause. */
+    private static void search(Index part, Query q, float[] idf, float avgLength, TopK top) {
+        String[] terms = q.getTerms();
+        Cursor[] cursors = new Cursor[terms.length];
+        int lead = 0;
+        for (int t = 0; t < terms.length; t++) {
+            cursors[t] = part.cursor(terms[t]);
+            if (cursors[t] == null) { return; }
+            if (cursors[t].docFreq() < cursors[lead].docFreq()) { lead = t; }
+        }
+        List<int[]> phrases = new ArrayList<>();
+        for (String[] clause : q.getClauses()) {
+            if (clause.length > 1) {
+                int[] p = new int[clause.length];
+                for (int i = 0; i < clause.length; i++) {
+                    p[i] = Arrays.asList(terms).indexOf(clause[i]);
+                }
+                phrases.add(p);
+            }
+        }
+
+        // leapfrog: move the rarest term, let the others catch up
+        int doc = cursors[lead].next();
+        candidates:
+        while (doc != Cursor.END) {
+            for (int t = 0; t < cursors.length; t++) {
+                if (t == lead) { continue; }
+                int d = cursors[t].advance(doc);
+                if (d > doc) {
+                    doc = cursors[lead].advance(d);
+                    continue candidates;
+                }
+            }
+            if (phrasesMatch(cursors, phrases)) {
+                float norm = K1 * (1 - B + B * part.getLength(doc) / avgLength);
+                float score = 0;
+                for (int t = 0; t < cursors.length; t++) {
+                    int tf = cursors[t].freq();
+                    score += idf[t] * tf * (K1 + 1) / (tf + norm);
+                }
+                top.offer(part.getKey(doc), score);
+            }
+            doc = cursors[lead].next();
+        }
+    }
+
+    private static boolean phrasesMatch(Cursor[] cursors, List<int[]> phrases) {
+        phrases:
+        for (int[] phrase : phrases) {
+            Cursor first = cursors[phrase[0]];
+            int[] starts = first.positions();
+            starts:
+            for (int s = 0; s < first.freq(); s++) {
+                for (int i = 1; i < phrase.length; i++) {
+                    Cursor c = cursors[phrase[i]];
+                    if (Arrays.binarySearch(c.positions(), 0, c.freq(), starts[s] + i) < 0) {
+                        continue starts;
+                    }
+                }
+                continue phrases;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /* The k best (score, key) pairs so far, in a min-heap on parallel arrays. */
+    private static final class TopK {
+        private final float[] scores;
+        private final long[] keys;
+        private final long[] order;
+        private long offered;
+        private int size;
+
+        TopK(int k) {
+            scores = new float[k];
+            keys = new long[k];
+            order = new long[k];
+        }
+
+        /* Is entry i worse than entry j? Lower score, or as good but older. */
+        private boolean worse(int i, int j) {
+            return scores[i] < scores[j] || (scores[i] == scores[j] && order[i] < order[j]);
+        }
+
+        void offer(long key, float score) {
+            long n = offered++;
+            if (size < scores.length) {
+                int i = size++;
+                set(i, key, score, n);
+                while (i > 0 && worse(i, (i - 1) / 2)) {
+                    swap(i, (i - 1) / 2);
+                    i = (i - 1) / 2;
+                }
+            } else if (score >= scores[0]) {
+                // later offers win ties: they were added later
+                set(0, key, score, n);
+                int i = 0;
+                while (true) {
+                    int l = 2 * i + 1;
+                    int r = l + 1;
+                    int m = i;
+                    if (l < size && worse(l, m)) { m = l; }
+                    if (r < size && worse(r, m)) { m = r; }
+                    if (m == i) { break; }
+                    swap(i, m);
+                    i = m;
+                }
+            }
+        }
+
+        private void set(int i, long key, float score, long n) {
+            keys[i] = key;
+            scores[i] = score;
+            order[i] = n;
+        }
+
+        private void swap(int i, int j) {
+            float s = scores[i]; scores[i] = scores[j]; scores[j] = s;
+            long k = keys[i]; keys[i] = keys[j]; keys[j] = k;
+            long o = order[i]; order[i] = order[j]; order[j] = o;
+        }
+
+        List<Hit> hits() {
+            Integer[] idx = new Integer[size];
+            for (int i = 0; i < size; i++) { idx[i] = i; }
+            Arrays.sort(idx, (a, b) -> worse(a, b) ? 1 : worse(b, a) ? -1 : 0);
+            List<Hit> hits = new ArrayList<>(size);
+            for (int i : idx) {
+                hits.add(new Hit(keys[i], scores[i]));
+            }
+            return hits;
+        }
+    }
+
+    /**
+     * @return the source number of the last document added, or Long.MIN_VALUE
+     * if there are none; add from just after it.
+     */
+    public long getIndexedSource() {
+        lock.readLock().lock();
+        try {
+            long max = Long.MIN_VALUE;
+            for (Segment s : segments) { max = Math.max(max, s.getMaxSource()); }
+            if (flushing != null) { max = Math.max(max, flushing.getMaxSource()); }
+            return Math.max(max, memory.getMaxSource());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of documents indexed.
+     */
+    public long getDocCount() {
+        lock.readLock().lock();
+        try {
+            long docs = memory.getDocCount();
+            for (Segment s : segments) { docs += s.getDocCount(); }
+            return docs + (flushing == null ? 0 : flushing.getDocCount());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of segment files.
+     */
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.length;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of merges done since opening.
+     */
+    public long getMerges() {
+        lock.readLock().lock();
+        try {
+            return merges;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Wait for a merge in progress and write out what is in memory.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) { return; }
+            closed = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        merger.shutdown();
+        try {
+            merger.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+}
@@ -0,0 +1,306 @@
+package uk.ac.bris.cs.databases.cwk3.search;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * An immutable part of the index in a file, memory-mapped when opened. The
+ * file holds, in order:
+ *
+ *  - the documents: key (long) and length (int) each;
+ *  - the postings of every term, back to back (see Cursor);
+ *  - the dictionary: per term in String order its UTF-8 length (varint)
+ *    and bytes, then document frequency, postings offset and postings
+ *    length (varints);
+ *  - the term index: the offset (int) of every dictionary entry, for
+ *    binary search;
+ *  - a fixed-size trailer with the counts and section offsets.
+ *
+ * Offsets are ints, so a segment is at most 2GB.
+ * @author csxdb
+ */
+final class Segment implements Index {
+
+    private static final int MAGIC = 0x46534547; // FSEG
+    private static final int VERSION = 1;
+    private static final int TRAILER = 52;
+    private static final int DOC = 12;
+
+    private final File file;
+    private final ByteBuffer buf;
+    private final int docCount;
+    private final int termCount;
+    private final long minSource;
+    private final long maxSource;
+    private final long totalLength;
+    private final int postings;
+    private final int dictionary;
+    private final int termIndex;
+
+    private Segment(File file, ByteBuffer buf) throws IOException {
+        this.file = file;
+        this.buf = buf;
+        int t = buf.capacity() - TRAILER;
+        if (t < 0 || buf.getInt(t) != MAGIC || buf.getInt(t + 4) != VERSION) {
+            throw new IOException("Not a search segment: " + file);
+        }
+        docCount = buf.getInt(t + 8);
+        termCount = buf.getInt(t + 12);
+        minSource = buf.getLong(t + 16);
+        maxSource = buf.getLong(t + 24);
+        totalLength = buf.getLong(t + 32);
+        postings = buf.getInt(t + 40);
+        dictionary = buf.getInt(t + 44);
+        termIndex = buf.getInt(t + 48);
+    }
+
+    /**
+     * Map a segment file.
+     */
+    static Segment open(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE) {
+                throw new IOException("Search segment too large: " + file);
+            }
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            return new Segment(file, map);
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Write the documents of parts, in that order, as one segment. Document
+     * numbers of later parts are shifted past those of earlier ones.
+     */
+    static void write(List<? extends Index> parts, File file) throws IOException {
+        int[] base = new int[parts.size()];
+        long minSource = Long.MAX_VALUE;
+        long maxSource = Long.MIN_VALUE;
+        long totalLength = 0;
+        int docs = 0;
+        for (int i = 0; i < parts.size(); i++) {
+            Index part = parts.get(i);
+            base[i] = docs;
+            docs += part.getDocCount();
+            minSource = Math.min(minSource, part.getMinSource());
+            maxSource = Math.max(maxSource, part.getMaxSource());
+            totalLength += part.getTotalLength();
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                 new FileOutputStream(file), 1 << 16))) {
+            for (Index part : parts) {
+                for (int d = 0; d < part.getDocCount(); d++) {
+                    out.writeLong(part.getKey(d));
+                    out.writeInt(part.getLength(d));
+                }
+            }
+
+            int postingsStart = out.size();
+            Bytes dict = new Bytes(1 << 16);
+            int[] entries = new int[1024];
+            int terms = 0;
+            Bytes posting = new Bytes(1 << 12);
+            PriorityQueue<TermIterator> queue = new PriorityQueue<>();
+            for (int i = 0; i < parts.size(); i++) {
+                TermIterator it = new TermIterator(i, parts.get(i).terms());
+                if (it.term != null) { queue.add(it); }
+            }
+            while (!queue.isEmpty()) {
+                String term = queue.peek().term;
+                posting.clear();
+                int docFreq = 0;
+                int last = -1;
+                // parts come off the queue in order for equal terms
+                while (!queue.isEmpty() && queue.peek().term.equals(term)) {
+                    TermIterator it = queue.poll();
+                    Cursor c = parts.get(it.part).cursor(term);
+                    for (int d = c.next(); d != Cursor.END; d = c.next()) {
+                        int doc = base[it.part] + d;
+                        posting.varint(doc - last);
+                        last = doc;
+                        int freq = c.freq();
+                        posting.varint(freq);
+                        int[] positions = c.positions();
+                        int p = 0;
+                        for (int j = 0; j < freq; j++) {
+                            posting.varint(positions[j] - p);
+                            p = positions[j];
+                        }
+                        docFreq++;
+                    }
+                    if (it.advance()) { queue.add(it); }
+                }
+                // DataOutputStream.size() sticks at Integer.MAX_VALUE
+                if ((long) out.size() + posting.size + dict.size + 4L * terms + TRAILER
+                    >= Integer.MAX_VALUE) {
+                    throw new IOException("Search segment too large: " + file);
+                }
+                if (terms == entries.length) {
+                    entries = Arrays.copyOf(entries, terms * 2);
+                }
+                entries[terms++] = dict.size;
+                byte[] utf8 = term.getBytes(StandardCharsets.UTF_8);
+                dict.varint(utf8.length);
+                dict.bytes(utf8);
+                dict.varint(docFreq);
+                dict.varint(out.size() - postingsStart);
+                dict.varint(posting.size);
+                out.write(posting.data, 0, posting.size);
+            }
+
+            int dictionaryStart = out.size();
+            out.write(dict.data, 0, dict.size);
+            int termIndexStart = out.size();
+            for (int i = 0; i < terms; i++) {
+                out.writeInt(entries[i]);
+            }
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(docs);
+            out.writeInt(terms);
+            out.writeLong(minSource);
+            out.writeLong(maxSource);
+            out.writeLong(totalLength);
+            out.writeInt(postingsStart);
+            out.writeInt(dictionaryStart);
+            out.writeInt(termIndexStart);
+        }
+    }
+
+    /* One part's terms, ordered by current term and then part. */
+    private static final class TermIterator implements Comparable<TermIterator> {
+        final int part;
+        final Iterator<String> terms;
+        String term;
+
+        TermIterator(int part, Iterator<String> terms) {
+            this.part = part;
+            this.terms = terms;
+            advance();
+        }
+
+        boolean advance() {
+            term = terms.hasNext() ? terms.next() : null;
+            return term != null;
+        }
+
+        @Override
+        public int compareTo(TermIterator o) {
+            int c = term.compareTo(o.term);
+            return c != 0 ? c : Integer.compare(part, o.part);
+        }
+    }
+
+    @Override
+    public int getDocCount() {
+        return docCount;
+    }
+
+    @Override
+    public long getKey(int doc) {
+        return buf.getLong(doc * DOC);
+    }
+
+    @Override
+    public int getLength(int doc) {
+        return buf.getInt(doc * DOC + 8);
+    }
+
+    @Override
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    @Override
+    public long getMinSource() {
+        return minSource;
+    }
+
+    @Override
+    public long getMaxSource() {
+        return maxSource;
+    }
+
+    @Override
+    public int docFreq(String term) {
+        int[] at = find(term);
+        return at == null ? 0 : Bytes.varint(buf, at);
+    }
+
+    @Override
+    public Cursor cursor(String term) {
+        int[] at = find(term);
+        if (at == null) { return null; }
+        int docFreq = Bytes.varint(buf, at);
+        int start = postings + Bytes.varint(buf, at);
+        int length = Bytes.varint(buf, at);
+        return new Cursor(buf, start, start + length, docFreq);
+    }
+
+    /* The position just past term's name in the dictionary, or null. */
+    private int[] find(String term) {
+        int lo = 0;
+        int hi = termCount - 1;
+        int[] at = new int[1];
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            at[0] = dictionary + buf.getInt(termIndex + 4 * mid);
+            int c = term(at).compareTo(term);
+            if (c == 0) {
+                return at;
+            } else if (c < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return null;
+    }
+
+    /* Read a term's name at at[0]. */
+    private String term(int[] at) {
+        int n = Bytes.varint(buf, at);
+        byte[] utf8 = new byte[n];
+        for (int i = 0; i < n; i++) {
+            utf8[i] = buf.get(at[0] + i);
+        }
+        at[0] += n;
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Iterator<String> terms() {
+        return new Iterator<String>() {
+            private int i;
+
+            @Override
+            public boolean hasNext() {
+                return i < termCount;
+            }
+
+            @Override
+            public String next() {
+                if (i >= termCount) { throw new NoSuchElementException(); }
+                int[] at = { dictionary + buf.getInt(termIndex + 4 * i++) };
+                return term(at);
+            }
+        };
+    }
+}
@@ -0,0 +1,61 @@
+package uk.ac.bris.cs.databases.cwk3.search;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits text into terms: runs of letters and digits, lower-cased and with
+ * accents removed, so "resume" also finds the accented spelling. There is
+ * no stemming. A term's position is its index in the list.
+ * @author csxdb
+ */
+final class Tokenizer {
+
+    /* Longer runs are skipped (but still take a position). */
+    static final int MAX_TERM = 64;
+
+    private Tokenizer() {}
+
+    static List<String> tokens(String text) {
+        List<String> out = new ArrayList<>();
+        if (text == null) { return out; }
+        StringBuilder sb = new StringBuilder();
+        boolean ascii = true;
+        int n = text.length();
+        for (int i = 0; i < n; ) {
+            int cp = text.codePointAt(i);
+            i += Character.charCount(cp);
+            if (Character.isLetterOrDigit(cp)) {
+                sb.appendCodePoint(Character.toLowerCase(cp));
+                ascii &= cp < 128;
+            } else if (sb.length() > 0) {
+                out.add(term(sb, ascii));
+                sb.setLength(0);
+                ascii = true;
+            }
+        }
+        if (sb.length() > 0) {
+            out.add(term(sb, ascii));
+        }
+        return out;
+    }
+
+    /* Too long a term becomes "", which is never looked up. */
+    private static String term(StringBuilder sb, boolean ascii) {
+        if (sb.length() > MAX_TERM) { return ""; }
+        return ascii ? sb.toString() : fold(sb.toString());
+    }
+
+    private static String fold(String s) {
+        String d = Normalizer.normalize(s, Normalizer.Form.NFD);
+        StringBuilder sb = new StringBuilder(d.length());
+        for (int i = 0; i < d.length(); i++) {
+            char c = d.charAt(i);
+            if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
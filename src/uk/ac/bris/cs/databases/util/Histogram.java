@@ -0,0 +1,119 @@
+package uk.ac.bris.cs.databases.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram that many threads can record into at once. Values go
+ * into buckets eight to a power of two, so a percentile read back is within
+ * about 9% of the truth. Each thread records into one of several stripes
+ * (picked by thread id), so threads rarely contend for a cache line; a
+ * snapshot adds the stripes up.
+ * @author csxdb
+ */
+public final class Histogram {
+
+    private static final int SUB = 3;
+    private static final int BUCKETS = 64 << SUB;
+    private static final int SUM = BUCKETS;
+    private static final int MAX = BUCKETS + 1;
+    /* Per stripe: the buckets, sum and max, then padding. */
+    private static final int STRIDE = BUCKETS + 2 + 14;
+    private static final int STRIPES =
+        Math.min(8, Integer.highestOneBit(2 * Runtime.getRuntime().availableProcessors() - 1));
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * STRIDE);
+
+    /**
+     * Record one value, e.g. a duration in nanoseconds. Negative values
+     * count as 0.
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        int base = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * STRIDE;
+        cells.incrementAndGet(base + bucket(v));
+        cells.addAndGet(base + SUM, v);
+        long max;
+        while ((max = cells.get(base + MAX)) < v
+               && !cells.compareAndSet(base + MAX, max, v)) {
+            // lost a race with a bigger or smaller value; look again
+        }
+    }
+
+    /**
+     * @return the counts so far. Not atomic with respect to record(), so a
+     * value being recorded may be in the count but not yet the sum.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long sum = 0;
+        long max = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            int base = s * STRIDE;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += cells.get(base + i);
+            }
+            sum += cells.get(base + SUM);
+            max = Math.max(max, cells.get(base + MAX));
+        }
+        return new Snapshot(counts, sum, max);
+    }
+
+    /**
+     * The counts of a Histogram at one moment.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long sum, long max) {
+            this.counts = counts;
+            long n = 0;
+            for (long c : counts) { n += c; }
+            this.count = n;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() { return count; }
+        public long getSum() { return sum; }
+        public long getMax() { return max; }
+
+        /**
+         * @return the upper end of the bucket holding the q-th quantile (0 to
+         * 1), at most the largest value recorded; 0 if there are none.
+         */
+        public long percentile(double q) {
+            if (count == 0) { return 0; }
+            long rank = Math.max(1, (long) Math.ceil(q * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(max, upper(i));
+                }
+            }
+            return max;
+        }
+    }
+
+    /* bits above the top one, then the next SUB bits */
+    private static int bucket(long v) {
+        if (v < (1 << SUB)) {
+            return (int) v;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int mantissa = (int) (v >>> (exp - SUB)) & ((1 << SUB) - 1);
+        return ((exp - SUB + 1) << SUB) | mantissa;
+    }
+
+    private static long upper(int bucket) {
+        int exp = (bucket >>> SUB) + SUB - 1;
+        if (exp < SUB) {
+            return bucket;
+        }
+        long mantissa = (bucket & ((1 << SUB) - 1)) | (1 << SUB);
+        return ((mantissa + 1) << (exp - SUB)) - 1;
+    }
+}
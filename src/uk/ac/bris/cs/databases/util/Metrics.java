@@ -0,0 +1,185 @@
+package uk.ac.bris.cs.databases.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Named counters, latency summaries and gauges, written out in the
+ * Prometheus text format. A series is a family name plus labels given as
+ * name, value pairs; asking for the same series twice returns the same
+ * object, so callers may look it up on every use or keep it.
+ *
+ * Summaries are in nanoseconds when recorded and in seconds when written,
+ * with the 0.5, 0.9, 0.99 and 0.999 quantiles, _sum and _count, all since
+ * the start.
+ * @author csxdb
+ */
+public class Metrics {
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private enum Type {
+        COUNTER("counter"), SUMMARY("summary"), GAUGE("gauge");
+
+        final String text;
+
+        Type(String text) {
+            this.text = text;
+        }
+    }
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final Type type;
+        /* labels as written, e.g. {method="getForums"} -> series */
+        final ConcurrentMap<String, Object> series = new ConcurrentHashMap<>();
+
+        Family(String name, String help, Type type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private final ConcurrentMap<String, Family> families = new ConcurrentHashMap<>();
+
+    /**
+     * @return the counter with these labels, created at 0 if need be.
+     */
+    public LongAdder counter(String name, String help, String... labels) {
+        return (LongAdder) series(name, help, Type.COUNTER, labels, LongAdder::new);
+    }
+
+    /**
+     * @return the summary with these labels, created empty if need be.
+     */
+    public Histogram summary(String name, String help, String... labels) {
+        return (Histogram) series(name, help, Type.SUMMARY, labels, Histogram::new);
+    }
+
+    /**
+     * Report value's current value as a gauge; replaces any earlier gauge
+     * with the same labels.
+     */
+    public void gauge(String name, String help, Supplier<? extends Number> value,
+                      String... labels) {
+        family(name, help, Type.GAUGE).series.put(labels(labels), value);
+    }
+
+    /**
+     * Report every entry of a statistics map (as returned by the getStats()
+     * methods around the code base) as a gauge called prefix_key, with the
+     * key turned from camelCase into snake_case.
+     */
+    public void gauges(String prefix, String help,
+                       Supplier<? extends Map<String, ? extends Number>> stats) {
+        for (String key : stats.get().keySet()) {
+            gauge(prefix + "_" + snake(key), help + " (" + key + ")",
+                  () -> stats.get().get(key));
+        }
+    }
+
+    private Object series(String name, String help, Type type, String[] labels,
+                          Supplier<Object> create) {
+        return family(name, help, type).series
+            .computeIfAbsent(labels(labels), k -> create.get());
+    }
+
+    private Family family(String name, String help, Type type) {
+        Family f = families.computeIfAbsent(name, n -> new Family(n, help, type));
+        if (f.type != type) {
+            throw new IllegalArgumentException(name + " is a " + f.type.text);
+        }
+        return f;
+    }
+
+    /**
+     * @return every series in the Prometheus text exposition format.
+     */
+    public String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Family f : new TreeMap<>(families).values()) {
+            sb.append("# HELP ").append(f.name).append(' ')
+              .append(f.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            sb.append("# TYPE ").append(f.name).append(' ').append(f.type.text).append('\n');
+            for (Map.Entry<String, Object> e : new TreeMap<>(f.series).entrySet()) {
+                String labels = e.getKey();
+                Object s = e.getValue();
+                switch (f.type) {
+                    case COUNTER:
+                        line(sb, f.name, labels, null, ((LongAdder) s).sum());
+                        break;
+                    case GAUGE:
+                        Number n = (Number) ((Supplier<?>) s).get();
+                        line(sb, f.name, labels, null, n == null ? Double.NaN : n.doubleValue());
+                        break;
+                    default:
+                        Histogram.Snapshot h = ((Histogram) s).snapshot();
+                        for (double q : QUANTILES) {
+                            line(sb, f.name, labels, "quantile=\"" + q + "\"",
+                                 h.percentile(q) / 1e9);
+                        }
+                        line(sb, f.name + "_sum", labels, null, h.getSum() / 1e9);
+                        line(sb, f.name + "_count", labels, null, h.getCount());
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void line(StringBuilder sb, String name, String labels, String extra,
+                             double value) {
+        sb.append(name);
+        if (extra != null) {
+            sb.append(labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",")
+              .append(extra).append('}');
+        } else {
+            sb.append(labels);
+        }
+        sb.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+    /* {a="x",b="y"}, or "" for no labels. */
+    private static String labels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels come in name, value pairs");
+        }
+        if (labels.length == 0) { return ""; }
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) { sb.append(','); }
+            sb.append(labels[i]).append("=\"")
+              .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")
+                                   .replace("\n", "\\n"))
+              .append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static String snake(String camel) {
+        StringBuilder sb = new StringBuilder(camel.length() + 4);
+        for (int i = 0; i < camel.length(); i++) {
+            char c = camel.charAt(i);
+            if (Character.isUpperCase(c)) {
+                if (i > 0) { sb.append('_'); }
+                sb.append(Character.toLowerCase(c));
+            } else if (Character.isLetterOrDigit(c)) {
+                sb.append(c);
+            } else {
+                sb.append('_');
+            }
+        }
+        return sb.toString();
+    }
+}
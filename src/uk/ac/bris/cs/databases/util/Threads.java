@@ -0,0 +1,77 @@
+package uk.ac.bris.cs.databases.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors that use virtual threads where the JVM has them (Java 21+) and
+ * fall back to ordinary daemon threads otherwise. Looked up reflectively so
+ * that the code still builds and runs on older JDKs.
+ * @author csxdb
+ */
+public final class Threads {
+
+    private Threads() {}
+
+    /**
+     * @return true if this JVM can start virtual threads.
+     */
+    public static boolean virtual() {
+        return VIRTUAL != null;
+    }
+
+    /**
+     * An executor that runs every task on a new virtual thread; without
+     * virtual threads, a fixed pool of daemon threads.
+     * @param name - prefix for the thread names.
+     * @param fallbackThreads - the pool size when virtual threads are not
+     * available.
+     */
+    public static ExecutorService perTask(String name, int fallbackThreads) {
+        if (VIRTUAL != null) {
+            try {
+                return (ExecutorService) VIRTUAL.invoke(null, named(name));
+            } catch (ReflectiveOperationException e) {
+                // fall through to the pool
+            }
+        }
+        return Executors.newFixedThreadPool(fallbackThreads, daemon(name));
+    }
+
+    /**
+     * @return a factory for daemon platform threads called name-1, name-2...
+     */
+    public static ThreadFactory daemon(String name) {
+        AtomicInteger n = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /* Executors.newThreadPerTaskExecutor(ThreadFactory), or null. */
+    private static final Method VIRTUAL = find();
+
+    private static Method find() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return Executors.class.getMethod("newThreadPerTaskExecutor",
+                                             ThreadFactory.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /* Thread.ofVirtual().name(name + "-", 1).factory() */
+    private static ThreadFactory named(String name) throws ReflectiveOperationException {
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        Class<?> type = Class.forName("java.lang.Thread$Builder");
+        builder = type.getMethod("name", String.class, long.class)
+                      .invoke(builder, name + "-", 1L);
+        return (ThreadFactory) type.getMethod("factory").invoke(builder);
+    }
+}
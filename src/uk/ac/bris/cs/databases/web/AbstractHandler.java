@@ -5,12 +5,16 @@ import fi.iki.elonen.router.RouterNanoHTTPD;
 import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import uk.ac.bris.cs.databases.api.Result;
+import uk.ac.bris.cs.databases.util.Metrics;
 
 /**
  * Code shared across web handlers.
@@ -62,12 +66,17 @@ public abstract class AbstractHandler extends RouterNanoHTTPD.DefaultHandler {
             this.code = code;
         }
         
+        // NanoHTTPD writes this after "HTTP/1.1 ", so it starts with the code
         @Override public String getDescription() {
             switch (code) {
-                case 200: return "OK";
-                case 404: return "Not found";
-                case 500: return "Internal error";
-                default:  return "OTHER"; // naughty
+                case 200: return "200 OK";
+                case 304: return "304 Not Modified";
+                case 400: return "400 Bad Request";
+                case 403: return "403 Forbidden";
+                case 404: return "404 Not Found";
+                case 500: return "500 Internal Server Error";
+                case 503: return "503 Service Unavailable";
+                default:  return code + " Other";
             }
         }
 
@@ -77,23 +86,145 @@ public abstract class AbstractHandler extends RouterNanoHTTPD.DefaultHandler {
         
     }
     
+    /* @return true if an If-None-Match header lists tag; weak or strong,
+     * since both compare weakly there. */
+    static boolean matches(String ifNoneMatch, String tag) {
+        String ours = "\"" + tag + "\"";
+        for (String t : ifNoneMatch.split(",")) {
+            t = t.trim();
+            if (t.startsWith("W/")) {
+                t = t.substring(2);
+            }
+            if (t.equals(ours) || t.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* Pages that show the SQL the server runs, or what it is doing, are
+     * only served to this machine; the address is the socket's, not a
+     * header the client could set. */
+    static boolean fromLocalhost(NanoHTTPD.IHTTPSession session) {
+        String ip = session.getRemoteIpAddress();
+        return ip != null && (ip.startsWith("127.") || ip.equals("::1")
+                              || ip.equals("0:0:0:0:0:0:0:1"));
+    }
+
     /** Implement this to work with cookies. */
     void handleCookies(NanoHTTPD.IHTTPSession session) {}
+
+    /** The cookie that carries a session's token. */
+    static final String SESSION_COOKIE = "session";
+
+    /* Who the request is from, if they are logged in; a handler serves one
+     * request. */
+    private Sessions.Session login;
+
+    /**
+     * @return the session of whoever sent the request, or null if they are
+     * not logged in.
+     */
+    Sessions.Session getLogin() {
+        return login;
+    }
+
+    private static Sessions.Session login(NanoHTTPD.IHTTPSession session) {
+        Sessions sessions = ApplicationContext.getInstance().getSessions();
+        NanoHTTPD.CookieHandler cookies = session.getCookies();
+        if (sessions == null || cookies == null) {
+            return null;
+        }
+        return sessions.get(cookies.read(SESSION_COOKIE));
+    }
     
     private NanoHTTPD.Response handle(RouterNanoHTTPD.UriResource uriResource,
                                       Map<String, String> urlParams,
                                       NanoHTTPD.IHTTPSession session) {
-        View v = render(uriResource, urlParams, session);
+        long start = System.nanoTime();
+        login = login(session);
+        View v;
+        try {
+            v = render(uriResource, urlParams, session);
+        } catch (RuntimeException e) {
+            /* The router turns this into a 500; count it as one. */
+            record(uriResource.getUri(), 500, System.nanoTime() - start);
+            throw e;
+        }
         
-        NanoHTTPD.Response r = NanoHTTPD.newFixedLengthResponse(
-                               new Status(v.getCode()),
-                               getMimeType(),
-                               v.getContents());
+        if (v.getTemplate() != null) {
+            // rendered as it is sent, and counted once it has been
+            String route = uriResource.getUri();
+            Compression gz = ApplicationContext.getInstance().getCompression();
+            NanoHTTPD.Response r = new StreamingResponse(utf8(getMimeType()),
+                v.getTemplate(), v.getModel(),
+                gz != null && Compression.accepts(session) ? gz : null,
+                code -> record(route, code, System.nanoTime() - start));
+            headers(r, v, gz != null);
+            handleCookies(session);
+            return r;
+        }
+
+        NanoHTTPD.Response r = respond(session, v);
+        headers(r, v, false);
 
         handleCookies(session);
-        
+
+        record(uriResource.getUri(), v.getCode(), System.nanoTime() - start);
+        return r;
+    }
+
+    private static void headers(NanoHTTPD.Response r, View v, boolean vary) {
+        for (Map.Entry<String, String> h : v.getHeaders().entrySet()) {
+            r.addHeader(h.getKey(), h.getValue());
+        }
+        if (vary) {
+            r.addHeader("Vary", "Accept-Encoding");
+        }
+    }
+
+    private static String utf8(String mime) {
+        return mime.contains("charset") ? mime : mime + "; charset=UTF-8";
+    }
+
+    /* The view as a response, gzipped if the client takes it and it is
+     * worth it. */
+    private NanoHTTPD.Response respond(NanoHTTPD.IHTTPSession session, View v) {
+        Compression gz = ApplicationContext.getInstance().getCompression();
+        if (gz == null) {
+            return NanoHTTPD.newFixedLengthResponse(new Status(v.getCode()),
+                getMimeType(), v.getBody() == null ? v.getContents()
+                    : new String(v.getBody().getRaw(), StandardCharsets.UTF_8));
+        }
+        Compression.Body body = v.getBody() != null ? v.getBody()
+            : new Compression.Body(v.getContents() == null ? "" : v.getContents(), false);
+        String mime = utf8(getMimeType());
+        byte[] data = body.getRaw();
+        byte[] z = v.getCode() == 304 || !Compression.accepts(session) ? null : gz.gzip(body);
+        if (z != null) {
+            data = z;
+        }
+        NanoHTTPD.Response r = NanoHTTPD.newFixedLengthResponse(new Status(v.getCode()),
+            mime, new ByteArrayInputStream(data), data.length);
+        if (z != null) {
+            r.addHeader("Content-Encoding", "gzip");
+        }
+        r.addHeader("Vary", "Accept-Encoding");
         return r;
     }
+
+    /* Per route (the pattern, e.g. topic/:id): requests by status code and
+     * the time to render and encode them; sending the bytes is not included,
+     * except for a streamed page, which is sent as it is rendered.
+     */
+    private static void record(String route, int code, long nanos) {
+        Metrics m = ApplicationContext.getInstance().getMetrics();
+        if (m == null) { return; }
+        m.counter("forum_http_requests_total", "Requests by route and status code.",
+                  "route", route, "code", Integer.toString(code)).increment();
+        m.summary("forum_http_latency_seconds", "Time to render a response, by route.",
+                  "route", route).record(nanos);
+    }
     
     @Override
     public NanoHTTPD.Response get(RouterNanoHTTPD.UriResource uriResource,
@@ -121,13 +252,25 @@ public abstract class AbstractHandler extends RouterNanoHTTPD.DefaultHandler {
         for (String param : URIParams.split("&")) {
             String pair[] = param.split("=");
             if (pair.length>1) {
-                result.put(pair[0], pair[1]);
+                result.put(decode(pair[0]), decode(pair[1]));
             }else{
-                result.put(pair[0], "");
+                result.put(decode(pair[0]), "");
             }
         }
         return result;
     }
+
+    /* Undo form encoding (+ and %XX); malformed escapes are kept as sent. */
+    private static String decode(String s) {
+        if (s.indexOf('%') < 0 && s.indexOf('+') < 0) {
+            return s;
+        }
+        try {
+            return URLDecoder.decode(s, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return s;
+        }
+    }
     
     View renderView(String template, Object data) {
         Configuration c = ApplicationContext.getInstance().getTemplateConfiguration();
@@ -148,6 +291,24 @@ public abstract class AbstractHandler extends RouterNanoHTTPD.DefaultHandler {
         
         return new View(200, w.toString());
     }
+
+    /* Like renderView, but the template runs as the response is sent, so
+     * that a large page is never held whole (see StreamingResponse). A
+     * missing template is still an error here. */
+    View streamView(String template, Object data) {
+        Configuration c = ApplicationContext.getInstance().getTemplateConfiguration();
+
+        Template t;
+        try {
+            t = c.getTemplate(template);
+        } catch (Exception e) {
+            return new View(500, "Template error - " + e.getMessage());
+        }
+
+        View v = new View(200, null);
+        v.setTemplate(t, data);
+        return v;
+    }
     
     public static class ListWrapper<T> {
         private final List<T> l;
@@ -2,6 +2,10 @@ package uk.ac.bris.cs.databases.web;
 
 import freemarker.template.Configuration;
 import uk.ac.bris.cs.databases.api.APIProvider;
+import uk.ac.bris.cs.databases.api.AsyncAPIProvider;
+import uk.ac.bris.cs.databases.cwk3.VersionedAPI;
+import uk.ac.bris.cs.databases.cwk3.db.ConnectionManager;
+import uk.ac.bris.cs.databases.util.Metrics;
 
 /**
  *
@@ -14,7 +18,23 @@ public class ApplicationContext {
     
     private APIProvider api;
 
+    private AsyncAPIProvider asyncApi;
+
+    private ConnectionManager database;
+
     private Configuration templateConfiguration;
+
+    private Metrics metrics;
+
+    private VersionedAPI versions;
+
+    private Compression compression;
+
+    private Assets assets;
+
+    private BoundedRunner runner;
+
+    private Sessions sessions;
     
    
     public static ApplicationContext getInstance() {
@@ -35,6 +55,34 @@ public class ApplicationContext {
         this.api = api;
     }
 
+    /**
+     * @return the api, for handlers that start several calls at once
+     */
+    public AsyncAPIProvider getAsyncApi() {
+        return asyncApi;
+    }
+
+    /**
+     * @param asyncApi the asynchronous api to set
+     */
+    public void setAsyncApi(AsyncAPIProvider asyncApi) {
+        this.asyncApi = asyncApi;
+    }
+
+    /**
+     * @return the database connections behind the api
+     */
+    public ConnectionManager getDatabase() {
+        return database;
+    }
+
+    /**
+     * @param database the database connections to set
+     */
+    public void setDatabase(ConnectionManager database) {
+        this.database = database;
+    }
+
     /**
      * @return the templateConfiguration
      */
@@ -48,4 +96,88 @@ public class ApplicationContext {
     public void setTemplateConfiguration(Configuration templateConfiguration) {
         this.templateConfiguration = templateConfiguration;
     }
+
+    /**
+     * @return the metrics registry, or null if nothing is being measured
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics the metrics registry to set
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the page versions, or null if pages are not versioned
+     */
+    public VersionedAPI getVersions() {
+        return versions;
+    }
+
+    /**
+     * @param versions the page versions to set
+     */
+    public void setVersions(VersionedAPI versions) {
+        this.versions = versions;
+    }
+
+    /**
+     * @return how responses are compressed, or null to send them as they are
+     */
+    Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @param compression how to compress responses
+     */
+    void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @return the static files
+     */
+    Assets getAssets() {
+        return assets;
+    }
+
+    /**
+     * @param assets the static files
+     */
+    void setAssets(Assets assets) {
+        this.assets = assets;
+    }
+
+    /**
+     * @return what runs connections, or null for NanoHTTPD's default
+     */
+    BoundedRunner getRunner() {
+        return runner;
+    }
+
+    /**
+     * @param runner what runs connections
+     */
+    void setRunner(BoundedRunner runner) {
+        this.runner = runner;
+    }
+
+    /**
+     * @return who is logged in
+     */
+    Sessions getSessions() {
+        return sessions;
+    }
+
+    /**
+     * @param sessions who is logged in
+     */
+    void setSessions(Sessions sessions) {
+        this.sessions = sessions;
+    }
 }
@@ -0,0 +1,221 @@
+package uk.ac.bris.cs.databases.web;
+
+import freemarker.template.Configuration;
+import freemarker.template.TemplateMethodModelEx;
+import freemarker.template.TemplateModelException;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import uk.ac.bris.cs.databases.util.Threads;
+
+/**
+ * The static files (stylesheets), read once into memory when the server
+ * starts and sent from there as they are: no file is opened and nothing is
+ * encoded again per request, and the gzip of each is made when it is read.
+ *
+ * Each file has a tag, from a hash of its contents. Pages link to a file as
+ * url?v=tag (templates call ${asset("/styles.css")}), and a request with
+ * the current tag may be cached for a year, since a change to the file
+ * changes the link. Any other request (an old tag, or none) may be cached
+ * but must be checked each time, against the tag as its ETag.
+ *
+ * With watch() (forum.dev) a file that changes on disk is read again, so
+ * an edited stylesheet shows on the next page load; otherwise files are
+ * read only at startup. Pages hold the tags in their links, so each reload
+ * moves on a generation number that their own ETags include.
+ * @author csxdb
+ */
+final class Assets {
+
+    /** A file as last read. */
+    static final class Asset {
+        private final Compression.Body body;
+        private final String tag;
+
+        Asset(Compression.Body body, String tag) {
+            this.body = body;
+            this.tag = tag;
+        }
+
+        Compression.Body getBody() {
+            return body;
+        }
+
+        /**
+         * @return a hash of the contents, for ETags and links.
+         */
+        String getTag() {
+            return tag;
+        }
+    }
+
+    private final Compression gz;
+    /* URL to file, in the order added. */
+    private final Map<String, Path> files = new LinkedHashMap<>();
+    private final ConcurrentMap<String, Asset> assets = new ConcurrentHashMap<>();
+    /* Moved on, after the files, by each reload; only the watch thread
+     * writes them. The generation is written last, so a reader that sees
+     * it sees the reload time and the files that went with it. */
+    private volatile long reloaded;
+    private volatile long generation;
+
+    /**
+     * @param gz - compress each file as it is read with this, or null not
+     * to.
+     */
+    Assets(Compression gz) {
+        this.gz = gz;
+    }
+
+    /**
+     * Read a file to serve at url.
+     * @throws IOException if it cannot be read.
+     */
+    Assets add(String url, String file) throws IOException {
+        Path path = Paths.get(file).toAbsolutePath().normalize();
+        assets.put(url, load(path));
+        files.put(url, path);
+        return this;
+    }
+
+    /**
+     * @return the file served at url, or null if there is none.
+     */
+    Asset get(String url) {
+        return assets.get(url);
+    }
+
+    /**
+     * @return url with the current tag of its file, to link to; url as it
+     * is if no file is served there.
+     */
+    String link(String url) {
+        Asset a = assets.get(url);
+        return a == null ? url : url + "?v=" + a.getTag();
+    }
+
+    /**
+     * @return how many times files have been read again since startup.
+     */
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return when files were last read again, in milliseconds since the
+     * epoch; 0 if they have not been.
+     */
+    long getReloaded() {
+        return reloaded;
+    }
+
+    /**
+     * Make link() available to templates as asset(url).
+     */
+    void share(Configuration cfg) {
+        cfg.setSharedVariable("asset", (TemplateMethodModelEx) args -> {
+            if (args.size() != 1) {
+                throw new TemplateModelException("asset(url) takes one argument");
+            }
+            return link(args.get(0).toString());
+        });
+    }
+
+    private Asset load(Path path) throws IOException {
+        byte[] raw = Files.readAllBytes(path);
+        Compression.Body body = new Compression.Body(raw, true);
+        if (gz != null) {
+            gz.prepare(body);
+        }
+        return new Asset(body, tag(raw));
+    }
+
+    /* The first 96 bits of the SHA-256, in base64url. */
+    private static String tag(byte[] raw) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(raw);
+            return Base64.getUrlEncoder().withoutPadding()
+                         .encodeToString(Arrays.copyOf(hash, 12));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Should not happen - every JVM has SHA-256.", e);
+        }
+    }
+
+    /**
+     * Read files again when they change on disk, on a daemon thread.
+     */
+    void watch() throws IOException {
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        Set<Path> dirs = new HashSet<>();
+        for (Path p : files.values()) {
+            if (dirs.add(p.getParent())) {
+                p.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                       StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        }
+        Threads.daemon("assets").newThread(() -> {
+            try {
+                while (true) {
+                    Set<Path> changed = new HashSet<>();
+                    changed(watcher.take(), changed);
+                    // an editor's save is often several events; take them together
+                    Thread.sleep(50);
+                    for (WatchKey k = watcher.poll(); k != null; k = watcher.poll()) {
+                        changed(k, changed);
+                    }
+                    reload(changed);
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // stopping
+            }
+        }).start();
+        System.out.println("[Assets] watching " + dirs);
+    }
+
+    private static void changed(WatchKey key, Set<Path> changed) {
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> e : key.pollEvents()) {
+            if (e.context() instanceof Path) {
+                changed.add(dir.resolve((Path) e.context()));
+            }
+        }
+        key.reset();
+    }
+
+    private void reload(Set<Path> changed) {
+        boolean any = false;
+        for (Map.Entry<String, Path> f : files.entrySet()) {
+            if (!changed.contains(f.getValue())) { continue; }
+            try {
+                Asset a = load(f.getValue());
+                Asset old = assets.put(f.getKey(), a);
+                any |= old == null || !old.getTag().equals(a.getTag());
+                System.out.println("[Assets] reloaded " + f.getValue() + ", tag " + a.getTag());
+            } catch (IOException e) {
+                // keep serving the last good copy
+                System.out.println("[Assets] could not reload " + f.getValue() + ": " + e);
+            }
+        }
+        if (any) {
+            reloaded = System.currentTimeMillis();
+            generation++;
+        }
+    }
+}
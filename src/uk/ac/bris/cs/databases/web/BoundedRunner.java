@@ -0,0 +1,280 @@
+package uk.ac.bris.cs.databases.web;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import uk.ac.bris.cs.databases.util.Histogram;
+import uk.ac.bris.cs.databases.util.Threads;
+
+/**
+ * Runs NanoHTTPD's connections with a limit, in place of its default of a
+ * new thread for every connection, however many there are. Either:
+ *
+ *  - pool: a fixed pool of platform threads, with a bounded queue of
+ *    connections waiting for one; or
+ *  - virtual: a virtual thread for every connection, of which a limited
+ *    number run at once and a bounded number more wait (on a JVM without
+ *    virtual threads, a pool the size of the limit).
+ *
+ * A connection that finds the queue full gets 503 Service Unavailable, with
+ * Retry-After, and is closed. The refusal is written, and the connection
+ * half-closed, on a thread of its own, which never waits on a client: the
+ * socket is left open for REFUSAL_LINGER_MS so that the client can read the
+ * 503, then what it sent is dropped and the socket closed, so that it is
+ * not reset before then. At most QUEUE_REFUSALS connections linger at a
+ * time; any more are simply closed.
+ *
+ * NanoHTTPD runs one connection (all its keep-alive requests) per task, so
+ * the limit is on connections being served, including those idle between
+ * requests until NanoHTTPD's read timeout (5s) closes them.
+ * @author csxdb
+ */
+final class BoundedRunner implements NanoHTTPD.AsyncRunner {
+
+    private static final int QUEUE_REFUSALS = 1024;
+    private static final int REFUSAL_LINGER_MS = 1000;
+
+    private static final byte[] BUSY;
+    static {
+        byte[] body = "Server busy - try again shortly.\n".getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 503 Service Unavailable\r\n"
+            + "Content-Type: text/plain; charset=UTF-8\r\n"
+            + "Retry-After: 1\r\n"
+            + "Connection: close\r\n"
+            + "Content-Length: " + body.length + "\r\n\r\n";
+        byte[] h = head.getBytes(StandardCharsets.US_ASCII);
+        BUSY = new byte[h.length + body.length];
+        System.arraycopy(h, 0, BUSY, 0, h.length);
+        System.arraycopy(body, 0, BUSY, h.length, body.length);
+    }
+
+    private final String mode;
+    private final int limit;
+    private final int queue;
+    private final ExecutorService executor;
+    /* virtual: connections let in (running or waiting), and running. */
+    private final Semaphore admitted;
+    private final Semaphore running;
+    private final ScheduledThreadPoolExecutor refusals;
+    /* Refused connections not yet closed. */
+    private final AtomicInteger lingering = new AtomicInteger();
+
+    /* Accepted connections' sockets, to refuse them; and running ones, to
+     * close on stop. */
+    private final ConcurrentMap<NanoHTTPD.ClientHandler, Socket> sockets = new ConcurrentHashMap<>();
+    private final ConcurrentMap<NanoHTTPD.ClientHandler, Boolean> open = new ConcurrentHashMap<>();
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder served = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final Histogram wait;
+
+    /**
+     * @param mode - "pool" or "virtual".
+     * @param limit - connections served at once.
+     * @param queue - connections that may wait beyond that.
+     * @param wait - where to record how long connections wait, in
+     * nanoseconds.
+     */
+    BoundedRunner(String mode, int limit, int queue, Histogram wait) {
+        if (limit < 1 || queue < 0) {
+            throw new IllegalArgumentException("Need a limit of at least 1 and a queue of 0 or more");
+        }
+        this.limit = limit;
+        this.queue = queue;
+        this.wait = wait;
+        switch (mode) {
+            case "pool":
+                executor = new ThreadPoolExecutor(limit, limit, 0, TimeUnit.MILLISECONDS,
+                    queue == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queue),
+                    Threads.daemon("http"));
+                admitted = null;
+                running = null;
+                break;
+            case "virtual":
+                if (!Threads.virtual()) {
+                    System.out.println("[BoundedRunner] no virtual threads in this JVM;"
+                                       + " using a pool of " + limit);
+                }
+                executor = Threads.perTask("http", limit);
+                admitted = new Semaphore(limit + queue);
+                running = new Semaphore(limit, true);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode " + mode
+                                                   + ", expected pool or virtual");
+        }
+        this.mode = mode;
+        refusals = new ScheduledThreadPoolExecutor(1, Threads.daemon("http-refuse"));
+    }
+
+    /**
+     * Tell the runner a connection's socket, before exec(), so that it
+     * can refuse it.
+     */
+    void accepted(NanoHTTPD.ClientHandler h, Socket s) {
+        sockets.put(h, s);
+    }
+
+    @Override
+    public void exec(NanoHTTPD.ClientHandler h) {
+        long start = System.nanoTime();
+        queued.incrementAndGet();
+        if (admitted != null && !admitted.tryAcquire()) {
+            queued.decrementAndGet();
+            refuse(h);
+            return;
+        }
+        try {
+            executor.execute(() -> serve(h, start));
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            if (admitted != null) {
+                admitted.release();
+            }
+            refuse(h);
+        }
+    }
+
+    private void serve(NanoHTTPD.ClientHandler h, long start) {
+        try {
+            if (running != null) {
+                running.acquire();
+            }
+        } catch (InterruptedException e) {
+            // stopping; h never runs, so closed() is not called for it
+            queued.decrementAndGet();
+            admitted.release();
+            sockets.remove(h);
+            h.close();
+            return;
+        }
+        queued.decrementAndGet();
+        wait.record(System.nanoTime() - start);
+        active.incrementAndGet();
+        served.increment();
+        open.put(h, Boolean.TRUE);
+        try {
+            h.run();
+        } finally {
+            active.decrementAndGet();
+            if (running != null) {
+                running.release();
+                admitted.release();
+            }
+        }
+    }
+
+    /* 503, then close; or just close if too many refusals are lingering. */
+    private void refuse(NanoHTTPD.ClientHandler h) {
+        rejected.increment();
+        Socket s = sockets.remove(h);
+        if (s == null || lingering.incrementAndGet() > QUEUE_REFUSALS) {
+            if (s != null) {
+                lingering.decrementAndGet();
+            }
+            h.close();
+            return;
+        }
+        try {
+            refusals.execute(() -> busy(h, s));
+        } catch (RejectedExecutionException e) {
+            close(h);
+        }
+    }
+
+    /* The 503 fits the socket's send buffer, so this does not block. */
+    private void busy(NanoHTTPD.ClientHandler h, Socket s) {
+        try {
+            OutputStream out = s.getOutputStream();
+            out.write(BUSY);
+            out.flush();
+            s.shutdownOutput();
+            refusals.schedule(() -> linger(h, s), REFUSAL_LINGER_MS, TimeUnit.MILLISECONDS);
+        } catch (IOException | RejectedExecutionException e) {
+            // the client has gone already, or the server is stopping
+            close(h);
+        }
+    }
+
+    /* Drop what has arrived, without waiting for more, so that closing does
+     * not reset the connection. */
+    private void linger(NanoHTTPD.ClientHandler h, Socket s) {
+        try {
+            InputStream in = s.getInputStream();
+            for (int n = in.available(); n > 0; n = in.available()) {
+                in.skip(n);
+            }
+        } catch (IOException e) {
+            // the client has gone already
+        } finally {
+            close(h);
+        }
+    }
+
+    private void close(NanoHTTPD.ClientHandler h) {
+        lingering.decrementAndGet();
+        h.close();
+    }
+
+    @Override
+    public void closed(NanoHTTPD.ClientHandler h) {
+        sockets.remove(h);
+        open.remove(h);
+    }
+
+    /* On stop: waiting connections are interrupted (virtual) or dropped
+     * from the queue (pool), refusals still lingering are finished at once,
+     * and every socket left is closed. */
+    @Override
+    public void closeAll() {
+        executor.shutdownNow();
+        for (Runnable r : refusals.shutdownNow()) {
+            r.run();
+        }
+        for (NanoHTTPD.ClientHandler h : open.keySet()) {
+            h.close();
+        }
+        for (NanoHTTPD.ClientHandler h : sockets.keySet()) {
+            h.close();
+        }
+    }
+
+    /**
+     * @return the limit and queue size, connections being served and
+     * waiting now, and connections served and refused so far.
+     */
+    Map<String, Number> getStats() {
+        Map<String, Number> m = new LinkedHashMap<>();
+        m.put("limit", limit);
+        m.put("queue", queue);
+        m.put("active", active.get());
+        m.put("queued", queued.get());
+        m.put("served", served.sum());
+        m.put("rejected", rejected.sum());
+        return m;
+    }
+
+    @Override
+    public String toString() {
+        return mode + " of " + limit + ", queue " + queue;
+    }
+}
@@ -0,0 +1,306 @@
+package uk.ac.bris.cs.databases.web;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Gzip for response bodies, in place of NanoHTTPD's own (which starts a new
+ * GZIPOutputStream for every text response, however small, and sends it
+ * chunked). Bodies under the threshold, or that would not shrink, go out as
+ * they are; the rest are compressed in one go and sent with their length.
+ *
+ * NanoHTTPD runs each connection on a thread of its own, so compressors
+ * are not kept per thread but in a small pool shared by all of them: a
+ * Deflater holds native memory that is only given back when it is ended.
+ *
+ * A Body that is kept (e.g. a stylesheet) remembers its compressed form, so
+ * it is compressed once however often it is sent. A page too large to hold
+ * is compressed as it is sent instead, through a Stream.
+ * @author csxdb
+ */
+final class Compression {
+
+    /* Gzip member header: magic, deflate, no flags, no time, unknown OS. */
+    private static final byte[] HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * A response body as bytes, with its compressed form once there is one.
+     */
+    static final class Body {
+        private final byte[] raw;
+        private final boolean kept;
+        private volatile byte[] gzip;
+        private volatile boolean tried;
+
+        /**
+         * @param kept - true if the body will be sent again, so its
+         * compressed form is worth remembering.
+         */
+        Body(byte[] raw, boolean kept) {
+            this.raw = raw;
+            this.kept = kept;
+        }
+
+        Body(String text, boolean kept) {
+            this(text.getBytes(StandardCharsets.UTF_8), kept);
+        }
+
+        byte[] getRaw() {
+            return raw;
+        }
+    }
+
+    /* A compressor and its scratch space. */
+    private static final class Gzip {
+        final Deflater deflater;
+        final CRC32 crc = new CRC32();
+        byte[] out = new byte[16384];
+
+        Gzip(int level) {
+            deflater = new Deflater(level, true);
+        }
+    }
+
+    private final int minBytes;
+    private final int level;
+    private final BlockingQueue<Gzip> pool;
+
+    private final LongAdder responses = new LongAdder();
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder gzipBytes = new LongAdder();
+    private final LongAdder cpuNanos = new LongAdder();
+
+    /**
+     * @param minBytes - leave bodies smaller than this uncompressed.
+     * @param level - the Deflater level, 1 (fastest) to 9 (smallest).
+     * @param pooled - the most idle compressors to keep.
+     */
+    Compression(int minBytes, int level, int pooled) {
+        this.minBytes = minBytes;
+        this.level = level;
+        this.pool = new ArrayBlockingQueue<>(Math.max(1, pooled));
+    }
+
+    /**
+     * @return true if the client takes gzip (and has not given it q=0).
+     */
+    static boolean accepts(NanoHTTPD.IHTTPSession session) {
+        String header = session.getHeaders().get("accept-encoding");
+        if (header == null) { return false; }
+        for (String part : header.split(",")) {
+            String[] fields = part.split(";");
+            String coding = fields[0].trim();
+            if (!coding.equalsIgnoreCase("gzip") && !coding.equalsIgnoreCase("x-gzip")) {
+                continue;
+            }
+            for (int i = 1; i < fields.length; i++) {
+                String f = fields[i].trim();
+                if (f.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(f.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * What to send a client that takes gzip.
+     * @return the compressed body, or null to send it as it is.
+     */
+    byte[] gzip(Body body) {
+        responses.increment();
+        if (body.tried) {
+            byte[] z = body.gzip;
+            if (z != null) {
+                reused.increment();
+                rawBytes.add(body.raw.length);
+                gzipBytes.add(z.length);
+            }
+            return z;
+        }
+        byte[] z = body.raw.length < minBytes ? null : compress(body.raw);
+        if (body.kept) {
+            body.gzip = z;
+            body.tried = true;
+        }
+        if (z != null) {
+            compressed.increment();
+            rawBytes.add(body.raw.length);
+            gzipBytes.add(z.length);
+        }
+        return z;
+    }
+
+    /**
+     * Compress a kept body now (e.g. a file as it is read) so that no
+     * response has to. Counted in getStats() only as it is sent.
+     */
+    void prepare(Body body) {
+        body.gzip = body.raw.length < minBytes ? null : compress(body.raw);
+        body.tried = true;
+    }
+
+    /* @return the gzip of raw, or null if it is no smaller. */
+    private byte[] compress(byte[] raw) {
+        long start = cpuTime();
+        Gzip g = take();
+        try {
+            Deflater d = g.deflater;
+            d.setInput(raw);
+            d.finish();
+            byte[] out = g.out;
+            System.arraycopy(HEADER, 0, out, 0, HEADER.length);
+            int n = HEADER.length;
+            while (!d.finished()) {
+                if (n == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                n += d.deflate(out, n, out.length - n);
+            }
+            g.crc.update(raw, 0, raw.length);
+            if (n + 8 > raw.length) {
+                return null;
+            }
+            byte[] z = Arrays.copyOf(out, n + 8);
+            int crc = (int) g.crc.getValue();
+            for (int i = 0; i < 4; i++) {
+                z[n + i] = (byte) (crc >>> (8 * i));
+                z[n + 4 + i] = (byte) (raw.length >>> (8 * i));
+            }
+            // keep a grown buffer, within reason
+            if (out.length <= 1 << 20) {
+                g.out = out;
+            }
+            return z;
+        } finally {
+            give(g);
+            cpuNanos.add(cpuTime() - start);
+        }
+    }
+
+    /**
+     * A gzip stream onto out, for a body too large to hold (see
+     * StreamingResponse). Closing it finishes the gzip and gives the
+     * compressor back, but leaves out open.
+     */
+    Stream stream(OutputStream out) throws IOException {
+        responses.increment();
+        compressed.increment();
+        return new Stream(out, take());
+    }
+
+    /**
+     * Compresses what is written to it, with a pooled compressor.
+     */
+    final class Stream extends DeflaterOutputStream {
+        private final Gzip g;
+        private boolean done;
+
+        private Stream(OutputStream out, Gzip g) throws IOException {
+            super(out, g.deflater, 8192);
+            this.g = g;
+            out.write(HEADER);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = cpuTime();
+            super.write(b, off, len);
+            g.crc.update(b, off, len);
+            cpuNanos.add(cpuTime() - start);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (done) { return; }
+            long start = cpuTime();
+            try {
+                finish();
+                long in = g.deflater.getBytesRead();
+                int crc = (int) g.crc.getValue();
+                byte[] trailer = new byte[8];
+                for (int i = 0; i < 4; i++) {
+                    trailer[i] = (byte) (crc >>> (8 * i));
+                    trailer[4 + i] = (byte) (in >>> (8 * i));
+                }
+                out.write(trailer);
+                rawBytes.add(in);
+                gzipBytes.add(HEADER.length + g.deflater.getBytesWritten() + 8);
+            } finally {
+                abandon();
+                cpuNanos.add(cpuTime() - start);
+            }
+        }
+
+        /**
+         * Give the compressor back without finishing, e.g. when the
+         * response has failed part way.
+         */
+        void abandon() {
+            if (!done) {
+                done = true;
+                give(g);
+            }
+        }
+    }
+
+    private Gzip take() {
+        Gzip g = pool.poll();
+        return g != null ? g : new Gzip(level);
+    }
+
+    private void give(Gzip g) {
+        g.deflater.reset();
+        g.crc.reset();
+        if (!pool.offer(g)) {
+            g.deflater.end();
+        }
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported()
+            ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * @return responses offered to clients that take gzip, how many were
+     * compressed now and how many sent a kept compressed form, the bytes
+     * before and after for those two, the ratio of the two, and the CPU time
+     * spent compressing.
+     */
+    Map<String, Number> getStats() {
+        long in = rawBytes.sum();
+        long out = gzipBytes.sum();
+        Map<String, Number> m = new LinkedHashMap<>();
+        m.put("responses", responses.sum());
+        m.put("compressed", compressed.sum());
+        m.put("reused", reused.sum());
+        m.put("rawBytes", in);
+        m.put("gzipBytes", out);
+        m.put("ratio", in == 0 ? 0.0 : out / (double) in);
+        m.put("cpuSeconds", cpuNanos.sum() / 1e9);
+        return m;
+    }
+}
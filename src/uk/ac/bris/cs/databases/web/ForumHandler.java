@@ -3,6 +3,7 @@ package uk.ac.bris.cs.databases.web;
 import uk.ac.bris.cs.databases.api.APIProvider;
 import uk.ac.bris.cs.databases.api.ForumView;
 import uk.ac.bris.cs.databases.api.Result;
+import uk.ac.bris.cs.databases.cwk3.VersionedAPI;
 
 /**
  * Handler for the advanced view of a single forum.
@@ -12,6 +13,17 @@ import uk.ac.bris.cs.databases.api.Result;
  */
 public class ForumHandler extends SimpleHandler {
 
+    @Override
+    VersionedAPI.Version version(String p) {
+        VersionedAPI versions = ApplicationContext.getInstance().getVersions();
+        if (versions == null) { return null; }
+        try {
+            return versions.forum(Long.parseLong(p));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     @Override
     RenderPair simpleRender(String p) throws RenderException {
         long id = Long.parseLong(p);
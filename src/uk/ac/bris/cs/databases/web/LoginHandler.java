@@ -1,26 +1,53 @@
 package uk.ac.bris.cs.databases.web;
 
 import fi.iki.elonen.NanoHTTPD;
-import java.util.Map;
 import uk.ac.bris.cs.databases.api.APIProvider;
+import uk.ac.bris.cs.databases.api.PersonView;
 import uk.ac.bris.cs.databases.api.Result;
 
 /**
- *
+ * /login/:id logs in as that user, with a new session (see Sessions) whose
+ * token goes in the session cookie; /login logs out.
  * @author David
  */
 public class LoginHandler extends SimpleHandler {
 
-    String username = "";
+    /* How long the browser keeps the cookie: the server decides when the
+     * session ends, and the cookie can outlive it. */
+    private static final int COOKIE_SECONDS = 30 * 24 * 60 * 60;
+
+    /* The cookie to send: a new session's token, or "" to delete it. */
+    private String token;
+
+    /* NanoHTTPD's Cookie writes only name=value; expires=..., so this
+     * writes the whole Set-Cookie value itself, with the attributes after
+     * the value rather than in it. */
+    private static final class SessionCookie extends NanoHTTPD.Cookie {
+        private final String value;
+        private final int maxAge;
+
+        SessionCookie(String value, int maxAge) {
+            super(SESSION_COOKIE, value);
+            this.value = value;
+            this.maxAge = maxAge;
+        }
+
+        @Override
+        public String getHTTPHeader() {
+            return SESSION_COOKIE + "=" + value + "; Path=/; Max-Age=" + maxAge
+                + "; HttpOnly; SameSite=Lax";
+        }
+    }
 
     @Override
     void handleCookies(NanoHTTPD.IHTTPSession session) {
         NanoHTTPD.CookieHandler h = session.getCookies();
-        if (username.equals("")) {
-            h.delete("user");
-        } else {
-            h.set("user", username + ";Path=/", 1);
+        if (token == null) {
+            return;
         }
+        // deleted with the same Path it was set with, or it would stay
+        h.set(token.equals("") ? new SessionCookie("", 0)
+                               : new SessionCookie(token, COOKIE_SECONDS));
     }
 
     @Override
@@ -30,26 +57,30 @@ public class LoginHandler extends SimpleHandler {
     
     @Override
     RenderPair simpleRender(String p) throws RenderException {
+        Sessions sessions = ApplicationContext.getInstance().getSessions();
+        // a login always starts a new session, so an old token is no use
+        if (getLogin() != null) {
+            sessions.end(getLogin());
+        }
         if (p == null || p.equals("")) {
-            username = "";
+            token = "";
             return new RenderPair("Success.ftl", Result.success(new ValueHolder(
                 "Logged out.")));
         } else {
             APIProvider api = ApplicationContext.getInstance().getApi();
-            Result<Map<String, String>> r = api.getUsers();
+            Result<PersonView> r = api.getPersonView(p);
             if (!r.isSuccess()) {
-                return new RenderPair(null, Result.fatal("API call failed."));
+                return new RenderPair(null, r.isFatal()
+                    ? Result.fatal("API call failed.") : Result.failure("No such user."));
             }
-            Map<String, String> users = r.getValue();
-            String name = users.get(p);
-            
-            if (name == null) {
-                return new RenderPair(null, Result.failure("No such user."));
+
+            Sessions.Session s = sessions.create(p);
+            if (s == null) {
+                throw new RenderException(503, "Too many people logged in - try again later.");
             }
-            
-            username = p;
+            token = s.getToken();
             return new RenderPair("Success.ftl", Result.success(new ValueHolder(
-                "Logged in as " + name)));
+                "Logged in as " + r.getValue().getName())));
         }
     }
 
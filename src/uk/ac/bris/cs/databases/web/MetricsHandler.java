@@ -0,0 +1,33 @@
+package uk.ac.bris.cs.databases.web;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.RouterNanoHTTPD;
+import java.util.Map;
+import uk.ac.bris.cs.databases.util.Metrics;
+
+/**
+ * The metrics registry in the Prometheus text format, for a scraper on
+ * the same machine.
+ * @author csxdb
+ */
+public class MetricsHandler extends AbstractHandler {
+
+    @Override
+    public View render(RouterNanoHTTPD.UriResource uriResource,
+                       Map<String, String> params,
+                       NanoHTTPD.IHTTPSession session) {
+        if (!fromLocalhost(session)) {
+            return new View(403, "Metrics are only served to localhost.");
+        }
+        Metrics m = ApplicationContext.getInstance().getMetrics();
+        if (m == null) {
+            return new View(404, "Metrics are off.");
+        }
+        return new View(200, m.render());
+    }
+
+    @Override
+    public String getMimeType() {
+        return "text/plain; version=0.0.4; charset=utf-8";
+    }
+}
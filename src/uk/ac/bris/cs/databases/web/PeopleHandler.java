@@ -51,7 +51,7 @@ public class PeopleHandler extends AbstractHandler {
                  people.add(new KV(entry.getKey(), entry.getValue()));
              }
              
-             return renderView("PeopleView.ftl", wrap(people));
+             return streamView("PeopleView.ftl", wrap(people));
          } else {
              return new View(500, "Database error - " + r.getMessage());
          }
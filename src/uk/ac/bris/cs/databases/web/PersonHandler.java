@@ -3,6 +3,7 @@ package uk.ac.bris.cs.databases.web;
 import uk.ac.bris.cs.databases.api.APIProvider;
 import uk.ac.bris.cs.databases.api.PersonView;
 import uk.ac.bris.cs.databases.api.Result;
+import uk.ac.bris.cs.databases.cwk3.VersionedAPI;
 
 /**
  * PATH /person/:id
@@ -10,6 +11,13 @@ import uk.ac.bris.cs.databases.api.Result;
  */
 public class PersonHandler extends SimpleHandler {
 
+    @Override
+    VersionedAPI.Version version(String p) {
+        VersionedAPI versions = ApplicationContext.getInstance().getVersions();
+        if (versions == null) { return null; }
+        return versions.person(p);
+    }
+
     @Override
     RenderPair simpleRender(String p) throws RenderException {
         APIProvider api = ApplicationContext.getInstance().getApi();
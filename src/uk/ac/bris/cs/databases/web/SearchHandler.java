@@ -0,0 +1,89 @@
+package uk.ac.bris.cs.databases.web;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import uk.ac.bris.cs.databases.api.AsyncAPIProvider;
+import uk.ac.bris.cs.databases.api.PostView;
+import uk.ac.bris.cs.databases.api.Result;
+import uk.ac.bris.cs.databases.api.TopicSummaryView;
+
+/**
+ * Search: the "q" query parameter holds the words, "page" the page of hits
+ * (from 1). Matching topics are listed on the first page only; posts and
+ * topics are searched at the same time. Without a query it shows just the
+ * search box.
+ * @author csxdb
+ */
+public class SearchHandler extends SimpleHandler {
+
+    /* searchPosts returns pages of this size; a full page may have more. */
+    static final int PAGE_SIZE = 10;
+
+    /**
+     * One page of search results.
+     */
+    public static class SearchPage {
+        private final String query;
+        private final int page;
+        private final List<PostView> posts;
+        private final List<TopicSummaryView> topics;
+
+        SearchPage(String query, int page, List<PostView> posts,
+                   List<TopicSummaryView> topics) {
+            this.query = query;
+            this.page = page;
+            this.posts = posts;
+            this.topics = topics;
+        }
+
+        public String getQuery() { return query; }
+        public int getPage() { return page; }
+        public List<PostView> getPosts() { return posts; }
+        public List<TopicSummaryView> getTopics() { return topics; }
+        public boolean getHasMore() { return posts.size() == PAGE_SIZE; }
+    }
+
+    @Override
+    boolean needsParameter() { return false; }
+
+    @Override
+    public RenderPair simpleRender(String p) throws RenderException {
+        return simpleRender(p, null);
+    }
+
+    @Override
+    public RenderPair simpleRender(String p, Map<String,String> query)
+            throws RenderException {
+        String q = query == null ? null : query.get("q");
+        if (q == null || q.trim().isEmpty()) {
+            return new RenderPair("SearchView.ftl", Result.success(new SearchPage(
+                "", 1, Collections.emptyList(), Collections.emptyList())));
+        }
+        int page;
+        try {
+            String s = query.get("page");
+            page = s == null || s.isEmpty() ? 1 : Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            throw new RenderException(400, "Bad page number");
+        }
+
+        AsyncAPIProvider api = ApplicationContext.getInstance().getAsyncApi();
+        CompletableFuture<Result<List<PostView>>> posts = api.searchPosts(q, page);
+        CompletableFuture<Result<List<TopicSummaryView>>> topics = page == 1
+            ? api.searchTopics(q, 1)
+            : CompletableFuture.completedFuture(Result.success(Collections.emptyList()));
+
+        Result<List<PostView>> r = posts.join();
+        Result<List<TopicSummaryView>> t = topics.join();
+        if (!r.isSuccess()) {
+            return new RenderPair("SearchView.ftl", r);
+        }
+        if (!t.isSuccess()) {
+            return new RenderPair("SearchView.ftl", t);
+        }
+        return new RenderPair("SearchView.ftl", Result.success(
+            new SearchPage(q, page, r.getValue(), t.getValue())));
+    }
+}
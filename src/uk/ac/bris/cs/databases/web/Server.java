@@ -7,11 +7,23 @@ import fi.iki.elonen.router.RouterNanoHTTPD;
 import fi.iki.elonen.util.ServerRunner;
 import freemarker.template.Configuration;
 import java.io.File;
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
 import java.sql.SQLException;
 import uk.ac.bris.cs.databases.api.APIProvider;
 import uk.ac.bris.cs.databases.cwk3.API;
+import uk.ac.bris.cs.databases.cwk3.AsyncAPI;
+import uk.ac.bris.cs.databases.cwk3.MetricsAPI;
+import uk.ac.bris.cs.databases.cwk3.ToggleQueue;
+import uk.ac.bris.cs.databases.cwk3.VersionedAPI;
+import uk.ac.bris.cs.databases.cwk3.cache.CachingAPI;
+import uk.ac.bris.cs.databases.cwk3.db.ConnectionManager;
+import uk.ac.bris.cs.databases.cwk3.db.SlowQueryLog;
+import uk.ac.bris.cs.databases.cwk3.db.migrate.Migrations;
+import uk.ac.bris.cs.databases.cwk3.search.ForumSearch;
+import uk.ac.bris.cs.databases.util.Histogram;
+import uk.ac.bris.cs.databases.util.Metrics;
 
 /**
  * @author csxdb
@@ -20,9 +32,107 @@ public class Server extends RouterNanoHTTPD {
     
     private static final String DATABASE = "jdbc:sqlite:database/database.sqlite3";
 
+    /* Read pool sizing; override with -Dforum.readers=N etc. */
+    private static final int READERS =
+        Integer.getInteger("forum.readers", Runtime.getRuntime().availableProcessors());
+    private static final long READ_TIMEOUT_MS = Long.getLong("forum.readTimeoutMs", 10000);
+    private static final long LEAK_MS = Long.getLong("forum.leakMs", 30000);
+    private static final int STATEMENTS = Integer.getInteger("forum.statements", 64);
+
+    /* Group commit: most writes per commit, and how long to wait for more. */
+    private static final int WRITE_BATCH = Integer.getInteger("forum.writeBatch", 64);
+    private static final long WRITE_WINDOW_US = Long.getLong("forum.writeWindowUs", 0);
+
+    /* Query result cache budget in bytes; 0 turns the cache off. */
+    private static final long CACHE_BYTES = Long.getLong("forum.cacheBytes", 16L << 20);
+
+    /* Write-behind for likes and favourites: flush interval in ms (0 = off,
+     * every toggle commits on its own) and early flush threshold.
+     */
+    private static final long WRITE_BEHIND_MS = Long.getLong("forum.writeBehindMs", 0);
+    private static final int WRITE_BEHIND_BATCH = Integer.getInteger("forum.writeBehindBatch", 1000);
+
+    /* Search: "sqlite" ranks with the FTS5 tables, "memory" in this process
+     * with an index kept in searchDir (segments of searchFlushDocs posts).
+     */
+    private static final String SEARCH = System.getProperty("forum.search", "sqlite");
+    private static final String SEARCH_DIR =
+        System.getProperty("forum.searchDir", "database/search");
+    private static final int SEARCH_FLUSH_DOCS =
+        Integer.getInteger("forum.searchFlushDocs", 50000);
+
+    /* Log statements slower than this (0 for none) to the file and to
+     * /admin/slow-queries (for localhost only), at most
+     * forum.slowQueriesPerSecond a second. */
+    private static final long SLOW_QUERY_MS = Long.getLong("forum.slowQueryMs", 100);
+    private static final int SLOW_QUERIES_PER_SECOND =
+        Integer.getInteger("forum.slowQueriesPerSecond", 10);
+    private static final String SLOW_QUERY_LOG =
+        System.getProperty("forum.slowQueryLog", "database/slow-queries.log");
+
+    /* ETags on topic, forum and person pages; -Dforum.etags=false to skip. */
+    private static final boolean ETAGS =
+        Boolean.parseBoolean(System.getProperty("forum.etags", "true"));
+
+    /* Gzip responses of at least forum.gzipMinBytes for clients that take
+     * it, at Deflater level forum.gzipLevel; -Dforum.gzip=false to skip. */
+    private static final boolean GZIP =
+        Boolean.parseBoolean(System.getProperty("forum.gzip", "true"));
+    private static final int GZIP_MIN_BYTES = Integer.getInteger("forum.gzipMinBytes", 1024);
+    private static final int GZIP_LEVEL = Integer.getInteger("forum.gzipLevel", 1);
+
+    /* Static files: where each is served, and the file. */
+    private static final String[][] ASSETS = {
+        { "/styles.css", "resources/styles.css" },
+        { "/gridlex.css", "resources/gridlex.css" },
+    };
+
+    /* Development: read static files again when they change on disk. */
+    private static final boolean DEV =
+        Boolean.parseBoolean(System.getProperty("forum.dev", "false"));
+
+    /* Connections: a pool of forum.httpThreads platform threads, or with
+     * -Dforum.http=virtual a virtual thread each, forum.httpThreads at a
+     * time; forum.httpQueue more may wait, and the rest get 503.
+     * -Dforum.http=unbounded for NanoHTTPD's thread per connection. */
+    private static final String HTTP = System.getProperty("forum.http", "pool");
+    private static final int HTTP_THREADS = Integer.getInteger("forum.httpThreads", 256);
+    private static final int HTTP_QUEUE = Integer.getInteger("forum.httpQueue", 1024);
+
+    /* Logins last forum.sessionMinutes from their last use; at most
+     * forum.sessionsMax at once, past which a login ends the least recently
+     * used. */
+    private static final long SESSION_MINUTES = Long.getLong("forum.sessionMinutes", 30);
+    private static final int SESSIONS_MAX = Integer.getInteger("forum.sessionsMax", 500000);
+
+    /* Per-call and per-route metrics on /metrics (for localhost only);
+     * -Dforum.metrics=false to skip. */
+    private static final boolean METRICS =
+        Boolean.parseBoolean(System.getProperty("forum.metrics", "true"));
+
     public Server() {
         super(8000);
         addMappings();
+        BoundedRunner runner = ApplicationContext.getInstance().getRunner();
+        if (runner != null) {
+            setAsyncRunner(runner);
+        }
+    }
+
+    /* The runner needs the socket to refuse a connection with a 503. */
+    @Override
+    protected ClientHandler createClientHandler(Socket s, InputStream in) {
+        ClientHandler h = super.createClientHandler(s, in);
+        if (asyncRunner instanceof BoundedRunner) {
+            ((BoundedRunner) asyncRunner).accepted(h, s);
+        }
+        return h;
+    }
+
+    /* Responses are compressed (or not) by AbstractHandler, see Compression. */
+    @Override
+    protected boolean useGzipWhenAccepted(Response r) {
+        return false;
     }
     
     @Override public void addMappings() {
@@ -38,6 +148,9 @@ public class Server extends RouterNanoHTTPD {
         addRoute("/forum2/:id", AdvancedForumHandler.class);
         addRoute("/topic/:id", TopicHandler.class);
         addRoute("/topic0/:id", SimpleTopicHandler.class);
+        addRoute("/search", SearchHandler.class);
+        addRoute("/metrics", MetricsHandler.class);
+        addRoute("/admin/slow-queries", SlowQueryHandler.class);
         
         addRoute("/newforum", NewForumHandler.class);
         addRoute("/createforum", CreateForumHandler.class);
@@ -54,8 +167,9 @@ public class Server extends RouterNanoHTTPD {
         addRoute("/login", LoginHandler.class);
         addRoute("/login/:id", LoginHandler.class);
         
-        addRoute("/styles.css", StyleHandler.class, "resources/styles.css");
-        addRoute("/gridlex.css", StyleHandler.class, "resources/gridlex.css");
+        for (String[] a : ASSETS) {
+            addRoute(a[0], StyleHandler.class, a[0]);
+        }
     }
     
     public static void main(String[] args) throws Exception {
@@ -64,13 +178,57 @@ public class Server extends RouterNanoHTTPD {
 
         // database //
         
-        Connection conn;
         try {
-            conn = DriverManager.getConnection(DATABASE);
-            conn.setAutoCommit(false);
-            APIProvider api = new API(conn);
+            Migrations.migrate(DATABASE);
+            SlowQueryLog slow = SLOW_QUERY_MS > 0
+                ? new SlowQueryLog(SLOW_QUERY_MS, SLOW_QUERIES_PER_SECOND,
+                                   new File(SLOW_QUERY_LOG))
+                : null;
+            ConnectionManager db = new ConnectionManager(DATABASE, READERS,
+                                                         READ_TIMEOUT_MS, LEAK_MS,
+                                                         STATEMENTS, WRITE_BATCH,
+                                                         WRITE_WINDOW_US, slow);
+            c.setDatabase(db);
+            ToggleQueue toggles = WRITE_BEHIND_MS > 0
+                ? new ToggleQueue(db, WRITE_BEHIND_MS, WRITE_BEHIND_BATCH) : null;
+            ForumSearch search = SEARCH.equals("memory")
+                ? new ForumSearch(db, new File(SEARCH_DIR), SEARCH_FLUSH_DOCS) : null;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                // queued toggles go out before the connections close
+                if (toggles != null) { toggles.close(); }
+                if (search != null) { search.close(); }
+                db.close();
+            }, "shutdown"));
+            APIProvider api = new API(db, toggles, search);
+            CachingAPI cache = null;
+            if (CACHE_BYTES > 0) {
+                api = cache = new CachingAPI(api, CACHE_BYTES);
+            }
+            if (ETAGS) {
+                VersionedAPI versions = new VersionedAPI(api);
+                c.setVersions(versions);
+                api = versions;
+            }
+            Compression gzip = GZIP
+                ? new Compression(GZIP_MIN_BYTES, GZIP_LEVEL,
+                                  Runtime.getRuntime().availableProcessors() * 2)
+                : null;
+            c.setCompression(gzip);
+            Metrics metrics = METRICS ? new Metrics() : null;
+            if (metrics != null) {
+                api = new MetricsAPI(api, metrics);
+            }
             c.setApi(api);
-        } catch (SQLException e) {
+            AsyncAPI async = new AsyncAPI(api, READERS, WRITE_BATCH);
+            c.setAsyncApi(async);
+            if (metrics != null) {
+                gauges(metrics, db, cache, toggles, async, search);
+                if (gzip != null) {
+                    metrics.gauges("forum_http_gzip", "Response compression", gzip::getStats);
+                }
+                c.setMetrics(metrics);
+            }
+        } catch (SQLException | IOException e) {
             throw new RuntimeException(e);
         }
 
@@ -80,10 +238,101 @@ public class Server extends RouterNanoHTTPD {
         cfg.setDirectoryForTemplateLoading(new File("resources/templates"));
         cfg.setDefaultEncoding("UTF-8");
         c.setTemplateConfiguration(cfg);
+
+        // static files //
+
+        try {
+            Assets assets = assets(c.getCompression());
+            if (DEV) {
+                assets.watch();
+            }
+            assets.share(cfg);
+            c.setAssets(assets);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
         
+        // sessions //
+
+        Sessions sessions = new Sessions(SESSION_MINUTES * 60000, SESSIONS_MAX);
+        c.setSessions(sessions);
+        if (c.getMetrics() != null) {
+            c.getMetrics().gauges("forum_sessions", "Logins", sessions::getStats);
+        }
+
         // server //
+
+        if (!HTTP.equals("unbounded")) {
+            Metrics metrics = c.getMetrics();
+            BoundedRunner runner = new BoundedRunner(HTTP, HTTP_THREADS, HTTP_QUEUE,
+                metrics == null ? new Histogram()
+                    : metrics.summary("forum_http_queue_wait_seconds",
+                                      "Time connections waited for a thread."));
+            if (metrics != null) {
+                metrics.gauges("forum_http_connections", "Connections", runner::getStats);
+            }
+            c.setRunner(runner);
+            System.out.println("[Server] connections: " + runner);
+        }
         
         Server server = new Server();
         ServerRunner.run(Server.class);
     }
+
+    /**
+     * The static files, read (and compressed with gz, if not null).
+     * @throws IOException if one cannot be read.
+     */
+    static Assets assets(Compression gz) throws IOException {
+        Assets assets = new Assets(gz);
+        for (String[] a : ASSETS) {
+            assets.add(a[0], a[1]);
+        }
+        return assets;
+    }
+
+    /* What the other parts of the server already count, as gauges. */
+    private static void gauges(Metrics m, ConnectionManager db, CachingAPI cache,
+                               ToggleQueue toggles, AsyncAPI async, ForumSearch search) {
+        m.gauge("forum_db_readers", "Read connections in the pool.",
+                () -> db.getReadPool().getSize());
+        m.gauge("forum_db_readers_active", "Read connections lent out.",
+                () -> db.getReadPool().getActive());
+        m.gauge("forum_db_read_timeouts", "Reads that gave up waiting for a connection.",
+                () -> db.getReadPool().getTimeouts());
+        m.gauge("forum_db_write_queue", "Writes waiting for the writer.",
+                db::getWriteQueueLength);
+        m.gauge("forum_db_write_batches", "Write transactions committed.",
+                db::getWriteBatches);
+        m.gauge("forum_db_writes", "Writes committed.", db::getWrites);
+        m.gauge("forum_db_statement_cache_hits", "Prepared statements reused.",
+                db::getStatementCacheHits);
+        m.gauge("forum_db_statement_cache_misses", "Prepared statements compiled.",
+                db::getStatementCacheMisses);
+        SlowQueryLog slow = db.getSlowQueryLog();
+        if (slow != null) {
+            m.gauge("forum_db_slow_queries", "Statements over the slow query threshold.",
+                    slow::getSlow);
+        }
+        m.gauge("forum_async_queued_reads", "Async reads waiting for a permit.",
+                async::getQueuedReads);
+        m.gauge("forum_async_queued_writes", "Async writes waiting for a permit.",
+                async::getQueuedWrites);
+        if (cache != null) {
+            m.gauges("forum_cache", "Query cache", cache.getCache()::getStats);
+        }
+        if (toggles != null) {
+            m.gauges("forum_toggles", "Like/favourite write-behind", toggles::getStats);
+        }
+        if (search != null) {
+            m.gauge("forum_search_documents", "Documents in the in-process search index.",
+                    () -> search.getPosts().getDocCount(), "index", "posts");
+            m.gauge("forum_search_documents", "Documents in the in-process search index.",
+                    () -> search.getTopics().getDocCount(), "index", "topics");
+            m.gauge("forum_search_segments", "Segment files of the in-process search index.",
+                    () -> search.getPosts().getSegmentCount(), "index", "posts");
+            m.gauge("forum_search_segments", "Segment files of the in-process search index.",
+                    () -> search.getTopics().getSegmentCount(), "index", "topics");
+        }
+    }
 }
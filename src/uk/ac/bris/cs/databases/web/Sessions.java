@@ -0,0 +1,244 @@
+package uk.ac.bris.cs.databases.web;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import uk.ac.bris.cs.databases.util.Threads;
+
+/**
+ * Who is logged in: sessions by token, where the token is 256 random bits
+ * that the client keeps in a cookie. Looking one up is a map lookup, so it
+ * is done for every request (see AbstractHandler).
+ *
+ * A session lasts ttl from its last use; it is renewed when used with less
+ * than half of that left, so a busy session is not renewed on every
+ * request. Expiry is on a timing wheel: a ring of slots, one per tick of
+ * ttl / 60 (at least a second), each holding the sessions that expire in
+ * that tick. A daemon thread empties the slot of each tick as it passes, so
+ * expiring costs nothing per request and nothing for sessions still alive.
+ * A renewed session goes into its new slot and its old entry is dropped
+ * when that slot comes round; only the request whose compare-and-set moves
+ * the expiry on reschedules, so a session is in at most two slots.
+ *
+ * At most max sessions (and twice that many wheel entries, counting those
+ * of sessions logged out) are kept. A login past that ends the sessions
+ * that would expire soonest, those unused for longest, taking them off the
+ * wheel from its next slot on; so memory stays bounded however many people
+ * log in (about 250 bytes a session), and a flood of logins cannot lock
+ * out new ones.
+ * @author csxdb
+ */
+final class Sessions {
+
+    /** A login. */
+    static final class Session {
+        private final String token;
+        private final String username;
+        private volatile long expires;
+
+        private Session(String token, String username, long expires) {
+            this.token = token;
+            this.username = username;
+            this.expires = expires;
+        }
+
+        /**
+         * @return the value for the cookie.
+         */
+        String getToken() {
+            return token;
+        }
+
+        String getUsername() {
+            return username;
+        }
+    }
+
+    private static final int TOKEN_BYTES = 32;
+
+    private static final AtomicLongFieldUpdater<Session> EXPIRES =
+        AtomicLongFieldUpdater.newUpdater(Session.class, "expires");
+
+    private final long ttl;
+    private final long tick;
+    private final int max;
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Session>[] wheel;
+    private final ScheduledExecutorService sweeper;
+    /* The last tick whose slot has been emptied; only the sweeper writes it. */
+    private volatile long swept;
+
+    private final LongAdder entries = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder renewed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder ended = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+
+    /**
+     * @param ttl - how long a session lasts unused, in milliseconds.
+     * @param max - the most sessions to keep.
+     */
+    @SuppressWarnings("unchecked")
+    Sessions(long ttl, int max) {
+        if (ttl < 1000 || max < 1) {
+            throw new IllegalArgumentException("Need a ttl of at least 1s and a max of at least 1");
+        }
+        this.ttl = ttl;
+        this.tick = Math.max(1000, ttl / 60);
+        this.max = max;
+        // every expiry is less than a revolution ahead
+        wheel = new ConcurrentLinkedQueue[(int) (ttl / tick) + 2];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        swept = System.currentTimeMillis() / tick;
+        sweeper = Executors.newSingleThreadScheduledExecutor(Threads.daemon("sessions"));
+        sweeper.scheduleAtFixedRate(this::sweep, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Log username in, ending the oldest sessions if there are too many.
+     * @return the new session, or null if room could not be made.
+     */
+    Session create(String username) {
+        // logged out sessions stay on the wheel until their slot comes round
+        if ((sessions.size() >= max || entries.sum() >= 2L * max) && !evict()) {
+            refused.increment();
+            return null;
+        }
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        Session s = new Session(token, username, System.currentTimeMillis() + ttl);
+        sessions.put(token, s);
+        schedule(s);
+        created.increment();
+        return s;
+    }
+
+    /**
+     * @return the session with this token, or null if there is none (or it
+     * has expired).
+     */
+    Session get(String token) {
+        if (token == null) { return null; }
+        Session s = sessions.get(token);
+        if (s == null) { return null; }
+        long now = System.currentTimeMillis();
+        long expires = s.expires;
+        if (expires <= now) {
+            return null;
+        }
+        // of requests racing to renew it, only the one that moves the
+        // expiry on schedules it again
+        if (expires - now < ttl / 2 && EXPIRES.compareAndSet(s, expires, now + ttl)) {
+            schedule(s);
+            renewed.increment();
+        }
+        return s;
+    }
+
+    /**
+     * Log out.
+     */
+    void end(Session s) {
+        if (sessions.remove(s.token, s)) {
+            ended.increment();
+        }
+        // its wheel entry goes when the slot comes round
+    }
+
+    private void schedule(Session s) {
+        wheel[(int) (tickOf(s.expires) % wheel.length)].add(s);
+        entries.increment();
+    }
+
+    /* The tick an expiry time falls in: the first one at or after it. */
+    private long tickOf(long time) {
+        return (time + tick - 1) / tick;
+    }
+
+    /* Make room for a session: take entries off the wheel from the next
+     * slot on, soonest to expire first, ending each live session found,
+     * until there is room. Entries of sessions ended or renewed are just
+     * dropped (a renewed one is in its later slot too). One login evicts at
+     * a time; false if a revolution did not make room. */
+    private synchronized boolean evict() {
+        long from = swept + 1;
+        for (long t = from; t < from + wheel.length; t++) {
+            int i = (int) (t % wheel.length);
+            ConcurrentLinkedQueue<Session> slot = wheel[i];
+            for (Session s = slot.poll(); s != null; s = slot.poll()) {
+                entries.decrement();
+                if (tickOf(s.expires) % wheel.length == i && sessions.remove(s.token, s)) {
+                    evicted.increment();
+                }
+                if (sessions.size() < max && entries.sum() < 2L * max) {
+                    return true;
+                }
+            }
+        }
+        return sessions.size() < max && entries.sum() < 2L * max;
+    }
+
+    /* Empty the slots of every tick that has passed. An entry in slot t
+     * whose session now expires in a later tick was renewed, and is in
+     * that tick's slot too; unless that tick is a revolution on, in the
+     * same slot, which happens only if sweeping has fallen behind. */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (long t = swept + 1; t <= now / tick; t++) {
+            int i = (int) (t % wheel.length);
+            ConcurrentLinkedQueue<Session> slot = wheel[i];
+            List<Session> later = new ArrayList<>();
+            for (Session s = slot.poll(); s != null; s = slot.poll()) {
+                entries.decrement();
+                long due = tickOf(s.expires);
+                if (due <= t) {
+                    if (sessions.remove(s.token, s)) {
+                        expired.increment();
+                    }
+                } else if (due % wheel.length == i) {
+                    later.add(s);
+                }
+            }
+            for (Session s : later) {
+                slot.add(s);
+                entries.increment();
+            }
+            swept = t;
+        }
+    }
+
+    /**
+     * @return sessions now and entries on the wheel, and sessions
+     * created, renewed, expired, ended (logged out), evicted and refused so
+     * far.
+     */
+    Map<String, Number> getStats() {
+        Map<String, Number> m = new LinkedHashMap<>();
+        m.put("sessions", sessions.size());
+        m.put("wheelEntries", entries.sum());
+        m.put("created", created.sum());
+        m.put("renewed", renewed.sum());
+        m.put("expired", expired.sum());
+        m.put("ended", ended.sum());
+        m.put("evicted", evicted.sum());
+        m.put("refused", refused.sum());
+        return m;
+    }
+}
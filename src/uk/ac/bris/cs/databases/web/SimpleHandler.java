@@ -2,13 +2,26 @@ package uk.ac.bris.cs.databases.web;
 
 import fi.iki.elonen.NanoHTTPD;
 import fi.iki.elonen.router.RouterNanoHTTPD;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Map;
 import uk.ac.bris.cs.databases.api.Result;
+import uk.ac.bris.cs.databases.cwk3.VersionedAPI;
 
 /**
  * Handler for the simple case that we're dealing with a GET request, have a
  * single URI parameter of interest and want to render a view with some data
  * of complain if we get junk back.
+ *
+ * A handler that can tell its page's version (see VersionedAPI) gets
+ * conditional GETs: the page carries the version as its ETag, and a client
+ * that sends it back in If-None-Match (or an If-Modified-Since no older
+ * than the last change) gets 304 Not Modified without the page being loaded
+ * or rendered. The page links to the stylesheets by their tags (see Assets),
+ * so its ETag and Last-Modified also move on when Assets reloads one.
  * @author csxdb
  */
 public abstract class SimpleHandler extends AbstractHandler {
@@ -20,6 +33,8 @@ public abstract class SimpleHandler extends AbstractHandler {
     //}
     
     public class RenderException extends Exception {
+        private static final long serialVersionUID = 1L;
+
         int code;
 
         public RenderException(int code, String message) {
@@ -41,8 +56,33 @@ public abstract class SimpleHandler extends AbstractHandler {
     
     abstract RenderPair simpleRender(String p) throws RenderException;
 
+    // override if you need the query string too.
+    RenderPair simpleRender(String p, Map<String,String> query)
+            throws RenderException {
+        return simpleRender(p);
+    }
+
     // override if you don't need one.
     boolean needsParameter() { return true; }
+
+    // override to answer conditional GETs: the page's version, or null.
+    VersionedAPI.Version version(String p) { return null; }
+
+    /* A page's version together with the assets it links to. */
+    private static final class Validators {
+        final String tag;
+        final long modified;
+
+        Validators(VersionedAPI.Version version, Assets assets) {
+            long generation = assets == null ? 0 : assets.getGeneration();
+            long reloaded = assets == null ? 0 : assets.getReloaded();
+            this.tag = version.getTag() + "." + generation;
+            this.modified = Math.max(version.getModified(), reloaded);
+        }
+    }
+
+    private static final DateTimeFormatter HTTP_DATE =
+        DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
     
     @Override
     public View render(RouterNanoHTTPD.UriResource uriResource,
@@ -60,11 +100,28 @@ public abstract class SimpleHandler extends AbstractHandler {
             }
         }
             
+        // Before loading anything, so that a write in between makes the tag
+        // stale rather than the page.
+        VersionedAPI.Version page = session.getMethod() == NanoHTTPD.Method.GET
+            ? version(id) : null;
+        Validators version = page == null ? null
+            : new Validators(page, ApplicationContext.getInstance().getAssets());
+        if (version != null && notModified(session, version)) {
+            View v = new View(304, "");
+            validators(v, version);
+            return v;
+        }
+
         try {
-            RenderPair rp = simpleRender(id);
+            RenderPair rp = simpleRender(id,
+                parseQuery(session.getQueryParameterString()));
             if (rp.data.isSuccess()) {
                 System.out.println("[SimpleHandler] rendering " + rp.template);
-                return renderView(rp.template, rp.data.getValue());
+                View v = streamView(rp.template, rp.data.getValue());
+                if (version != null && v.getCode() == 200) {
+                    validators(v, version);
+                }
+                return v;
             } else if (rp.data.isFatal()) {
                 return new View(500, "Fatal error - " + rp.data.getMessage());
             } else {
@@ -76,4 +133,36 @@ public abstract class SimpleHandler extends AbstractHandler {
         }
             
     }
+
+    /* Clients may keep the page but must check it is current each time. */
+    private static void validators(View v, Validators version) {
+        v.setHeader("ETag", "W/\"" + version.tag + "\"");
+        v.setHeader("Cache-Control", "no-cache");
+        // Last-Modified is in whole seconds, so leave it out while a change
+        // later in this second could still come without moving it on.
+        if (version.modified / 1000 < System.currentTimeMillis() / 1000) {
+            v.setHeader("Last-Modified",
+                        HTTP_DATE.format(Instant.ofEpochMilli(version.modified)));
+        }
+    }
+
+    /* If-None-Match wins over If-Modified-Since when both are sent. */
+    private static boolean notModified(NanoHTTPD.IHTTPSession session,
+                                       Validators version) {
+        String match = session.getHeaders().get("if-none-match");
+        if (match != null) {
+            return matches(match, version.tag);
+        }
+        String since = session.getHeaders().get("if-modified-since");
+        if (since == null) {
+            return false;
+        }
+        try {
+            long seconds = ZonedDateTime.parse(since, DateTimeFormatter.RFC_1123_DATE_TIME)
+                                        .toEpochSecond();
+            return version.modified / 1000 <= seconds;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
 }
@@ -0,0 +1,58 @@
+package uk.ac.bris.cs.databases.web;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.RouterNanoHTTPD;
+import java.util.List;
+import java.util.Map;
+import uk.ac.bris.cs.databases.api.Result;
+import uk.ac.bris.cs.databases.cwk3.db.ConnectionManager;
+import uk.ac.bris.cs.databases.cwk3.db.SlowQueryLog;
+
+/**
+ * The most recent slow queries, newest first, with their plans; only for
+ * requests from this machine.
+ * @author csxdb
+ */
+public class SlowQueryHandler extends SimpleHandler {
+
+    /**
+     * What the page shows.
+     */
+    public static class SlowQueries {
+        private final SlowQueryLog log;
+        private final List<SlowQueryLog.Entry> entries;
+
+        SlowQueries(SlowQueryLog log) {
+            this.log = log;
+            this.entries = log.getRecent();
+        }
+
+        public long getThresholdMillis() { return log.getThresholdMillis(); }
+        public long getSlow() { return log.getSlow(); }
+        public long getSkipped() { return log.getSkipped(); }
+        public List<SlowQueryLog.Entry> getEntries() { return entries; }
+    }
+
+    @Override
+    boolean needsParameter() { return false; }
+
+    @Override
+    public View render(RouterNanoHTTPD.UriResource uriResource,
+                       Map<String,String> params,
+                       NanoHTTPD.IHTTPSession session) {
+        if (!fromLocalhost(session)) {
+            return new View(403, "Slow queries are only shown to localhost.");
+        }
+        return super.render(uriResource, params, session);
+    }
+
+    @Override
+    public RenderPair simpleRender(String p) throws RenderException {
+        ConnectionManager db = ApplicationContext.getInstance().getDatabase();
+        SlowQueryLog log = db == null ? null : db.getSlowQueryLog();
+        if (log == null) {
+            throw new RenderException(404, "The slow query log is off.");
+        }
+        return new RenderPair("SlowQueryView.ftl", Result.success(new SlowQueries(log)));
+    }
+}
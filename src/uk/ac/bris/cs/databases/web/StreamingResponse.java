@@ -0,0 +1,336 @@
+package uk.ac.bris.cs.databases.web;
+
+import fi.iki.elonen.NanoHTTPD;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntConsumer;
+
+/**
+ * A page rendered as it is sent. NanoHTTPD has a response send itself once
+ * the handler has returned, so the template runs then, on the connection's
+ * thread, into a buffer of at most BUFFER bytes:
+ *
+ *  - a page that fits is sent with its length, as before (and gzipped by
+ *    Compression if the client takes it);
+ *  - a page that fails before then gets a 500 with the error, as from
+ *    renderView;
+ *  - a page that fills the buffer is sent chunked: the status and headers
+ *    go out, then the page a buffer at a time as the template writes it
+ *    (through a compressor of Compression's if the client takes gzip). If
+ *    it fails after that the status has gone, so the connection is closed
+ *    without the last chunk and the client sees a cut-off response, not a
+ *    complete-looking one.
+ *
+ * A HEAD request gets the headers its GET would: a page that fits has its
+ * Content-Length, and one that fills the buffer is declared chunked and the
+ * rest of it rendered and thrown away, since its length is not known
+ * without holding it.
+ *
+ * So a large page is never held whole, and its first bytes go out when the
+ * first buffer of it has been rendered rather than all of it.
+ * @author csxdb
+ */
+final class StreamingResponse extends NanoHTTPD.Response {
+
+    /** The most of a page held before it is sent chunked. */
+    static final int BUFFER = 1 << 16;
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+    /* Headers that describe the page, so not an error in its place. */
+    private static final Set<String> VALIDATORS = new HashSet<>(
+        Arrays.asList("etag", "last-modified", "cache-control"));
+
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+    /* The body of a HEAD response that has outgrown the buffer. */
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override public void write(int b) {}
+        @Override public void write(byte[] b, int off, int len) {}
+    };
+
+    private final Template template;
+    private final Object model;
+    private final Compression gz;
+    private final IntConsumer sent;
+
+    /* NanoHTTPD's own copy is private; this one is in the order added. */
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private boolean keepAlive = true;
+
+    /**
+     * @param gz - compress with this, or null if the client does not take
+     * gzip.
+     * @param sent - told the status code once the response has been sent
+     * (or has failed part way).
+     */
+    StreamingResponse(String mime, Template template, Object model,
+                      Compression gz, IntConsumer sent) {
+        super(Status.OK, mime, null, 0);
+        this.template = template;
+        this.model = model;
+        this.gz = gz;
+        this.sent = sent;
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        super.addHeader(name, value);
+        headers.put(name, value);
+    }
+
+    @Override
+    public void setKeepAlive(boolean keepAlive) {
+        super.setKeepAlive(keepAlive);
+        this.keepAlive = keepAlive;
+    }
+
+    @Override
+    protected void send(OutputStream out) {
+        Sink sink = new Sink(out);
+        int code = 200;
+        try {
+            try {
+                template.process(model, sink);
+                sink.finish();
+            } catch (TemplateException | IOException | RuntimeException e) {
+                code = 500;
+                if (sink.body == null) {
+                    setStatus(Status.INTERNAL_ERROR);
+                    byte[] message = ("Rendering error - " + e.getMessage())
+                        .getBytes(StandardCharsets.UTF_8);
+                    out.write(head(message.length, false, false));
+                    out.write(message);
+                    out.flush();
+                } else {
+                    System.out.println("[StreamingResponse] failed after sending began: " + e);
+                    sink.abandon();
+                    out.close();
+                }
+            }
+        } catch (IOException e) {
+            // the client has gone; NanoHTTPD finds out on its next read
+            System.out.println("[StreamingResponse] could not send: " + e);
+        } finally {
+            sent.accept(code);
+        }
+    }
+
+    /* For WebBenchmark, which has no socket. */
+    void sendTo(OutputStream out) {
+        send(out);
+    }
+
+    /* Status line and headers; length < 0 for chunked. On an error only
+     * the headers that still apply are sent. */
+    private byte[] head(long length, boolean gzipped, boolean ok) {
+        StringBuilder h = new StringBuilder(512);
+        h.append("HTTP/1.1 ").append(getStatus().getDescription()).append(" \r\n");
+        header(h, "Content-Type", getMimeType());
+        if (getHeader("date") == null) {
+            header(h, "Date", HTTP_DATE.format(ZonedDateTime.now(ZoneOffset.UTC)));
+        }
+        for (Map.Entry<String, String> e : headers.entrySet()) {
+            if (ok || !VALIDATORS.contains(e.getKey().toLowerCase())) {
+                header(h, e.getKey(), e.getValue());
+            }
+        }
+        if (getHeader("connection") == null) {
+            header(h, "Connection", keepAlive ? "keep-alive" : "close");
+        }
+        if (gzipped) {
+            header(h, "Content-Encoding", "gzip");
+        }
+        if (length < 0) {
+            header(h, "Transfer-Encoding", "chunked");
+        } else {
+            header(h, "Content-Length", Long.toString(length));
+        }
+        h.append("\r\n");
+        return h.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void header(StringBuilder h, String name, String value) {
+        h.append(name).append(": ").append(value).append("\r\n");
+    }
+
+    /**
+     * Where the template's output goes: encoded as UTF-8 into a buffer,
+     * which is the whole page until it fills and after that each chunk.
+     * (OutputStreamWriter would copy every string FreeMarker writes into a
+     * new char[] on the way.)
+     */
+    private final class Sink extends Writer {
+        private final OutputStream socket;
+        private byte[] bytes = new byte[8192];
+        private int count;
+        /* A high surrogate, until the char after it. */
+        private char high;
+        /* Once sending has begun: the body, and the compressor if there is
+         * one in it. */
+        private OutputStream body;
+        private Compression.Stream compressor;
+
+        Sink(OutputStream socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            put((char) c);
+        }
+
+        @Override
+        public void write(String s, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                put(s.charAt(i));
+            }
+        }
+
+        @Override
+        public void write(char[] b, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                put(b[i]);
+            }
+        }
+
+        private void put(char c) throws IOException {
+            if (count > bytes.length - 8) {
+                room();
+            }
+            if (high != 0) {
+                char h = high;
+                high = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int p = Character.toCodePoint(h, c);
+                    bytes[count++] = (byte) (0xf0 | p >> 18);
+                    bytes[count++] = (byte) (0x80 | p >> 12 & 0x3f);
+                    bytes[count++] = (byte) (0x80 | p >> 6 & 0x3f);
+                    bytes[count++] = (byte) (0x80 | p & 0x3f);
+                    return;
+                }
+                bytes[count++] = '?';
+            }
+            if (c < 0x80) {
+                bytes[count++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[count++] = (byte) (0xc0 | c >> 6);
+                bytes[count++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c)) {
+                high = c;
+            } else if (Character.isLowSurrogate(c)) {
+                bytes[count++] = '?';
+            } else {
+                bytes[count++] = (byte) (0xe0 | c >> 12);
+                bytes[count++] = (byte) (0x80 | c >> 6 & 0x3f);
+                bytes[count++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+
+        /* The buffer is full: grow it up to BUFFER, then send it. */
+        private void room() throws IOException {
+            if (bytes.length < BUFFER) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                return;
+            }
+            if (body == null) {
+                begin();
+            }
+            body.write(bytes, 0, count);
+            count = 0;
+        }
+
+        /* Send the status and headers, and chunk from now on. */
+        private void begin() throws IOException {
+            socket.write(head(-1, gz != null, true));
+            if (getRequestMethod() == NanoHTTPD.Method.HEAD) {
+                body = DISCARD;
+                return;
+            }
+            Chunks chunks = new Chunks(socket);
+            if (gz != null) {
+                compressor = gz.stream(chunks);
+                body = compressor;
+            } else {
+                body = chunks;
+            }
+        }
+
+        /* Sent as the page is written; see finish(). */
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+
+        /* The page is all here: send the rest of it, or the whole of it. */
+        void finish() throws IOException {
+            if (high != 0) {
+                high = 0;
+                put('?');
+            }
+            if (body != null) {
+                body.write(bytes, 0, count);
+                if (compressor != null) {
+                    compressor.close();
+                }
+                if (body != DISCARD) {
+                    socket.write(LAST_CHUNK);
+                }
+                socket.flush();
+                return;
+            }
+            byte[] data = Arrays.copyOf(bytes, count);
+            byte[] z = gz != null ? gz.gzip(new Compression.Body(data, false)) : null;
+            boolean head = getRequestMethod() == NanoHTTPD.Method.HEAD;
+            socket.write(head(z != null ? z.length : data.length, z != null, true));
+            if (!head) {
+                socket.write(z != null ? z : data);
+            }
+            socket.flush();
+        }
+
+        void abandon() {
+            if (compressor != null) {
+                compressor.abandon();
+            }
+        }
+    }
+
+    /**
+     * Sends each write as a chunk; the socket is left open.
+     */
+    private static final class Chunks extends OutputStream {
+        private final OutputStream socket;
+
+        Chunks(OutputStream socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) { return; }
+            socket.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            socket.write(b, off, len);
+            socket.write(CRLF);
+        }
+    }
+}
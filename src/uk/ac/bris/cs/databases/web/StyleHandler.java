@@ -2,41 +2,41 @@ package uk.ac.bris.cs.databases.web;
 
 import fi.iki.elonen.NanoHTTPD;
 import fi.iki.elonen.router.RouterNanoHTTPD;
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
 import java.util.Map;
 
 /**
- *
+ * Serves a stylesheet from Assets, by the URL it was added at.
  * @author David
  */
 public class StyleHandler extends AbstractHandler {
 
+    /* A year, the longest HTTP/1.1 caches are asked to keep anything. */
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
     @Override
     public View render(RouterNanoHTTPD.UriResource uriResource,
                        Map<String, String> params,
                        NanoHTTPD.IHTTPSession session) {
         
-        String filename = uriResource.initParameter(String.class);
-        
-        try {
-            File f = new File(filename);
-            FileReader fr = new FileReader(f);
-            BufferedReader br = new BufferedReader(fr);
-            
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null) {
-                sb.append(line);
-                sb.append("\n");
-            }
-            br.close();
-            return new View(200, sb.toString());
-        } catch (IOException e) {
-            return new View(500, "Error reading file - " + e.getMessage());
+        String url = uriResource.initParameter(String.class);
+        Assets.Asset a = ApplicationContext.getInstance().getAssets().get(url);
+        if (a == null) {
+            return new View(404, "No such file - " + url);
+        }
+
+        String match = session.getHeaders().get("if-none-match");
+        View v = match != null && matches(match, a.getTag())
+            ? new View(304, "") : new View(200, null);
+        if (v.getCode() == 200) {
+            v.setBody(a.getBody());
         }
+        v.setHeader("ETag", "\"" + a.getTag() + "\"");
+        // a link with the tag in it changes with the file; anything else
+        // is checked each time
+        String version = parseQuery(session.getQueryParameterString()).get("v");
+        v.setHeader("Cache-Control",
+                    a.getTag().equals(version) ? IMMUTABLE : "no-cache");
+        return v;
     }
 
     @Override
@@ -1,21 +1,93 @@
 package uk.ac.bris.cs.databases.web;
 
-import uk.ac.bris.cs.databases.api.APIProvider;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import uk.ac.bris.cs.databases.api.AsyncAPIProvider;
+import uk.ac.bris.cs.databases.api.PersonView;
+import uk.ac.bris.cs.databases.api.PostView;
 import uk.ac.bris.cs.databases.api.Result;
-import uk.ac.bris.cs.databases.api.TopicView;
+import uk.ac.bris.cs.databases.api.TopicPageView;
+import uk.ac.bris.cs.databases.cwk3.VersionedAPI;
 
 /**
- *
+ * Shows one page of a topic; the optional "cursor" query parameter picks
+ * which page. The page, the post count and the likers are independent, so
+ * they are fetched at the same time.
  * @author csxdb
  */
 public class TopicHandler extends SimpleHandler {
 
+    static final int PAGE_SIZE = 10;
+
+    /**
+     * A page of a topic plus the topic-wide figures shown in its header.
+     */
+    public static class TopicPage {
+        private final TopicPageView page;
+        private final int postCount;
+        private final List<PersonView> likers;
+
+        TopicPage(TopicPageView page, int postCount, List<PersonView> likers) {
+            this.page = page;
+            this.postCount = postCount;
+            this.likers = likers;
+        }
+
+        public long getForumId() { return page.getForumId(); }
+        public long getTopicId() { return page.getTopicId(); }
+        public String getForumName() { return page.getForumName(); }
+        public String getTitle() { return page.getTitle(); }
+        public List<PostView> getPosts() { return page.getPosts(); }
+        public String getNextCursor() { return page.getNextCursor(); }
+        public String getPreviousCursor() { return page.getPreviousCursor(); }
+        public int getPostCount() { return postCount; }
+        public List<PersonView> getLikers() { return likers; }
+    }
+
+    @Override
+    VersionedAPI.Version version(String p) {
+        VersionedAPI versions = ApplicationContext.getInstance().getVersions();
+        if (versions == null) { return null; }
+        try {
+            return versions.topic(Long.parseLong(p));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     @Override
     public RenderPair simpleRender(String p) {
+        return simpleRender(p, null);
+    }
+
+    @Override
+    public RenderPair simpleRender(String p, Map<String,String> query) {
         
         long id = Long.parseLong(p);
-        APIProvider api = ApplicationContext.getInstance().getApi();
-        Result<TopicView> r = api.getTopic(id, 0);
-        return new RenderPair("TopicView.ftl", r);
+        String cursor = query == null ? null : query.get("cursor");
+        if (cursor != null && cursor.isEmpty()) {
+            cursor = null;
+        }
+        AsyncAPIProvider api = ApplicationContext.getInstance().getAsyncApi();
+        CompletableFuture<Result<TopicPageView>> page =
+            api.getTopicPage(id, cursor, PAGE_SIZE);
+        CompletableFuture<Result<Integer>> count = api.countPostsInTopic(id);
+        CompletableFuture<Result<List<PersonView>>> likers = api.getLikers(id);
+
+        Result<TopicPageView> r = page.join();
+        Result<Integer> c = count.join();
+        Result<List<PersonView>> l = likers.join();
+        if (!r.isSuccess()) {
+            return new RenderPair("TopicView.ftl", r);
+        }
+        if (!c.isSuccess()) {
+            return new RenderPair("TopicView.ftl", c);
+        }
+        if (!l.isSuccess()) {
+            return new RenderPair("TopicView.ftl", l);
+        }
+        return new RenderPair("TopicView.ftl", Result.success(
+            new TopicPage(r.getValue(), c.getValue(), l.getValue())));
     }
 }
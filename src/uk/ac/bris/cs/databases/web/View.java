@@ -1,5 +1,9 @@
 package uk.ac.bris.cs.databases.web;
 
+import freemarker.template.Template;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  *
  * @author csxdb
@@ -7,6 +11,10 @@ package uk.ac.bris.cs.databases.web;
 public class View {
     private int code;
     private String contents;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private Compression.Body body;
+    private Template template;
+    private Object model;
 
     public View() {
     }
@@ -43,4 +51,56 @@ public class View {
     public void setContents(String contents) {
         this.contents = contents;
     }
+
+    /**
+     * @return extra response headers, by name
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @param name the header to add or replace
+     * @param value its value
+     */
+    public void setHeader(String name, String value) {
+        headers.put(name, value);
+    }
+
+    /**
+     * @return the contents as a body kept by the handler, or null to send
+     * getContents()
+     */
+    Compression.Body getBody() {
+        return body;
+    }
+
+    /**
+     * @param body a body the handler keeps and sends again, so that its
+     * compressed form is kept with it
+     */
+    void setBody(Compression.Body body) {
+        this.body = body;
+    }
+
+    /**
+     * @return the template to render as the response is sent, or null if
+     * there are contents
+     */
+    Template getTemplate() {
+        return template;
+    }
+
+    Object getModel() {
+        return model;
+    }
+
+    /**
+     * @param template the template to render as the response is sent
+     * @param model its data
+     */
+    void setTemplate(Template template, Object model) {
+        this.template = template;
+        this.model = model;
+    }
 }